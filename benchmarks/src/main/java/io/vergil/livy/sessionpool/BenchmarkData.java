@@ -0,0 +1,58 @@
+package io.vergil.livy.sessionpool;
+
+/**
+ * 压测用的livy响应样例，结构与livy 0.5+的返回一致。
+ */
+final class BenchmarkData {
+    static final String URL = "http://127.0.0.1:8999";
+    static final String SESSION_ID = "123";
+    static final String CODE = "select city, count(1) from dw.orders where dt = '2020-01-01' group by city";
+
+    static final String SESSION_JSON = "{\"id\":123,\"name\":\"MY_LIVY_host@0d6b9c0e6f0c4a9c9b4c6a2e7f1d2c3b\","
+            + "\"appId\":\"application_1600000000000_0001\",\"owner\":null,\"proxyUser\":\"work\",\"state\":\"idle\","
+            + "\"kind\":\"shared\",\"appInfo\":{\"driverLogUrl\":null,\"sparkUiUrl\":null},\"log\":[]}";
+
+    static final String STATEMENT_JSON = statementJson(7, "available", 100);
+
+    static final String RUNNING_STATEMENT_JSON = statementJson(8, "running", 0);
+
+    //一个session的10个statement，最后一个刚结束带结果
+    static final String LIST_STATEMENTS_JSON;
+
+    static {
+        StringBuilder sb = new StringBuilder("{\"total_statements\":10,\"statements\":[");
+        for (int i = 0; i < 10; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(i == 9 ? statementJson(i, "available", 100) : statementJson(i, "running", 0));
+        }
+        LIST_STATEMENTS_JSON = sb.append("]}").toString();
+    }
+
+    static String statementJson(int id, String state, int rows) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"id\":").append(id).append(",\"code\":\"").append(CODE.replace("'", "\\u0027"))
+                .append("\",\"state\":\"").append(state).append("\",\"output\":");
+        if (rows == 0) {
+            sb.append("null");
+        } else {
+            sb.append("{\"status\":\"ok\",\"execution_count\":").append(id).append(",\"data\":{\"application/json\":")
+                    .append("{\"schema\":{\"type\":\"struct\",\"fields\":[{\"name\":\"city\",\"type\":\"string\",\"nullable\":true},")
+                    .append("{\"name\":\"cnt\",\"type\":\"long\",\"nullable\":false}]},\"data\":[");
+            for (int i = 0; i < rows; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append("[\"city_").append(i).append("\",").append(1000L + i * 37L).append(']');
+            }
+            sb.append("]}}}");
+        }
+        sb.append(",\"progress\":").append(rows == 0 ? "0.5" : "1.0")
+                .append(",\"started\":1600000000000,\"completed\":").append(rows == 0 ? "0" : "1600000001234").append('}');
+        return sb.toString();
+    }
+
+    private BenchmarkData() {
+    }
+}
@@ -0,0 +1,31 @@
+package io.vergil.livy.sessionpool;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class LivyParamBenchmark {
+    private LivyParamInterpreter.LivyParam param;
+    private String encoded;
+
+    @Setup
+    public void setup() {
+        param = new LivyParamInterpreter.LivyParam();
+        param.setSessionId(BenchmarkData.SESSION_ID);
+        param.setStatementId("7");
+        encoded = LivyParamInterpreter.encodeParam(param);
+    }
+
+    @Benchmark
+    public String encode() {
+        return LivyParamInterpreter.encodeParam(param);
+    }
+
+    @Benchmark
+    public LivyParamInterpreter.LivyParam decode() {
+        return LivyParamInterpreter.decodeParam(encoded);
+    }
+}
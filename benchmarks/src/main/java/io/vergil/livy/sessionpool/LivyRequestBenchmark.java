@@ -0,0 +1,41 @@
+package io.vergil.livy.sessionpool;
+
+import okhttp3.Request;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 构造请求的开销：url拼接、json body、Request.Builder
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class LivyRequestBenchmark {
+    private LivyClient livyClient;
+
+    @Setup
+    public void setup() {
+        livyClient = new LivyClient(BenchmarkData.URL);
+    }
+
+    @TearDown
+    public void tearDown() {
+        livyClient.close();
+    }
+
+    @Benchmark
+    public Request submitStatementRequest() {
+        return livyClient.submitStatementRequest(BenchmarkData.SESSION_ID, BenchmarkData.CODE, "sql");
+    }
+
+    @Benchmark
+    public Request getStatementRequest() {
+        return livyClient.getStatementRequest(BenchmarkData.SESSION_ID, "7");
+    }
+
+    @Benchmark
+    public Request listStatementsRequest() {
+        return livyClient.listStatementsRequest(BenchmarkData.SESSION_ID, 0, 10);
+    }
+}
@@ -0,0 +1,119 @@
+package io.vergil.livy.sessionpool;
+
+import com.alibaba.fastjson.JSONObject;
+import io.vergil.livy.sessionpool.model.ListStatementResponse;
+import io.vergil.livy.sessionpool.model.Session;
+import io.vergil.livy.sessionpool.model.Statement;
+import okhttp3.MediaType;
+import okhttp3.ResponseBody;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 解析livy响应到模型类的开销
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class LivyResponseBenchmark {
+    private static final MediaType JSON_TYPE = MediaType.get("application/json; charset=utf-8");
+    private static final byte[] SESSION_BYTES = BenchmarkData.SESSION_JSON.getBytes(StandardCharsets.UTF_8);
+    private static final byte[] RUNNING_STATEMENT_BYTES = BenchmarkData.RUNNING_STATEMENT_JSON.getBytes(StandardCharsets.UTF_8);
+    private static final byte[] STATEMENT_BYTES = BenchmarkData.STATEMENT_JSON.getBytes(StandardCharsets.UTF_8);
+    private static final byte[] LIST_STATEMENTS_BYTES = BenchmarkData.LIST_STATEMENTS_JSON.getBytes(StandardCharsets.UTF_8);
+    private Set<String> withAll;
+
+    @Setup
+    public void setup() {
+        withAll = new HashSet<>();
+        for (int i = 0; i < 10; i++) {
+            withAll.add(String.valueOf(i));
+        }
+    }
+
+    @Benchmark
+    public Session parseSession() {
+        return JSONObject.parseObject(BenchmarkData.SESSION_JSON, Session.class);
+    }
+
+    @Benchmark
+    public Statement parseRunningStatement() {
+        return JSONObject.parseObject(BenchmarkData.RUNNING_STATEMENT_JSON, Statement.class);
+    }
+
+    //100行结果
+    @Benchmark
+    public Statement parseStatementWithOutput() {
+        return JSONObject.parseObject(BenchmarkData.STATEMENT_JSON, Statement.class);
+    }
+
+    //轮询时的列表响应，流式解析
+    @Benchmark
+    public ListStatementResponse readStatements() {
+        return LivyClient.readStatements(new StringReader(BenchmarkData.LIST_STATEMENTS_JSON), withAll);
+    }
+
+    //流式轮询时跳过output
+    @Benchmark
+    public ListStatementResponse readStatementsSkipOutput() {
+        return LivyClient.readStatements(new StringReader(BenchmarkData.LIST_STATEMENTS_JSON), Collections.emptySet());
+    }
+
+    //对比：整体读成String再解析
+    @Benchmark
+    public ListStatementResponse parseListStatements() {
+        return JSONObject.parseObject(BenchmarkData.LIST_STATEMENTS_JSON, ListStatementResponse.class);
+    }
+
+    //响应体直接按字节流解析
+    @Benchmark
+    public Session decodeSessionBody() throws IOException {
+        return LivyClient.decode(ResponseBody.create(JSON_TYPE, SESSION_BYTES), Session.class);
+    }
+
+    //对比：响应体先读成String再解析
+    @Benchmark
+    public Session parseSessionBody() throws IOException {
+        return JSONObject.parseObject(ResponseBody.create(JSON_TYPE, SESSION_BYTES).string(), Session.class);
+    }
+
+    @Benchmark
+    public Statement decodeRunningStatementBody() throws IOException {
+        return LivyClient.decode(ResponseBody.create(JSON_TYPE, RUNNING_STATEMENT_BYTES), Statement.class);
+    }
+
+    @Benchmark
+    public Statement parseRunningStatementBody() throws IOException {
+        return JSONObject.parseObject(ResponseBody.create(JSON_TYPE, RUNNING_STATEMENT_BYTES).string(), Statement.class);
+    }
+
+    //100行结果
+    @Benchmark
+    public Statement decodeStatementBody() throws IOException {
+        return LivyClient.decode(ResponseBody.create(JSON_TYPE, STATEMENT_BYTES), Statement.class);
+    }
+
+    @Benchmark
+    public Statement parseStatementBody() throws IOException {
+        return JSONObject.parseObject(ResponseBody.create(JSON_TYPE, STATEMENT_BYTES).string(), Statement.class);
+    }
+
+    //轮询的完整路径：从响应体解析列表，跳过output
+    @Benchmark
+    public ListStatementResponse readStatementsBodySkipOutput() throws IOException {
+        return LivyClient.readStatements(LivyClient.open(ResponseBody.create(JSON_TYPE, LIST_STATEMENTS_BYTES)), Collections.emptySet());
+    }
+
+    //对比：按charStream读取
+    @Benchmark
+    public ListStatementResponse readStatementsCharStreamSkipOutput() {
+        return LivyClient.readStatements(ResponseBody.create(JSON_TYPE, LIST_STATEMENTS_BYTES).charStream(), Collections.emptySet());
+    }
+}
@@ -0,0 +1,69 @@
+package io.vergil.livy.sessionpool;
+
+import io.vergil.livy.sessionpool.model.Session;
+import org.apache.commons.pool2.BasePooledObjectFactory;
+import org.apache.commons.pool2.PooledObject;
+import org.apache.commons.pool2.impl.DefaultPooledObject;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 池子本身借用、归还的开销，工厂不请求livy
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class SessionPoolBenchmark {
+    private LivySessionPool pool;
+
+    @Setup
+    public void setup() throws Exception {
+        GenericObjectPoolConfig config = new GenericObjectPoolConfig();
+        config.setMaxTotal(8);
+        config.setMaxIdle(8);
+        config.setMinIdle(8);
+        config.setFairness(true);
+        pool = new LivySessionPool(new StubSessionFactory(), config);
+        pool.preparePool();
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Benchmark
+    public Session borrowReturn() throws Exception {
+        Session session = pool.borrowObject();
+        pool.returnObject(session);
+        return session;
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Session borrowReturnContended() throws Exception {
+        Session session = pool.borrowObject();
+        pool.returnObject(session);
+        return session;
+    }
+
+    static class StubSessionFactory extends BasePooledObjectFactory<Session> {
+        private final AtomicInteger ids = new AtomicInteger(0);
+
+        @Override
+        public Session create() {
+            Session session = new Session();
+            session.setId(String.valueOf(ids.getAndIncrement()));
+            session.setState(LivyClient.SESSION_IDLE);
+            return session;
+        }
+
+        @Override
+        public PooledObject<Session> wrap(Session session) {
+            return new DefaultPooledObject<>(session);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package io.vergil.livy.sessionpool;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 单个livy操作的熔断器，按最近WINDOW_SIZE次调用的失败率和慢调用率判断。
+ * <p>
+ * 失败率或慢调用率超过阈值后打开，打开期间直接拒绝；openMillis之后半开，放行一次试探调用，
+ * 试探成功且不慢时关闭，否则重新打开。
+ */
+@Slf4j
+public class CircuitBreaker {
+    public static final int WINDOW_SIZE = 20;
+    //窗口内调用少于这个数时不打开
+    public static final int MINIMUM_CALLS = 10;
+    public static final double FAILURE_RATE_THRESHOLD = 0.5;
+    public static final double SLOW_CALL_RATE_THRESHOLD = 0.8;
+    public static final long DEFAULT_SLOW_CALL_MILLIS = 10_000;
+    public static final long DEFAULT_OPEN_MILLIS = 10_000;
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String name;
+    private final long slowCallMillis;
+    private final long openMillis;
+    //环形窗口，0成功，1失败，2慢调用
+    private final byte[] outcomes = new byte[WINDOW_SIZE];
+    private int position;
+    private int calls;
+    private int failures;
+    private int slowCalls;
+    private State state = State.CLOSED;
+    private long openUntil;
+    private boolean probing;
+
+    public CircuitBreaker(String name) {
+        this(name, DEFAULT_SLOW_CALL_MILLIS, DEFAULT_OPEN_MILLIS);
+    }
+
+    public CircuitBreaker(String name, long slowCallMillis, long openMillis) {
+        this.name = name;
+        this.slowCallMillis = slowCallMillis;
+        this.openMillis = openMillis;
+    }
+
+    //是否放行本次调用，放行后必须调用onSuccess或onFailure
+    public synchronized boolean tryAcquire() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() < openUntil) {
+                return false;
+            }
+            state = State.HALF_OPEN;
+            probing = false;
+        }
+        //半开状态只放行一次试探
+        if (probing) {
+            return false;
+        }
+        probing = true;
+        return true;
+    }
+
+    public synchronized void onSuccess(long elapsed) {
+        boolean slow = elapsed >= slowCallMillis;
+        if (state == State.HALF_OPEN) {
+            if (slow) {
+                open("slow probe(ms) : " + elapsed);
+            } else {
+                close();
+            }
+            return;
+        }
+        record(slow ? (byte) 2 : (byte) 0);
+    }
+
+    public synchronized void onFailure() {
+        if (state == State.HALF_OPEN) {
+            open("probe failed");
+            return;
+        }
+        record((byte) 1);
+    }
+
+    //打开时距离下次试探的毫秒数，没有打开时为0
+    public synchronized long getRetryAfterMillis() {
+        if (state == State.CLOSED) {
+            return 0;
+        }
+        return Math.max(0, openUntil - System.currentTimeMillis());
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    private void record(byte outcome) {
+        if (calls == WINDOW_SIZE) {
+            byte old = outcomes[position];
+            if (old == 1) {
+                failures--;
+            } else if (old == 2) {
+                slowCalls--;
+            }
+        } else {
+            calls++;
+        }
+        outcomes[position] = outcome;
+        position = (position + 1) % WINDOW_SIZE;
+        if (outcome == 1) {
+            failures++;
+        } else if (outcome == 2) {
+            slowCalls++;
+        }
+        if (state == State.CLOSED && calls >= MINIMUM_CALLS) {
+            if (failures >= calls * FAILURE_RATE_THRESHOLD) {
+                open("failures : " + failures + "/" + calls);
+            } else if (slowCalls >= calls * SLOW_CALL_RATE_THRESHOLD) {
+                open("slow calls : " + slowCalls + "/" + calls);
+            }
+        }
+    }
+
+    private void open(String reason) {
+        if (state != State.OPEN) {
+            log.warn("circuit breaker open:{},{}", name, reason);
+        }
+        state = State.OPEN;
+        openUntil = System.currentTimeMillis() + openMillis;
+        probing = false;
+    }
+
+    private void close() {
+        log.info("circuit breaker closed:{}", name);
+        state = State.CLOSED;
+        probing = false;
+        position = 0;
+        calls = 0;
+        failures = 0;
+        slowCalls = 0;
+    }
+}
@@ -0,0 +1,139 @@
+package io.vergil.livy.sessionpool;
+
+import io.vergil.livy.sessionpool.metrics.LivyMetrics;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * 单个livy的健康状态，作为okhttp拦截器记录每次请求的耗时和失败。
+ * <p>
+ * 连续失败FAILURE_THRESHOLD次(连接失败或5xx)后进入冷却期，冷却期内不参与新session的分配，
+ * 冷却期后的第一次成功请求恢复健康。
+ * <p>
+ * 另外每类操作(方法+路径)一个熔断器，失败率或慢请求比例过高时直接以LivyOverloadedException拒绝，
+ * 不再等到超时，比如yarn资源紧张时的创建session、livy变慢时的查询状态。
+ */
+@Slf4j
+public class EndpointHealth implements Interceptor {
+    public static final int FAILURE_THRESHOLD = 2;
+    public static final long COOLDOWN = 30_000;
+    //耗时EWMA的平滑系数
+    static final double ALPHA = 0.2;
+    private static final Pattern ID_PATTERN = Pattern.compile("/\\d+");
+    public static final String CREATE_SESSION_OPERATION = "POST /sessions";
+
+    private final String url;
+    private volatile double latencyMillis;
+    private volatile int failures;
+    private volatile long unhealthyUntil;
+    private volatile long cooldown = COOLDOWN;
+    private final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    public EndpointHealth(String url) {
+        this.url = url;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        String operation = operationOf(chain.request());
+        CircuitBreaker breaker = getBreaker(operation);
+        if (!breaker.tryAcquire()) {
+            LivyMetrics.get().increment(LivyMetrics.OVERLOAD_REJECTIONS);
+            throw new LivyOverloadedException("livy operation overloaded : " + url + " " + operation,
+                    breaker.getRetryAfterMillis());
+        }
+        long start = System.currentTimeMillis();
+        String metric = metricOf(chain.request(), operation);
+        Response response;
+        try {
+            response = chain.proceed(chain.request());
+        } catch (IOException | RuntimeException e) {
+            //RuntimeException也要记录，否则半开的试探一直占着
+            LivyMetrics.get().increment(metric + LivyMetrics.HTTP_ERRORS_SUFFIX);
+            breaker.onFailure();
+            onFailure(e.getMessage());
+            throw e;
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        LivyMetrics.get().record(metric, elapsed);
+        if (response.code() >= 500) {
+            LivyMetrics.get().increment(metric + LivyMetrics.HTTP_ERRORS_SUFFIX);
+            breaker.onFailure();
+            onFailure("http " + response.code());
+        } else {
+            breaker.onSuccess(elapsed);
+            onSuccess(elapsed);
+        }
+        return response;
+    }
+
+    //http.{host:port}.{method} {path}
+    static String metricOf(Request request, String operation) {
+        HttpUrl url = request.url();
+        return LivyMetrics.HTTP_PREFIX + url.host() + ":" + url.port() + "." + operation;
+    }
+
+    //{method} {path}，path中的id替换为{id}
+    static String operationOf(Request request) {
+        return request.method() + " " + ID_PATTERN.matcher(request.url().encodedPath()).replaceAll("/{id}");
+    }
+
+    public CircuitBreaker getBreaker(String operation) {
+        CircuitBreaker breaker = breakers.get(operation);
+        if (breaker == null) {
+            breaker = breakers.computeIfAbsent(operation, k -> new CircuitBreaker(url + " " + k));
+        }
+        return breaker;
+    }
+
+    //熔断器未打开或者已经可以试探
+    public boolean allows(String operation) {
+        CircuitBreaker breaker = breakers.get(operation);
+        return breaker == null || breaker.getRetryAfterMillis() == 0;
+    }
+
+    private synchronized void onSuccess(long elapsed) {
+        latencyMillis = latencyMillis == 0 ? elapsed : latencyMillis + ALPHA * (elapsed - latencyMillis);
+        if (failures >= FAILURE_THRESHOLD) {
+            log.info("livy endpoint recovered:{}", url);
+        }
+        failures = 0;
+        unhealthyUntil = 0;
+    }
+
+    private synchronized void onFailure(String message) {
+        failures++;
+        if (failures >= FAILURE_THRESHOLD) {
+            unhealthyUntil = System.currentTimeMillis() + cooldown;
+        }
+        if (failures == FAILURE_THRESHOLD) {
+            log.warn("livy endpoint unhealthy:{},failures:{},error:{}", url, failures, message);
+        }
+    }
+
+    //冷却期过后允许重新尝试
+    public boolean isHealthy() {
+        return failures < FAILURE_THRESHOLD || System.currentTimeMillis() >= unhealthyUntil;
+    }
+
+    //冷却时长，默认COOLDOWN
+    public void setCooldown(long cooldown) {
+        this.cooldown = cooldown;
+    }
+
+    public double getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    public int getFailures() {
+        return failures;
+    }
+}
@@ -0,0 +1,178 @@
+package io.vergil.livy.sessionpool;
+
+import com.alibaba.fastjson.JSONObject;
+import lombok.Data;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 基于文件锁的租约存储，适合同一台机器或共享目录(NFS)上的多个实例。
+ * <p>
+ * 目录下leases.lock用于进程间互斥，leases.json保存租约和最新的token，每次操作加锁读写整个文件。
+ */
+public class FileSessionLeaseStore implements SessionLeaseStore {
+    private final Path stateFile;
+    private final Path tempFile;
+    private final FileChannel lockChannel;
+    //同一进程内FileChannel.lock不可重入，先用进程内的锁
+    private final ReentrantLock localLock = new ReentrantLock();
+    private FileLock fileLock;
+
+    public FileSessionLeaseStore(String directory) throws IOException {
+        Path dir = Paths.get(directory);
+        Files.createDirectories(dir);
+        this.stateFile = dir.resolve("leases.json");
+        this.tempFile = dir.resolve("leases.json.tmp");
+        this.lockChannel = new RandomAccessFile(dir.resolve("leases.lock").toFile(), "rw").getChannel();
+    }
+
+    @Override
+    public <T> T withLock(Callable<T> action) throws IOException {
+        lock();
+        try {
+            return action.call();
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e.getMessage(), e);
+        } finally {
+            unlock();
+        }
+    }
+
+    @Override
+    public SessionLease acquire(String sessionId, String owner, long ttlMillis) throws IOException {
+        return withLock(() -> {
+            State state = read();
+            long now = System.currentTimeMillis();
+            SessionLease current = state.getLeases().get(sessionId);
+            if (current != null && !current.isExpired(now)) {
+                return null;
+            }
+            state.setLastToken(state.getLastToken() + 1);
+            SessionLease lease = new SessionLease(sessionId, owner, state.getLastToken(), now + ttlMillis);
+            state.getLeases().put(sessionId, lease);
+            write(state);
+            return lease;
+        });
+    }
+
+    @Override
+    public boolean renew(SessionLease lease, long ttlMillis) throws IOException {
+        return withLock(() -> {
+            State state = read();
+            long now = System.currentTimeMillis();
+            SessionLease current = state.getLeases().get(lease.getSessionId());
+            //过期但还没被别人拿走的也可以续上
+            if (current == null || current.getToken() != lease.getToken()) {
+                return false;
+            }
+            current.setExpireTime(now + ttlMillis);
+            lease.setExpireTime(current.getExpireTime());
+            write(state);
+            return true;
+        });
+    }
+
+    @Override
+    public void release(SessionLease lease) throws IOException {
+        withLock(() -> {
+            State state = read();
+            SessionLease current = state.getLeases().get(lease.getSessionId());
+            if (current != null && current.getToken() == lease.getToken()) {
+                state.getLeases().remove(lease.getSessionId());
+                write(state);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public boolean isCurrent(SessionLease lease) throws IOException {
+        return withLock(() -> {
+            SessionLease current = read().getLeases().get(lease.getSessionId());
+            return current != null && current.getToken() == lease.getToken()
+                    && !current.isExpired(System.currentTimeMillis());
+        });
+    }
+
+    @Override
+    public Map<String, SessionLease> getLeases() throws IOException {
+        return withLock(() -> {
+            long now = System.currentTimeMillis();
+            Map<String, SessionLease> leases = new HashMap<>();
+            for (SessionLease lease : read().getLeases().values()) {
+                if (!lease.isExpired(now)) {
+                    leases.put(lease.getSessionId(), lease);
+                }
+            }
+            return leases;
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        lockChannel.close();
+    }
+
+    private void lock() throws IOException {
+        localLock.lock();
+        if (localLock.getHoldCount() == 1) {
+            try {
+                fileLock = lockChannel.lock();
+            } catch (IOException | RuntimeException e) {
+                localLock.unlock();
+                throw e;
+            }
+        }
+    }
+
+    private void unlock() throws IOException {
+        try {
+            if (localLock.getHoldCount() == 1 && fileLock != null) {
+                fileLock.release();
+                fileLock = null;
+            }
+        } finally {
+            localLock.unlock();
+        }
+    }
+
+    private State read() throws IOException {
+        if (!Files.exists(stateFile)) {
+            return new State();
+        }
+        State state = JSONObject.parseObject(new String(Files.readAllBytes(stateFile), StandardCharsets.UTF_8), State.class);
+        if (state == null) {
+            return new State();
+        }
+        if (state.getLeases() == null) {
+            state.setLeases(new HashMap<>());
+        }
+        return state;
+    }
+
+    //先写临时文件再替换，避免进程中途退出写坏
+    private void write(State state) throws IOException {
+        Files.write(tempFile, JSONObject.toJSONString(state).getBytes(StandardCharsets.UTF_8));
+        Files.move(tempFile, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Data
+    public static class State {
+        private long lastToken;
+        private Map<String, SessionLease> leases = new HashMap<>();
+    }
+}
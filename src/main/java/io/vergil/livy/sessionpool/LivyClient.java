@@ -1,21 +1,51 @@
 package io.vergil.livy.sessionpool;
 
+import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.JSONObject;
-import com.google.common.base.Stopwatch;
+import com.alibaba.fastjson.parser.DefaultJSONParser;
+import io.vergil.livy.sessionpool.model.BatchResult;
 import io.vergil.livy.sessionpool.model.ListSessionResponse;
+import io.vergil.livy.sessionpool.model.ListStatementResponse;
 import io.vergil.livy.sessionpool.model.Session;
+import io.vergil.livy.sessionpool.model.SessionState;
 import io.vergil.livy.sessionpool.model.Statement;
+import io.vergil.livy.sessionpool.model.StatementState;
+import io.vergil.livy.sessionpool.trace.QueryTrace;
+import io.vergil.livy.sessionpool.trace.TraceSink;
 import io.vergil.livy.sessionpool.utils.GuidUtils;
+import io.vergil.livy.sessionpool.utils.JsonStreamUtils;
+import io.vergil.livy.sessionpool.utils.ThreadUtils;
 import lombok.extern.slf4j.Slf4j;
 import okhttp3.*;
-import org.apache.commons.lang3.StringUtils;
 
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * api 参考： https://livy.incubator.apache.org/docs/latest/rest-api.html
@@ -42,8 +72,29 @@ public class LivyClient {
     public static final String STATEMENT_CANCELLED = "cancelled";
     protected String url;
     public static final int CREATE_SESSION_TIMEOUT = 10 * 60;
+    public static final int CANCEL_CONFIRM_TIMEOUT = 30;
     public static String NAME_PREFIX = null;
+    //所有client共享的调度线程，异步轮询只占用调度时间片，不占用调用方线程
+    static final ScheduledExecutorService SCHEDULER = ThreadUtils.newDaemonScheduler("livy-scheduler", 2);
+    //带上charset，okhttp不用每次再拼一个新的MediaType
+    private static final MediaType JSON_TYPE = MediaType.get("application/json; charset=utf-8");
+    private static final RequestBody EMPTY_BODY = RequestBody.create(JSON_TYPE, new byte[0]);
+    //解析响应用的线程内缓冲区，超过的按流读取
+    private static final int MAX_DECODE_BUFFER = 64 * 1024;
+    private static final ThreadLocal<byte[]> DECODE_BYTES = ThreadLocal.withInitial(() -> new byte[8 * 1024]);
+    private static final ThreadLocal<char[]> DECODE_CHARS = ThreadLocal.withInitial(() -> new char[8 * 1024]);
+    private static final ThreadLocal<CharsetDecoder> UTF8_DECODER = ThreadLocal.withInitial(StandardCharsets.UTF_8::newDecoder);
     private OkHttpClient okHttpClient;
+    private StatementPoller statementPoller;
+    private SessionStateWatcher sessionStateWatcher;
+    private EndpointHealth health;
+    private volatile TraceSink traceSink;
+    //请求地址预先解析好，轮询时不再拼接、解析url
+    private final HttpUrl sessionsUrl;
+    private final Map<String, SessionUrls> sessionUrls = new ConcurrentHashMap<>();
+    private volatile PollRequest listSessionRequest;
+    //还没有确认在livy上结束的statement，key为session id
+    private final Map<String, Set<CompletableFuture<Void>>> unsettled = new ConcurrentHashMap<>();
 
     static {
         try {
@@ -55,13 +106,45 @@ public class LivyClient {
 
     public LivyClient(String livyUrl) {
         this.url = livyUrl;
+        this.sessionsUrl = HttpUrl.get(livyUrl + "/sessions");
+        //异步请求都打到同一个livy，放开okhttp默认的单host 5并发限制
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(256);
+        dispatcher.setMaxRequestsPerHost(256);
+        this.health = new EndpointHealth(livyUrl);
         this.okHttpClient = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .addInterceptor(health)
                 .connectTimeout(Duration.ofMillis(120_0000))
                 .readTimeout(Duration.ofMillis(120_000))
                 .build();
+        this.statementPoller = new StatementPoller(this);
+        this.sessionStateWatcher = new SessionStateWatcher(this);
     }
 
     //create session
+    public Session createSession(SessionProfile profile) throws IOException {
+        return createSession(profile, sessionNamePrefix(profile) + GuidUtils.newGuild());
+    }
+
+    //本机按配置创建的session的名称前缀：NAME_PREFIX + 配置指纹 + "."
+    public static String sessionNamePrefix(SessionProfile profile) {
+        return NAME_PREFIX + profile.fingerprint() + ".";
+    }
+
+    //指定session名称，比如多实例共享的session使用统一前缀
+    public Session createSession(SessionProfile profile, String name) throws IOException {
+        return createSession(profile.getUser(),
+                profile.getDriverMemory(),
+                profile.getDriverCores(),
+                profile.getExecutorMemory(),
+                profile.getExecutorCores(),
+                profile.getMinExecutors(),
+                profile.getMaxExecutors(),
+                profile.getQueue(),
+                name);
+    }
+
     public Session createSession(String user,
                                  String driverMemory,
                                  int driverCores,
@@ -70,6 +153,20 @@ public class LivyClient {
                                  int minExecutors,
                                  int maxExecutors,
                                  String queue) throws IOException {
+        //跟按配置创建的一样带上指纹，重启后能按配置接管
+        return createSession(new SessionProfile(user, driverMemory, driverCores, executorMemory, executorCores,
+                minExecutors, maxExecutors, queue));
+    }
+
+    private Session createSession(String user,
+                                  String driverMemory,
+                                  int driverCores,
+                                  String executorMemory,
+                                  int executorCores,
+                                  int minExecutors,
+                                  int maxExecutors,
+                                  String queue,
+                                  String name) throws IOException {
         JSONObject body = new JSONObject();
         body.put("proxyUser", user);
         body.put("driverMemory", driverMemory);
@@ -79,7 +176,7 @@ public class LivyClient {
         body.put("numExecutors", minExecutors);
         body.put("queue", queue);
         body.put("heartbeatTimeoutInSecond", 30 * 60);
-        body.put("name", NAME_PREFIX + GuidUtils.newGuild());
+        body.put("name", name);
         //目前测试环境的0.5版本livy不支持配置spark动态资源参数
 //        JSONObject sparkConf = new JSONObject();
 //        sparkConf.put("spark.dynamicAllocation.enabled", true);
@@ -88,179 +185,844 @@ public class LivyClient {
 //        sparkConf.put("spark.dynamicAllocation.maxExecutors", maxExecutors);
 //        sparkConf.put("spark.dynamicAllocation.executorIdleTimeout", 60 * 10);
 //        body.put("conf", sparkConf);
-        RequestBody requestBody = RequestBody.create(MediaType.get("application/json"), body.toString());
+        RequestBody requestBody = RequestBody.create(JSON_TYPE, body.toString());
         Request request = new Request.Builder()
-                .url(url + "/sessions")
+                .url(sessionsUrl)
                 .post(requestBody)
                 .header("X-Requested-By", "DataQuery")
                 .build();
-        Response response = okHttpClient.newCall(request).execute();
-        String responseContent = response.body().string();
-        int code = response.code();
-        if (!(code >= 200 && code < 300)) {
-            throw new IOException("create session exception: " + responseContent);
-        }
-        Session session = JSONObject.parseObject(responseContent, Session.class);
+        Session session = call(request, "create session exception: ", responseBody -> decode(responseBody, Session.class));
         session.setLivyClient(this);
-        //轮询等待
-        Stopwatch sw = Stopwatch.createStarted();
-        for (; ; ) {
-            try {
-                Thread.sleep(2000);
-                log.info("waiting some time for creating session:{}", session.getId());
-                //超时处理
-                long elapsed = sw.elapsed(TimeUnit.SECONDS);
-                if (elapsed > CREATE_SESSION_TIMEOUT) {
-                    log.error("create session timeout(s) : " + CREATE_SESSION_TIMEOUT);
-                    deleteSession(session.getId());
-                    throw new IOException("create session timeout");
-                }
-                Session session_current = getSession(session.getId());
-                if (StringUtils.equals(session_current.getState(), LivyClient.SESSION_IDLE)) {
-                    return session_current;
-                } else if (StringUtils.equals(session_current.getState(), LivyClient.SESSION_STARTING)) {
-                    continue;
-                } else {
-                    deleteSession(session.getId());
-                    log.error("create session error,state:{}", session_current.getState());
-                }
-            } catch (Exception e) {
-                log.error("create session error:{}", e.getMessage());
-                throw new IOException("create session error : " + e.getMessage());
+        //等待状态表通知，不再逐个轮询
+        sessionStateWatcher.update(session);
+        log.info("waiting some time for creating session:{}", session.getId());
+        String state;
+        try {
+            state = sessionStateWatcher.awaitState(session.getId(), LivyClient::isSessionStarted,
+                    CREATE_SESSION_TIMEOUT, TimeUnit.SECONDS).get();
+        } catch (ExecutionException e) {
+            //超时处理
+            log.error("create session timeout(s) : " + CREATE_SESSION_TIMEOUT);
+            deleteSession(session.getId());
+            throw new IOException("create session timeout");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            deleteSession(session.getId());
+            throw new IOException("create session interrupted");
+        }
+        if (SessionState.of(state) != SessionState.IDLE) {
+            log.error("create session error,state:{}", state);
+            if (state != null) {
+                deleteSession(session.getId());
             }
+            throw new IOException("create session error : " + state);
         }
+        Session session_current = sessionStateWatcher.getSession(session.getId());
+        if (session_current == null) {
+            session_current = session;
+        }
+        session_current.setLivyClient(this);
+        return session_current;
+    }
+
+    //session是否已经结束启动阶段，被删除(null)也算
+    public static boolean isSessionStarted(String state) {
+        return state == null || SessionState.of(state).isStarted();
     }
 
     //delete session
     public void deleteSession(String sessionId) throws IOException {
         Request request = new Request.Builder()
-                .url(url + "/sessions/" + sessionId)
+                .url(sessionsUrl.newBuilder().addPathSegment(sessionId).build())
                 .delete()
                 .header("X-Requested-By", "DataQuery")
                 .build();
-        Response response = okHttpClient.newCall(request).execute();
-        String responseContent = response.body().string();
-        int code = response.code();
-        if (!(code >= 200 && code < 300)) {
-            throw new IOException("delete session exception: " + responseContent);
-        }
+        evictSession(sessionId);
+        call(request, "delete session exception: ", responseBody -> null);
     }
 
     //get session
     public Session getSession(String sessionId) throws IOException {
         Request request = new Request.Builder()
-                .url(url + "/sessions/" + sessionId)
+                .url(sessionsUrl.newBuilder().addPathSegment(sessionId).build())
                 .get()
                 .header("X-Requested-By", "DataQuery")
                 .build();
-        Response response = okHttpClient.newCall(request).execute();
-        String responseContent = response.body().string();
-        int code = response.code();
-        if (code == 404) {
-            return null;
-        }
-        if (!(code >= 200 && code < 300)) {
-            throw new IOException("get session exception: " + responseContent);
+        try (Response response = okHttpClient.newCall(request).execute()) {
+            int code = response.code();
+            if (code == 404) {
+                return null;
+            }
+            if (!(code >= 200 && code < 300)) {
+                throw new IOException("get session exception: " + response.body().string());
+            }
+            return decode(response.body(), Session.class);
         }
-        Session session = JSONObject.parseObject(responseContent, Session.class);
-        return session;
     }
 
     //list session
     public ListSessionResponse listSession() throws IOException {
         Request request = new Request.Builder()
-                .url(url + "/sessions/")
+                .url(sessionsUrl)
                 .get()
                 .header("X-Requested-By", "DataQuery")
                 .build();
-        Response response = okHttpClient.newCall(request).execute();
-        String responseContent = response.body().string();
-        int code = response.code();
-        if (!(code >= 200 && code < 300)) {
-            throw new IOException("list session exception: " + responseContent);
-        }
-        ListSessionResponse listSessionResponse = JSONObject.parseObject(responseContent, ListSessionResponse.class);
-        return listSessionResponse;
+        return call(request, "list session exception: ", responseBody -> decode(responseBody, ListSessionResponse.class));
     }
 
     //execute statement
     public Statement executeStatement(String sessionId, String code_, String kind) throws IOException {
-        JSONObject body = new JSONObject();
-        body.put("code", code_);
-        body.put("kind", kind);
-        RequestBody requestBody = RequestBody.create(MediaType.get("application/json"), body.toString());
-        Request request = new Request.Builder()
-                .url(url + "/sessions/" + sessionId + "/statements")
-                .post(requestBody)
-                .header("X-Requested-By", "DataQuery")
-                .build();
-        Response response = okHttpClient.newCall(request).execute();
-        String responseContent = response.body().string();
-        int code = response.code();
-        if (!(code >= 200 && code < 300)) {
-            throw new IOException("execute statement exception: " + responseContent);
-        }
-        Statement statement = JSONObject.parseObject(responseContent, Statement.class);
-        return statement;
+        Request request = submitStatementRequest(sessionId, code_, kind);
+        return call(request, "execute statement exception: ", responseBody -> decode(responseBody, Statement.class));
     }
 
     //get statement
     public Statement getStatement(String sessionId, String statementId) throws IOException {
+        Request request = getStatementRequest(sessionId, statementId);
+        return call(request, "get statement exception: ", responseBody -> decode(responseBody, Statement.class));
+    }
+
+    //list statements
+    public ListStatementResponse listStatements(String sessionId) throws IOException {
         Request request = new Request.Builder()
-                .url(url + "/sessions/" + sessionId + "/statements/" + statementId)
+                .url(urlsOf(sessionId).statements)
                 .get()
                 .header("X-Requested-By", "DataQuery")
                 .build();
+        return call(request, "list statements exception: ", responseBody -> decode(responseBody, ListStatementResponse.class));
+    }
+
+    //cancel statement
+    public void cancelStatement(String sessionId, String statementId) throws IOException {
+        call(cancelStatementRequest(sessionId, statementId), "cancel statement exception: ", responseBody -> null);
+    }
+
+    //test
+    public Statement testStatement(String sessionId) throws IOException {
+        return executeStatement(sessionId, "show databases", "sql");
+    }
+
+    public Statement executeStatementSync(String sessionId, String code_, String kind) throws IOException, SQLException {
+        return executeStatementSync(sessionId, code_, kind, defaultDeadline());
+    }
+
+    //deadline为截止时间点(毫秒)，超时后取消livy上的statement
+    public Statement executeStatementSync(String sessionId, String code_, String kind, long deadline) throws IOException, SQLException {
+        return executeStatementSync(sessionId, code_, kind, deadline, startTrace(sessionId, code_, kind));
+    }
+
+    public Statement executeStatementSync(String sessionId, String code_, String kind, long deadline,
+                                          QueryTrace trace) throws IOException, SQLException {
+        CompletableFuture<Statement> future = executeStatementAsync(sessionId, code_, kind, deadline, trace);
+        try {
+            return await(future);
+        } catch (SQLException e) {
+            //被中断时也取消
+            future.cancel(false);
+            throw e;
+        }
+    }
+
+    //默认截止时间：QUERY_TIMEOUT之后
+    public static long defaultDeadline() {
+        return System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(QUERY_TIMEOUT);
+    }
+
+    //等待异步结果，异常还原为IOException、SQLException
+    static Statement await(CompletableFuture<Statement> future) throws IOException, SQLException {
+        return await(future, Long.MAX_VALUE);
+    }
+
+    //最多等到deadline，超时以SQLTimeoutException失败，不影响future本身
+    static Statement await(CompletableFuture<Statement> future, long deadline) throws IOException, SQLException {
+        try {
+            if (deadline == Long.MAX_VALUE) {
+                return future.get();
+            }
+            return future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new SQLTimeoutException("query deadline exceeded");
+        } catch (CancellationException e) {
+            throw new SQLException("query cancelled", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("query interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            throw new IOException("execute statement error : " + cause.getMessage(), cause);
+        }
+    }
+
+    //execute statement async
+    public CompletableFuture<Statement> executeStatementAsync(String sessionId, String code_, String kind) {
+        return executeStatementAsync(sessionId, code_, kind, defaultDeadline());
+    }
+
+    //execute statement async，超过deadline以SQLTimeoutException失败，调用方cancel返回的future时同样取消livy上的statement
+    public CompletableFuture<Statement> executeStatementAsync(String sessionId, String code_, String kind, long deadline) {
+        return executeStatementAsync(sessionId, code_, kind, deadline, startTrace(sessionId, code_, kind));
+    }
+
+    public CompletableFuture<Statement> executeStatementAsync(String sessionId, String code_, String kind, long deadline,
+                                                              QueryTrace trace) {
+        return executeTracked(sessionId, code_, kind, null, deadline, trace);
+    }
+
+    //多条sql合并成一个statement执行，返回按sql顺序的结果，单条sql失败记录在对应结果中
+    public List<BatchResult> executeBatchSync(String sessionId, StatementBatch batch, long deadline) throws IOException, SQLException {
+        Statement statement = executeStatementSync(sessionId, batch.toCode(), StatementBatch.KIND, deadline);
+        return batch.parse(statement);
+    }
+
+    public CompletableFuture<List<BatchResult>> executeBatchAsync(String sessionId, StatementBatch batch, long deadline) {
+        return executeStatementAsync(sessionId, batch.toCode(), StatementBatch.KIND, deadline).thenApply(statement -> {
+            try {
+                return batch.parse(statement);
+            } catch (SQLException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    //执行statement，结果按行流式读取，大结果不会整体读入内存
+    public ResultCursor executeStatementCursor(String sessionId, String code_, String kind) throws IOException, SQLException {
+        return executeStatementCursor(sessionId, code_, kind, defaultDeadline());
+    }
+
+    public ResultCursor executeStatementCursor(String sessionId, String code_, String kind, long deadline) throws IOException, SQLException {
+        return executeStatementCursor(sessionId, code_, kind, deadline, startTrace(sessionId, code_, kind));
+    }
+
+    /**
+     * trace记录到拿到结束状态为止，不包括之后流式读取结果的耗时。
+     * <p>
+     * 单独查询这个statement的状态，读到结束状态的那次响应直接作为结果流，结果只传输一次；
+     * livy返回的字段里output排在state前面时，结束后再请求一次结果。
+     */
+    public ResultCursor executeStatementCursor(String sessionId, String code_, String kind, long deadline,
+                                               QueryTrace trace) throws IOException, SQLException {
+        CompletableFuture<ResultCursor> result = new CompletableFuture<>();
+        CompletableFuture<Statement> future = executeTracked(sessionId, code_, kind, result, deadline, trace);
+        Statement statement;
+        try {
+            statement = await(future);
+        } catch (SQLException e) {
+            future.cancel(false);
+            closeWhenDone(result);
+            throw e;
+        } catch (IOException e) {
+            closeWhenDone(result);
+            throw e;
+        }
+        if (statement.getStatementState() != StatementState.AVAILABLE) {
+            closeWhenDone(result);
+            throw new SQLException("statement not available,id:" + statement.getId() + ",state:" + statement.getState());
+        }
+        ResultCursor cursor;
+        try {
+            //轮询器先交出游标再完成statement
+            cursor = result.getNow(null);
+        } catch (CompletionException e) {
+            Throwable cause = unwrap(e);
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            throw new IOException("read statement result error : " + cause.getMessage(), cause);
+        }
+        return cursor != null ? cursor : openStatementResult(sessionId, statement.getId());
+    }
+
+    //调用方不再读取结果时，游标交出后马上关闭，释放连接
+    private static void closeWhenDone(CompletableFuture<ResultCursor> result) {
+        result.thenAccept(cursor -> {
+            if (cursor != null) {
+                cursor.close();
+            }
+        });
+    }
+
+    //提交后交给统一的轮询器，按session合并状态查询；超时或被取消时，后台取消livy上的statement。
+    //result不为空时单独轮询，结束时结果游标交给result
+    private CompletableFuture<Statement> executeTracked(String sessionId, String code_, String kind,
+                                                        CompletableFuture<ResultCursor> result_, long deadline, QueryTrace trace) {
+        CompletableFuture<Statement> result = new CompletableFuture<>();
+        if (trace != null) {
+            trace.setSubmitStart(System.currentTimeMillis());
+            result.whenComplete((statement, e) -> finishTrace(trace, statement, e));
+        }
+        long delay = deadline - System.currentTimeMillis();
+        if (delay <= 0) {
+            result.completeExceptionally(new SQLTimeoutException("query deadline exceeded before submit"));
+            return result;
+        }
+        //statement在livy上结束(执行完或取消确认)时完成，取消未确认时以异常完成
+        CompletableFuture<Void> settled = newSettled(sessionId);
+        ScheduledFuture<?> timer = SCHEDULER.schedule(() -> {
+            if (result.completeExceptionally(new SQLTimeoutException("query timeout(ms) : " + delay))) {
+                log.error("execute statement timeout,livy session id:{},code:{}", sessionId, code_);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+        result.whenComplete((statement, e) -> timer.cancel(false));
+        submitStatementAsync(sessionId, code_, kind).whenComplete((submitted, e) -> {
+            if (e != null) {
+                result.completeExceptionally(unwrap(e));
+                settled.complete(null);
+                return;
+            }
+            if (trace != null) {
+                trace.setSubmitEnd(System.currentTimeMillis());
+                trace.setStatementId(submitted.getId());
+            }
+            if (result.isDone()) {
+                //提交期间已超时或被取消
+                settle(settled, cancelStatementAsync(sessionId, submitted.getId()));
+                return;
+            }
+            CompletableFuture<Statement> tracked = result_ == null
+                    ? statementPoller.track(sessionId, submitted.getId(), code_, false, trace)
+                    : statementPoller.trackResult(sessionId, submitted.getId(), code_, result_, trace);
+            tracked.whenComplete((statement, e2) -> {
+                if (e2 != null) {
+                    result.completeExceptionally(unwrap(e2));
+                } else {
+                    result.complete(statement);
+                }
+            });
+            result.whenComplete((statement, e2) -> {
+                if (!tracked.isDone()) {
+                    tracked.cancel(false);
+                    settle(settled, cancelStatementAsync(sessionId, submitted.getId()));
+                } else {
+                    settled.complete(null);
+                }
+            });
+        });
+        return result;
+    }
+
+    private CompletableFuture<Void> newSettled(String sessionId) {
+        CompletableFuture<Void> settled = new CompletableFuture<>();
+        unsettled.compute(sessionId, (k, set) -> {
+            Set<CompletableFuture<Void>> result = set == null ? ConcurrentHashMap.newKeySet() : set;
+            result.add(settled);
+            return result;
+        });
+        settled.whenComplete((v, e) -> unsettled.computeIfPresent(sessionId, (k, set) -> {
+            set.remove(settled);
+            return set.isEmpty() ? null : set;
+        }));
+        return settled;
+    }
+
+    private static void settle(CompletableFuture<Void> settled, CompletableFuture<Statement> cancel) {
+        cancel.whenComplete((statement, e) -> {
+            if (e != null) {
+                settled.completeExceptionally(unwrap(e));
+            } else {
+                settled.complete(null);
+            }
+        });
+    }
+
+    /**
+     * session上已经提交的statement都在livy上结束后完成，session可以交给下一个查询；
+     * 有statement取消未确认时以异常完成，这时session上可能还有statement在执行。
+     */
+    public CompletableFuture<Void> awaitSettled(String sessionId) {
+        Set<CompletableFuture<Void>> set = unsettled.get(sessionId);
+        if (set == null || set.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return CompletableFuture.allOf(set.toArray(new CompletableFuture[0]));
+    }
+
+    //开启trace时返回新的trace，否则返回null
+    public QueryTrace startTrace(String sessionId, String code_, String kind) {
+        if (traceSink == null) {
+            return null;
+        }
+        QueryTrace trace = new QueryTrace();
+        trace.setTraceId(GuidUtils.newGuild());
+        trace.setSessionId(sessionId);
+        trace.setCode(code_);
+        trace.setKind(kind);
+        return trace;
+    }
+
+    private void finishTrace(QueryTrace trace, Statement statement, Throwable e) {
+        trace.setFinishTime(System.currentTimeMillis());
+        if (statement != null) {
+            trace.setFinalState(statement.getState());
+        }
+        if (e != null) {
+            trace.setError(unwrap(e).toString());
+        }
+        TraceSink sink = traceSink;
+        if (sink != null) {
+            try {
+                sink.accept(trace);
+            } catch (Exception e2) {
+                log.error("trace sink error:{}", e2.getMessage());
+            }
+        }
+    }
+
+    //取消statement并等待livy确认结束(cancelled或已经执行完)，CANCEL_CONFIRM_TIMEOUT内未确认以SQLTimeoutException失败
+    public CompletableFuture<Statement> cancelStatementAsync(String sessionId, String statementId) {
+        Request request = cancelStatementRequest(sessionId, statementId);
+        CompletableFuture<Statement> confirmed = new CompletableFuture<>();
+        callAsync(request, "cancel statement exception: ", responseBody -> null).whenComplete((responseContent, e) -> {
+            if (e != null) {
+                confirmed.completeExceptionally(unwrap(e));
+                return;
+            }
+            CompletableFuture<Statement> tracked = statementPoller.track(sessionId, statementId, null, true);
+            tracked.whenComplete((statement, e2) -> {
+                if (e2 != null) {
+                    confirmed.completeExceptionally(unwrap(e2));
+                } else {
+                    confirmed.complete(statement);
+                }
+            });
+            //确认超时后不再轮询
+            confirmed.whenComplete((statement, e2) -> tracked.cancel(false));
+        });
+        ScheduledFuture<?> timer = SCHEDULER.schedule(() -> {
+            confirmed.completeExceptionally(new SQLTimeoutException("cancel statement not confirmed(s) : " + CANCEL_CONFIRM_TIMEOUT));
+        }, CANCEL_CONFIRM_TIMEOUT, TimeUnit.SECONDS);
+        confirmed.whenComplete((statement, e) -> {
+            timer.cancel(false);
+            if (e != null) {
+                log.error("cancel statement error,livy session id:{},statement id:{},error:{}", sessionId, statementId, unwrap(e).getMessage());
+            } else {
+                log.info("cancel statement,livy session id:{},statement id:{},state:{}", sessionId, statementId, statement.getState());
+            }
+        });
+        return confirmed;
+    }
+
+    //流式读取statement结果
+    public ResultCursor openStatementResult(String sessionId, String statementId) throws IOException, SQLException {
+        Request request = getStatementRequest(sessionId, statementId);
         Response response = okHttpClient.newCall(request).execute();
-        String responseContent = response.body().string();
         int code = response.code();
         if (!(code >= 200 && code < 300)) {
+            String responseContent = response.body().string();
+            response.close();
             throw new IOException("get statement exception: " + responseContent);
         }
-        Statement statement = JSONObject.parseObject(responseContent, Statement.class);
-        return statement;
+        return new ResultCursor(response.body().charStream(), response);
     }
 
-    //cancel statement
-    public void cancelStatement(String sessionId, String statementId) throws IOException {
-        Request request = new Request.Builder()
-                .url(url + "/sessions/" + sessionId + "/statements/" + statementId + "/cancel")
-                .post(RequestBody.create(MediaType.get("application/json"), ""))
+    /**
+     * 查询单个statement的状态，执行成功时读到output为止，响应流交给结果游标；
+     * 还在运行时output为空，响应很小，读完关闭。
+     */
+    CompletableFuture<StreamedStatement> getStatementStreamAsync(String sessionId, String statementId) {
+        Request request = getStatementRequest(sessionId, statementId);
+        CompletableFuture<StreamedStatement> future = new CompletableFuture<>();
+        okHttpClient.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                future.completeExceptionally(e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try {
+                    int code = response.code();
+                    if (!(code >= 200 && code < 300)) {
+                        try (ResponseBody responseBody = response.body()) {
+                            future.completeExceptionally(new IOException("get statement exception: " + responseBody.string()));
+                        }
+                        return;
+                    }
+                    //游标在其他线程读取，不能用线程内复用的缓冲区
+                    future.complete(readStatementStream(JsonStreamUtils.open(response.body().charStream()), response));
+                } catch (Exception e) {
+                    response.close();
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+        return future;
+    }
+
+    //读到执行成功的statement的output时停下，parser和source交给游标关闭，否则读完后关闭
+    static StreamedStatement readStatementStream(DefaultJSONParser parser, Closeable source) {
+        Statement statement = new Statement();
+        boolean handedOff = false;
+        try {
+            JsonStreamUtils.beginObject(parser);
+            String key;
+            while ((key = JsonStreamUtils.nextName(parser)) != null) {
+                if ("id".equals(key)) {
+                    statement.setId(JsonStreamUtils.readString(parser));
+                } else if ("state".equals(key)) {
+                    statement.setState(JsonStreamUtils.readString(parser));
+                } else if ("progress".equals(key)) {
+                    statement.setProgress(JsonStreamUtils.readDouble(parser, 0));
+                } else if ("started".equals(key)) {
+                    statement.setStarted(JsonStreamUtils.readLong(parser, 0));
+                } else if ("completed".equals(key)) {
+                    statement.setCompleted(JsonStreamUtils.readLong(parser, 0));
+                } else if ("output".equals(key) && !JsonStreamUtils.isNull(parser)
+                        && statement.getStatementState() == StatementState.AVAILABLE) {
+                    handedOff = true;
+                    try {
+                        return new StreamedStatement(statement, new ResultCursor(parser, source, true), null);
+                    } catch (SQLException e) {
+                        return new StreamedStatement(statement, null, e);
+                    }
+                } else {
+                    JsonStreamUtils.skipValue(parser);
+                }
+            }
+            return new StreamedStatement(statement, null, null);
+        } finally {
+            if (!handedOff) {
+                JsonStreamUtils.close(parser);
+                try {
+                    source.close();
+                } catch (IOException e) {
+                    log.debug("close statement response error:{}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    //submit statement async，返回提交时的状态
+    public CompletableFuture<Statement> submitStatementAsync(String sessionId, String code_, String kind) {
+        Request request = submitStatementRequest(sessionId, code_, kind);
+        return callAsync(request, "execute statement exception: ", responseBody -> decode(responseBody, Statement.class));
+    }
+
+    //get statement async
+    public CompletableFuture<Statement> getStatementAsync(String sessionId, String statementId) {
+        Request request = getStatementRequest(sessionId, statementId);
+        return callAsync(request, "get statement exception: ", responseBody -> decode(responseBody, Statement.class));
+    }
+
+    //list statements async，只取[from, from + size)范围内的statement，只读取withOutput中的statement的output
+    public CompletableFuture<ListStatementResponse> listStatementsAsync(String sessionId, int from, int size,
+                                                                      Set<String> withOutput) {
+        Request request = listStatementsRequest(sessionId, from, size);
+        return callAsync(request, "list statements exception: ", responseBody -> {
+            long receivedTime = System.currentTimeMillis();
+            ListStatementResponse response = readStatements(open(responseBody), withOutput);
+            response.setReceivedTime(receivedTime);
+            return response;
+        });
+    }
+
+    //提交statement的请求
+    Request submitStatementRequest(String sessionId, String code_, String kind) {
+        //只有两个字段，直接拼接，不经过JSONObject
+        String body = "{\"code\":" + JSON.toJSONString(code_)
+                + ",\"kind\":" + JSON.toJSONString(kind) + "}";
+        return new Request.Builder()
+                .url(urlsOf(sessionId).statements)
+                .post(RequestBody.create(JSON_TYPE, body))
                 .header("X-Requested-By", "DataQuery")
                 .build();
-        Response response = okHttpClient.newCall(request).execute();
-        String responseContent = response.body().string();
-        int code = response.code();
-        if (!(code >= 200 && code < 300)) {
-            throw new IOException("cancel statement exception: " + responseContent);
+    }
+
+    Request getStatementRequest(String sessionId, String statementId) {
+        return new Request.Builder()
+                .url(urlsOf(sessionId).statements.newBuilder().addPathSegment(statementId).build())
+                .get()
+                .header("X-Requested-By", "DataQuery")
+                .build();
+    }
+
+    private Request cancelStatementRequest(String sessionId, String statementId) {
+        return new Request.Builder()
+                .url(urlsOf(sessionId).statements.newBuilder().addPathSegment(statementId).addPathSegment("cancel").build())
+                .post(EMPTY_BODY)
+                .header("X-Requested-By", "DataQuery")
+                .build();
+    }
+
+    //轮询范围没变时复用上一次的Request
+    Request listStatementsRequest(String sessionId, int from, int size) {
+        SessionUrls urls = urlsOf(sessionId);
+        PollRequest poll = urls.poll;
+        if (poll == null || !poll.matches(from, size)) {
+            poll = new PollRequest(from, size, urls.statements);
+            urls.poll = poll;
         }
+        return poll.request;
     }
 
-    //test
-    public Statement testStatement(String sessionId) throws IOException {
-        return executeStatement(sessionId, "show databases", "sql");
+    private SessionUrls urlsOf(String sessionId) {
+        SessionUrls urls = sessionUrls.get(sessionId);
+        if (urls == null) {
+            urls = sessionUrls.computeIfAbsent(sessionId,
+                    id -> new SessionUrls(sessionsUrl.newBuilder().addPathSegment(id).addPathSegment("statements").build()));
+        }
+        return urls;
     }
 
-    public Statement executeStatementSync(String sessionId, String code_, String kind) throws IOException, SQLException {
-        Statement statement = executeStatement(sessionId, code_, kind);
-        //轮询等待
-        Stopwatch sw = Stopwatch.createStarted();
-        for (; ; ) {
-            Statement queryStatement = getStatement(sessionId, statement.getId());
-            if (!StringUtils.equals(queryStatement.getState(), LivyClient.STATEMENT_WAITING) &&
-                    !StringUtils.equals(queryStatement.getState(), LivyClient.STATEMENT_RUNNING)) {
-                return queryStatement;
+    //session已删除，丢掉缓存的地址
+    void evictSession(String sessionId) {
+        sessionUrls.remove(sessionId);
+    }
+
+    //流式解析statement列表，withOutput之外的output跳过，不读入内存
+    static ListStatementResponse readStatements(Reader reader, Set<String> withOutput) {
+        return readStatements(JsonStreamUtils.open(reader), withOutput);
+    }
+
+    static ListStatementResponse readStatements(DefaultJSONParser parser, Set<String> withOutput) {
+        try {
+            ListStatementResponse response = new ListStatementResponse();
+            List<Statement> statements = new ArrayList<>();
+            JsonStreamUtils.beginObject(parser);
+            String key;
+            while ((key = JsonStreamUtils.nextName(parser)) != null) {
+                if ("total_statements".equals(key)) {
+                    response.setTotal_statements((int) JsonStreamUtils.readLong(parser, 0));
+                } else if ("statements".equals(key) && !JsonStreamUtils.isNull(parser)) {
+                    JsonStreamUtils.beginArray(parser);
+                    while (JsonStreamUtils.hasNextElement(parser)) {
+                        statements.add(readStatement(parser, withOutput));
+                    }
+                } else {
+                    JsonStreamUtils.skipValue(parser);
+                }
             }
-            //超时处理
-            long elapsed = sw.elapsed(TimeUnit.SECONDS);
-            if (elapsed > QUERY_TIMEOUT) {
-                log.error("execute statement timeout,livy session id:{},statement id:{},code:{}", sessionId, statement.getId(), code_);
-                throw new SQLException("query timeout(s) : " + QUERY_TIMEOUT);
+            response.setStatements(statements);
+            return response;
+        } finally {
+            JsonStreamUtils.close(parser);
+        }
+    }
+
+    private static Statement readStatement(DefaultJSONParser parser, Set<String> withOutput) {
+        Statement statement = new Statement();
+        JsonStreamUtils.beginObject(parser);
+        String key;
+        while ((key = JsonStreamUtils.nextName(parser)) != null) {
+            if ("id".equals(key)) {
+                statement.setId(JsonStreamUtils.readString(parser));
+            } else if ("state".equals(key)) {
+                statement.setState(JsonStreamUtils.readString(parser));
+            } else if ("progress".equals(key)) {
+                statement.setProgress(JsonStreamUtils.readDouble(parser, 0));
+            } else if ("started".equals(key)) {
+                statement.setStarted(JsonStreamUtils.readLong(parser, 0));
+            } else if ("completed".equals(key)) {
+                statement.setCompleted(JsonStreamUtils.readLong(parser, 0));
+            } else if ("output".equals(key) && withOutput.contains(statement.getId())) {
+                statement.setOutput(parser.parseObject(Statement.Output.class));
+            } else {
+                JsonStreamUtils.skipValue(parser);
             }
-            try {
-                Thread.sleep(200);
-            } catch (Exception e) {
+        }
+        return statement;
+    }
+
+    //list session async
+    public CompletableFuture<ListSessionResponse> listSessionAsync(int from, int size) {
+        PollRequest poll = listSessionRequest;
+        if (poll == null || !poll.matches(from, size)) {
+            poll = new PollRequest(from, size, sessionsUrl);
+            listSessionRequest = poll;
+        }
+        return callAsync(poll.request, "list session exception: ", responseBody -> decode(responseBody, ListSessionResponse.class));
+    }
+
+    public SessionStateWatcher getSessionStateWatcher() {
+        return sessionStateWatcher;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public EndpointHealth getHealth() {
+        return health;
+    }
+
+    public TraceSink getTraceSink() {
+        return traceSink;
+    }
+
+    //设置后每个查询生成一条trace，null关闭
+    public void setTraceSink(TraceSink traceSink) {
+        this.traceSink = traceSink;
+    }
+
+    public StatementPoller getStatementPoller() {
+        return statementPoller;
+    }
+
+    public void close() {
+        statementPoller.close();
+        sessionStateWatcher.close();
+    }
+
+    //同步请求，成功时用decoder直接从响应流解析
+    private <T> T call(Request request, String errorMessage, ResponseDecoder<T> decoder) throws IOException {
+        try (Response response = okHttpClient.newCall(request).execute()) {
+            int code = response.code();
+            if (!(code >= 200 && code < 300)) {
+                throw new IOException(errorMessage + response.body().string());
+            }
+            return decoder.decode(response.body());
+        }
+    }
+
+    //基于okhttp enqueue的异步请求，成功时用decoder直接从响应流解析
+    private <T> CompletableFuture<T> callAsync(Request request, String errorMessage, ResponseDecoder<T> decoder) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        okHttpClient.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                future.completeExceptionally(e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try (ResponseBody responseBody = response.body()) {
+                    int code = response.code();
+                    if (!(code >= 200 && code < 300)) {
+                        future.completeExceptionally(new IOException(errorMessage + responseBody.string()));
+                    } else {
+                        future.complete(decoder.decode(responseBody));
+                    }
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+        return future;
+    }
+
+    interface ResponseDecoder<T> {
+        T decode(ResponseBody responseBody) throws IOException;
+    }
+
+    //直接从响应流解析，不生成整个响应的String
+    static <T> T decode(ResponseBody responseBody, Class<T> type) throws IOException {
+        DefaultJSONParser parser = open(responseBody);
+        try {
+            return parser.parseObject(type);
+        } finally {
+            JsonStreamUtils.close(parser);
+        }
+    }
+
+    /**
+     * 长度已知的小响应读入线程内复用的缓冲区，省掉InputStreamReader每次分配的8k缓冲；
+     * 大响应或长度未知的按流读取。
+     * fastjson基于char[]、byte[]的解析内部仍会先转成String，所以两种都走Reader的词法分析。
+     */
+    static DefaultJSONParser open(ResponseBody responseBody) throws IOException {
+        long contentLength = responseBody.contentLength();
+        if (contentLength < 0 || contentLength > MAX_DECODE_BUFFER) {
+            return JsonStreamUtils.open(responseBody.charStream());
+        }
+        int length = (int) contentLength;
+        byte[] bytes = DECODE_BYTES.get();
+        if (bytes.length < length) {
+            bytes = new byte[length];
+            DECODE_BYTES.set(bytes);
+        }
+        try (InputStream in = responseBody.byteStream()) {
+            int offset = 0;
+            while (offset < length) {
+                int n = in.read(bytes, offset, length - offset);
+                if (n == -1) {
+                    throw new EOFException("response body shorter than content length : " + contentLength);
+                }
+                offset += n;
             }
         }
+        //utf-8解码后的字符数不会超过字节数
+        char[] chars = DECODE_CHARS.get();
+        if (chars.length < length) {
+            chars = new char[length];
+            DECODE_CHARS.set(chars);
+        }
+        CharsetDecoder decoder = UTF8_DECODER.get().reset();
+        CharBuffer out = CharBuffer.wrap(chars);
+        CoderResult result = decoder.decode(ByteBuffer.wrap(bytes, 0, length), out, true);
+        if (result.isError()) {
+            result.throwException();
+        }
+        decoder.flush(out);
+        return JsonStreamUtils.open(chars, out.position());
+    }
+
+    //单个statement的状态，结束时带上从同一个响应继续读取的结果游标，结果是错误时带上error
+    static class StreamedStatement {
+        private final Statement statement;
+        private final ResultCursor cursor;
+        private final SQLException error;
+
+        private StreamedStatement(Statement statement, ResultCursor cursor, SQLException error) {
+            this.statement = statement;
+            this.cursor = cursor;
+            this.error = error;
+        }
+
+        Statement getStatement() {
+            return statement;
+        }
+
+        ResultCursor getCursor() {
+            return cursor;
+        }
+
+        SQLException getError() {
+            return error;
+        }
+    }
+
+    //session的statements地址，以及最近一次轮询的请求
+    private static class SessionUrls {
+        private final HttpUrl statements;
+        private volatile PollRequest poll;
+
+        private SessionUrls(HttpUrl statements) {
+            this.statements = statements;
+        }
+    }
+
+    //带from、size的分页请求，Request不可变，可以重复发送
+    private static class PollRequest {
+        private final int from;
+        private final int size;
+        private final Request request;
+
+        private PollRequest(int from, int size, HttpUrl url) {
+            this.from = from;
+            this.size = size;
+            this.request = new Request.Builder()
+                    .url(url.newBuilder()
+                            .addQueryParameter("from", String.valueOf(from))
+                            .addQueryParameter("size", String.valueOf(size))
+                            .build())
+                    .get()
+                    .header("X-Requested-By", "DataQuery")
+                    .build();
+        }
+
+        private boolean matches(int from, int size) {
+            return this.from == from && this.size == size;
+        }
+    }
+
+    static Throwable unwrap(Throwable e) {
+        if (e instanceof CompletionException && e.getCause() != null) {
+            return e.getCause();
+        }
+        return e;
     }
 }
@@ -0,0 +1,79 @@
+package io.vergil.livy.sessionpool;
+
+import io.vergil.livy.sessionpool.trace.TraceSink;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * 多个livy之间分配新session：优先健康的livy，按活着的session数和请求耗时选负载最低的。
+ * <p>
+ * 已创建的session固定在所属的livy上(Session.livyClient)，只有新session参与分配。
+ */
+public class LivyEndpointBalancer {
+    //耗时每多这么多毫秒，相当于多一个session的负载
+    public static final double LATENCY_PER_SESSION = 200;
+
+    private final List<LivyClient> livyClients;
+
+    public LivyEndpointBalancer(List<String> urls) {
+        if (urls == null || urls.isEmpty()) {
+            throw new IllegalArgumentException("livy urls is empty");
+        }
+        this.livyClients = Collections.unmodifiableList(urls.stream()
+                .map(LivyClient::new)
+                .collect(Collectors.toList()));
+    }
+
+    public LivyEndpointBalancer(LivyClient livyClient) {
+        this.livyClients = Collections.singletonList(livyClient);
+    }
+
+    public List<LivyClient> getLivyClients() {
+        return livyClients;
+    }
+
+    //按优先顺序返回所有livy，第一个失败时依次尝试后面的
+    public List<LivyClient> candidates() {
+        if (livyClients.size() == 1) {
+            return livyClients;
+        }
+        List<LivyClient> candidates = new ArrayList<>(livyClients);
+        candidates.sort(Comparator.comparing((LivyClient c) -> !isAvailable(c))
+                .thenComparingDouble(LivyEndpointBalancer::load));
+        return candidates;
+    }
+
+    //负载最低的健康livy
+    public LivyClient select() {
+        return candidates().get(0);
+    }
+
+    //所有livy上开启查询trace
+    public void setTraceSink(TraceSink traceSink) {
+        for (LivyClient livyClient : livyClients) {
+            livyClient.setTraceSink(traceSink);
+        }
+    }
+
+    public void close() {
+        for (LivyClient livyClient : livyClients) {
+            livyClient.close();
+        }
+    }
+
+    //请求健康，创建session没有熔断，且状态表能正常刷新
+    static boolean isAvailable(LivyClient livyClient) {
+        return livyClient.getHealth().isHealthy()
+                && livyClient.getHealth().allows(EndpointHealth.CREATE_SESSION_OPERATION)
+                && livyClient.getSessionStateWatcher().isFresh();
+    }
+
+    static double load(LivyClient livyClient) {
+        return livyClient.getSessionStateWatcher().getNumLiveSessions()
+                + livyClient.getHealth().getLatencyMillis() / LATENCY_PER_SESSION;
+    }
+}
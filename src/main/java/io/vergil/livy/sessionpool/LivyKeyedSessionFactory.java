@@ -0,0 +1,98 @@
+package io.vergil.livy.sessionpool;
+
+import io.vergil.livy.sessionpool.model.Session;
+import org.apache.commons.pool2.BaseKeyedPooledObjectFactory;
+import org.apache.commons.pool2.PooledObject;
+import org.apache.commons.pool2.impl.DefaultPooledObject;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 多配置session工厂，key为资源配置+用户，每个key委托给一个LivySessionFactory。
+ * <p>
+ * session名称带配置指纹，每个key只接管、清理自己配置之前留下的session，互不干扰。
+ */
+public class LivyKeyedSessionFactory extends BaseKeyedPooledObjectFactory<SessionProfile, Session> {
+    private final LivyEndpointBalancer balancer;
+    private final Map<SessionProfile, LivySessionFactory> factories = new ConcurrentHashMap<>();
+    //每个key一把锁，恢复时的http请求只阻塞同一个key
+    private final Map<SessionProfile, Object> recoverLocks = new ConcurrentHashMap<>();
+
+    public LivyKeyedSessionFactory(String url) {
+        this(new LivyClient(url));
+    }
+
+    //多个livy，新session分配到负载最低的livy上
+    public LivyKeyedSessionFactory(List<String> urls) {
+        this(new LivyEndpointBalancer(urls));
+    }
+
+    public LivyKeyedSessionFactory(LivyClient livyClient) {
+        this(new LivyEndpointBalancer(livyClient));
+    }
+
+    public LivyKeyedSessionFactory(LivyEndpointBalancer balancer) {
+        this.balancer = balancer;
+    }
+
+    public LivyClient getLivyClient() {
+        return balancer.getLivyClients().get(0);
+    }
+
+    public LivyEndpointBalancer getBalancer() {
+        return balancer;
+    }
+
+    /**
+     * 接管key配置之前留下的session，返回可以马上接管的数量。
+     * 每个key只在第一次用到时恢复一次，之后返回0。
+     */
+    public int recoverPastSessions(SessionProfile key) {
+        synchronized (recoverLocks.computeIfAbsent(key, k -> new Object())) {
+            if (factories.containsKey(key)) {
+                return 0;
+            }
+            LivySessionFactory factory = new LivySessionFactory(balancer, key, true);
+            int ready = factory.recoverPastSessions();
+            factories.put(key, factory);
+            return ready;
+        }
+    }
+
+    //停止所有livy的状态表刷新和statement轮询
+    public void close() {
+        factories.clear();
+        balancer.close();
+    }
+
+    private LivySessionFactory factoryOf(SessionProfile key) {
+        LivySessionFactory factory = factories.get(key);
+        if (factory == null) {
+            recoverPastSessions(key);
+            factory = factories.get(key);
+        }
+        return factory;
+    }
+
+    @Override
+    public Session create(SessionProfile key) throws Exception {
+        return factoryOf(key).create();
+    }
+
+    @Override
+    public PooledObject<Session> wrap(Session session) {
+        return new DefaultPooledObject<>(session);
+    }
+
+    @Override
+    public void destroyObject(SessionProfile key, PooledObject<Session> p) throws Exception {
+        factoryOf(key).destroyObject(p);
+    }
+
+    @Override
+    public boolean validateObject(SessionProfile key, PooledObject<Session> p) {
+        return factoryOf(key).validateObject(p);
+    }
+}
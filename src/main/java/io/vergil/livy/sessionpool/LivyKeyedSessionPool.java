@@ -0,0 +1,94 @@
+package io.vergil.livy.sessionpool;
+
+import io.vergil.livy.sessionpool.model.Session;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.pool2.KeyedPooledObjectFactory;
+import org.apache.commons.pool2.impl.GenericKeyedObjectPool;
+import org.apache.commons.pool2.impl.GenericKeyedObjectPoolConfig;
+
+/**
+ * 多配置session池，key为资源配置+用户。
+ * <p>
+ * maxTotalPerKey限制每个配置的session数量，maxTotal限制所有配置的session总数。
+ * 借用时由SessionProfileRouter按查询需要的资源选择满足需求的最小配置。
+ */
+@Slf4j
+public class LivyKeyedSessionPool extends GenericKeyedObjectPool<SessionProfile, Session> {
+    private static GenericKeyedObjectPoolConfig<Session> defaultPoolConfig = new GenericKeyedObjectPoolConfig<>();
+
+    static {
+        defaultPoolConfig.setMaxIdlePerKey(2);
+        defaultPoolConfig.setMaxTotalPerKey(5);
+        defaultPoolConfig.setMaxTotal(10);
+        defaultPoolConfig.setFairness(true);
+        defaultPoolConfig.setMaxWaitMillis(2000);
+    }
+
+    private final SessionProfileRouter router;
+
+    public LivyKeyedSessionPool(KeyedPooledObjectFactory<SessionProfile, Session> factory, SessionProfileRouter router) {
+        this(factory, defaultPoolConfig, router);
+    }
+
+    public LivyKeyedSessionPool(KeyedPooledObjectFactory<SessionProfile, Session> factory,
+                                GenericKeyedObjectPoolConfig<Session> config,
+                                SessionProfileRouter router) {
+        super(factory, config);
+        this.router = router;
+        adoptPastSessions();
+    }
+
+    //按路由里的配置接管之前留下的session，其他用户的key在第一次创建时接管
+    private void adoptPastSessions() {
+        if (!(getFactory() instanceof LivyKeyedSessionFactory)) {
+            return;
+        }
+        LivyKeyedSessionFactory factory = (LivyKeyedSessionFactory) getFactory();
+        for (SessionProfile profile : router.getProfiles()) {
+            int adopt = factory.recoverPastSessions(profile);
+            if (getMaxIdlePerKey() >= 0) {
+                adopt = Math.min(adopt, getMaxIdlePerKey());
+            }
+            if (getMaxTotalPerKey() >= 0) {
+                adopt = Math.min(adopt, getMaxTotalPerKey());
+            }
+            for (int i = 0; i < adopt; i++) {
+                try {
+                    addObject(profile);
+                } catch (Exception e) {
+                    log.error("adopt past session error,profile:{},error:{}", profile, e.getMessage());
+                    break;
+                }
+            }
+        }
+    }
+
+    public SessionProfileRouter getRouter() {
+        return router;
+    }
+
+    //按查询需要的资源借用session
+    public Session borrowObject(String user, QueryResources resources) throws Exception {
+        SessionProfile key = router.route(user, resources);
+        log.debug("route query resources:{} to profile:{}", resources, key);
+        long start = System.currentTimeMillis();
+        Session session = borrowObject(key);
+        session.setBorrowStart(start);
+        session.setBorrowEnd(System.currentTimeMillis());
+        return session;
+    }
+
+    //归还session，key取session创建时的配置
+    public void returnObject(Session session) {
+        returnObject(session.getProfile(), session);
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        //停止状态表刷新和statement轮询
+        if (getFactory() instanceof LivyKeyedSessionFactory) {
+            ((LivyKeyedSessionFactory) getFactory()).close();
+        }
+    }
+}
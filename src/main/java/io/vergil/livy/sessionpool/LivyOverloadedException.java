@@ -0,0 +1,19 @@
+package io.vergil.livy.sessionpool;
+
+import java.io.IOException;
+
+/**
+ * livy或池子过载时的快速拒绝，调用方可以在retryAfterMillis之后重试。
+ */
+public class LivyOverloadedException extends IOException {
+    private final long retryAfterMillis;
+
+    public LivyOverloadedException(String message, long retryAfterMillis) {
+        super(message);
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
@@ -0,0 +1,211 @@
+package io.vergil.livy.sessionpool;
+
+import io.vergil.livy.sessionpool.model.Session;
+import io.vergil.livy.sessionpool.model.Statement;
+import io.vergil.livy.sessionpool.utils.SqlUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 查询入口：从session池借session执行statement，执行完归还。
+ * <p>
+ * 配置了结果缓存时，只读查询先查缓存，命中时不借用session；
+ * 写操作执行成功后按涉及的表失效缓存。
+ * <p>
+ * 相同的只读查询正在执行时，后来的请求直接等待同一个结果，不再借用session重复执行。
+ * <p>
+ * 开启共用后，轻量查询排到共用session上执行，重的查询仍然独占session。
+ */
+@Slf4j
+public class LivyQueryExecutor {
+    private final LivySessionPool pool;
+    private volatile StatementResultCache resultCache;
+    private volatile boolean coalescing = true;
+    //执行中的只读查询，key为kind+规范化后的sql
+    private final Map<String, CompletableFuture<Statement>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong coalescedCount = new AtomicLong(0);
+    private volatile SessionMultiplexer multiplexer;
+
+    public LivyQueryExecutor(LivySessionPool pool) {
+        this.pool = pool;
+    }
+
+    public LivySessionPool getPool() {
+        return pool;
+    }
+
+    public StatementResultCache getResultCache() {
+        return resultCache;
+    }
+
+    public void setResultCache(StatementResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    public boolean isCoalescing() {
+        return coalescing;
+    }
+
+    //是否合并同时执行的相同只读查询，默认开启
+    public void setCoalescing(boolean coalescing) {
+        this.coalescing = coalescing;
+    }
+
+    public SessionMultiplexer getMultiplexer() {
+        return multiplexer;
+    }
+
+    //开启共用：每个共用session上最多depth个statement，最多maxSharedSessions个session同时共用
+    public synchronized void enableMultiplexing(int depth, int maxSharedSessions) {
+        if (multiplexer == null) {
+            multiplexer = new SessionMultiplexer(pool, depth, maxSharedSessions);
+        }
+    }
+
+    //合并到其他请求结果上的次数
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    public Statement execute(String code_, String kind) throws IOException, SQLException {
+        return executeUntil(code_, kind, LivyClient.defaultDeadline());
+    }
+
+    //timeout覆盖借用session、提交和等待结果，超时后取消livy上的statement，确认取消后再归还session
+    public Statement execute(String code_, String kind, long timeout, TimeUnit unit) throws IOException, SQLException {
+        return executeUntil(code_, kind, System.currentTimeMillis() + unit.toMillis(timeout));
+    }
+
+    private Statement executeUntil(String code_, String kind, long deadline) throws IOException, SQLException {
+        StatementResultCache cache = resultCache;
+        boolean cacheable = cache != null && cache.isCacheable(code_, kind);
+        if (cacheable) {
+            Statement cached = cache.get(code_, kind);
+            if (cached != null) {
+                log.debug("statement result cache hit:{}", code_);
+                return cached;
+            }
+        }
+        if (coalescing && StringUtils.equals(kind, "sql") && SqlUtils.isReadOnly(code_)) {
+            return executeCoalesced(code_, kind, cache, deadline);
+        }
+        Statement statement = executeOnPool(code_, kind, deadline);
+        if (cacheable) {
+            cache.put(code_, kind, statement);
+        } else if (cache != null && StringUtils.equals(kind, "sql") && StatementResultCache.isSuccess(statement)) {
+            //写操作，失效相关表的缓存
+            for (String table : SqlUtils.extractTables(code_)) {
+                cache.invalidateTable(table);
+            }
+        }
+        return statement;
+    }
+
+    private Statement executeCoalesced(String code_, String kind, StatementResultCache cache, long deadline) throws IOException, SQLException {
+        String key = kind + ":" + SqlUtils.normalize(code_);
+        CompletableFuture<Statement> future = new CompletableFuture<>();
+        CompletableFuture<Statement> existing;
+        while ((existing = inFlight.putIfAbsent(key, future)) != null) {
+            coalescedCount.incrementAndGet();
+            log.debug("coalesce statement with in-flight one:{}", code_);
+            try {
+                //只按自己的deadline等待，超时不影响正在执行的请求
+                return LivyClient.await(existing, deadline);
+            } catch (SQLException e) {
+                //领头的请求因为自己的deadline、中断失败，自己还有时间时重新执行
+                if (!isLeaderOnly(e) || Thread.currentThread().isInterrupted()
+                        || System.currentTimeMillis() >= deadline) {
+                    throw e;
+                }
+                log.debug("retry coalesced statement after leader failed:{},error:{}", code_, e.getMessage());
+                inFlight.remove(key, existing);
+            }
+        }
+        try {
+            Statement statement = executeOnPool(code_, kind, deadline);
+            //先放缓存再移出执行中，保证后来的请求能命中其中之一
+            if (cache != null) {
+                cache.put(code_, kind, statement);
+            }
+            future.complete(statement);
+            return statement;
+        } catch (IOException | SQLException | RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    //只跟领头请求自身有关的失败：超时、中断、取消
+    private static boolean isLeaderOnly(SQLException e) {
+        if (e instanceof SQLTimeoutException) {
+            return true;
+        }
+        for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof InterruptedException || cause instanceof CancellationException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Statement executeOnPool(String code_, String kind, long deadline) throws IOException, SQLException {
+        SessionMultiplexer current = multiplexer;
+        if (current != null && current.accepts(code_, kind)) {
+            Statement statement = current.execute(code_, kind, deadline);
+            if (statement != null) {
+                return statement;
+            }
+            //共用session都已排满，独占一个session
+        }
+        long wait = deadline - System.currentTimeMillis();
+        if (wait <= 0) {
+            throw new SQLTimeoutException("query deadline exceeded before borrow");
+        }
+        Session session;
+        try {
+            //sql优先分配到预热时缓存过相关表的session，借用最多等到deadline
+            session = StringUtils.equals(kind, "sql")
+                    ? pool.borrowObject(SqlUtils.extractTables(code_), wait)
+                    : pool.borrowObject(wait);
+        } catch (LivyOverloadedException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new SQLException("borrow livy session error : " + e.getMessage(), e);
+        }
+        try {
+            //超时或中断时statement在后台取消，调用方不用等待取消确认
+            return session.executeStatementSync(code_, kind, deadline);
+        } finally {
+            release(session);
+        }
+    }
+
+    //statement在livy上结束后归还，取消未确认时销毁，避免下一个查询排在还没结束的statement后面
+    private void release(Session session) {
+        session.getLivyClient().awaitSettled(session.getId()).whenComplete((v, e) -> {
+            try {
+                if (e == null) {
+                    pool.returnObject(session);
+                } else {
+                    log.warn("invalidate livy session with unconfirmed cancel : {}, error : {}",
+                            session.getId(), LivyClient.unwrap(e).getMessage());
+                    pool.invalidateObject(session);
+                }
+            } catch (Exception e2) {
+                log.error("release livy session error,id:{},error:{}", session.getId(), e2.getMessage());
+            }
+        });
+    }
+}
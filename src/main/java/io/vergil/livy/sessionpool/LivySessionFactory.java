@@ -1,32 +1,54 @@
 package io.vergil.livy.sessionpool;
 
-import com.google.common.base.Stopwatch;
+import io.vergil.livy.sessionpool.metrics.LivyMetrics;
 import io.vergil.livy.sessionpool.model.Session;
+import io.vergil.livy.sessionpool.model.SessionState;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.pool2.BasePooledObjectFactory;
 import org.apache.commons.pool2.PooledObject;
 import org.apache.commons.pool2.impl.DefaultPooledObject;
 
 import java.io.IOException;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 @Slf4j
 public class LivySessionFactory extends BasePooledObjectFactory<Session> {
-    private String sessionUser;
-    private String sessionDriverMemory;
-    private int sessionDriverCores;
-    private String sessionExecutorMemory;
-    private int sessionExecutorCores;
-    private int sessionMinExecutors;
-    private int sessionMaxExecutors;
-    private String sessionQueue;
+    private static final int RECOVER_THREADS = 8;
+    private static final int RECOVER_TIMEOUT = 60;
+    //默认不限制同时创建的数量
+    public static final int DEFAULT_MAX_CONCURRENT_CREATES = 0;
+    //创建耗时EWMA的平滑系数
+    private static final double CREATE_ALPHA = 0.2;
+    private SessionProfile profile;
     private LivyClient livyClient;
-    private LinkedList<Session> pastSessions;
+    private LivyEndpointBalancer balancer;
+    //之前留下的、配置一致的session，可以直接接管；恢复后ready的排在前面
+    private Queue<Session> pastSessions;
+    //之前留下的、配置不一致的session，恢复时删除
+    private Queue<Session> staleSessions;
+    //新session进入池子前的预热步骤
+    private volatile SessionWarmup warmup;
+    //同时创建session的上限，超过时快速拒绝，不再排队等待livy、yarn；小于等于0不限制
+    private volatile int maxConcurrentCreates = DEFAULT_MAX_CONCURRENT_CREATES;
+    private volatile Semaphore createPermits;
+    private volatile double createMillis = 60_000;
 
     public LivySessionFactory(String url,
                               String user,
@@ -37,59 +59,278 @@ public class LivySessionFactory extends BasePooledObjectFactory<Session> {
                               int minExecutors,
                               int maxExecutors,
                               String queue) {
-        this.sessionUser = user;
-        this.sessionDriverCores = driverCores;
-        this.sessionDriverMemory = driverMemory;
-        this.sessionExecutorCores = executorCores;
-        this.sessionExecutorMemory = executorMemory;
-        this.sessionMinExecutors = minExecutors;
-        this.sessionMaxExecutors = maxExecutors;
-        this.sessionQueue = queue;
-        this.livyClient = new LivyClient(url);
+        this(url, new SessionProfile(user, driverMemory, driverCores, executorMemory, executorCores,
+                minExecutors, maxExecutors, queue));
+    }
+
+    public LivySessionFactory(String url, SessionProfile profile) {
+        this(new LivyClient(url), profile, true);
+    }
+
+    //多个livy，新session分配到负载最低的livy上
+    public LivySessionFactory(List<String> urls, SessionProfile profile) {
+        this(new LivyEndpointBalancer(urls), profile, true);
+    }
+
+    //adoptPastSessions为false时不接管之前的session，比如共享session由租约管理
+    LivySessionFactory(LivyClient livyClient, SessionProfile profile, boolean adoptPastSessions) {
+        this(new LivyEndpointBalancer(livyClient), profile, adoptPastSessions);
+    }
+
+    LivySessionFactory(LivyEndpointBalancer balancer, SessionProfile profile, boolean adoptPastSessions) {
+        this.profile = profile;
+        this.balancer = balancer;
+        this.livyClient = balancer.getLivyClients().get(0);
+        if (!adoptPastSessions) {
+            return;
+        }
         //init
         //get previous session from livy
+        pastSessions = new ConcurrentLinkedQueue<>();
+        staleSessions = new ConcurrentLinkedQueue<>();
+        String namePrefix = LivyClient.sessionNamePrefix(profile);
+        for (LivyClient client : balancer.getLivyClients()) {
+            try {
+                List<Session> sessionList = client.listSession().getSessions().stream()
+                        .filter(session -> session != null)
+                        .filter(session -> session.getName() != null)
+                        .filter(session -> session.getName().startsWith(LivyClient.NAME_PREFIX))
+                        .collect(Collectors.toList());
+                for (Session session : sessionList) {
+                    session.setLivyClient(client);
+                    session.setProfile(profile);
+                    if (session.getName().startsWith(namePrefix)
+                            && StringUtils.equals(session.getProxyUser(), profile.getUser())) {
+                        pastSessions.add(session);
+                    } else if (session.getName().startsWith(namePrefix)) {
+                        //用户不一致
+                        staleSessions.add(session);
+                    } else if (session.getName().indexOf('.', LivyClient.NAME_PREFIX.length()) < 0) {
+                        //名称里没有配置指纹的旧session，可能是其他用法创建的，只记录不删除
+                        log.warn("skip legacy livy session without profile fingerprint : {}, name : {}, url : {}",
+                                session.getId(), session.getName(), client.getUrl());
+                    }
+                    //其他指纹属于本机其他配置的池子，留给它们接管
+                }
+            } catch (Exception e) {
+                log.error("init livy session error,url:{},error:{}", client.getUrl(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 启动时并行校验之前留下的session：重新查询状态，空闲、忙碌的留待接管，启动中的排在后面，
+     * 失效的和配置不一致的批量删除。返回可以马上接管的session数量。
+     */
+    public int recoverPastSessions() {
+        if (pastSessions == null) {
+            return 0;
+        }
+        List<Session> candidates = drain(pastSessions);
+        List<Session> stale = drain(staleSessions);
+        if (candidates.isEmpty() && stale.isEmpty()) {
+            return 0;
+        }
+        long start = System.currentTimeMillis();
+        //多个livy上的session id可能相同，按对象区分
+        Map<Session, SessionState> states = Collections.synchronizedMap(new IdentityHashMap<>());
+        AtomicInteger deleted = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(RECOVER_THREADS, candidates.size() + stale.size()),
+                new ThreadFactoryBuilder().setNameFormat("livy-recover-%d").setDaemon(true).build());
+        List<CompletableFuture<Void>> tasks = new ArrayList<>();
+        for (Session session : candidates) {
+            tasks.add(CompletableFuture.runAsync(() -> {
+                SessionState state = currentState(session);
+                if (state == null || state == SessionState.UNKNOWN) {
+                    //已经不存在，或者状态未知，不接管也不删除
+                    return;
+                }
+                if (state.isLive() && state != SessionState.SHUTTING_DOWN) {
+                    states.put(session, state);
+                } else if (deletePast(session)) {
+                    deleted.incrementAndGet();
+                }
+            }, executor));
+        }
+        for (Session session : stale) {
+            tasks.add(CompletableFuture.runAsync(() -> {
+                if (deletePast(session)) {
+                    deleted.incrementAndGet();
+                }
+            }, executor));
+        }
         try {
-            List<Session> sessionList = livyClient.listSession().getSessions().stream()
-                    .filter(session -> session != null)
-                    .filter(session -> session.getName() != null)
-                    .filter(session -> session.getName().startsWith(LivyClient.NAME_PREFIX))
-                    .map(session -> {
-                        session.setLivyClient(livyClient);
-                        return session;
-                    }).collect(Collectors.toList());
-            pastSessions = new LinkedList<>(sessionList);
-        } catch (Exception e) {
-            log.error("init livy session error : {}", e.getMessage());
-            e.printStackTrace();
+            CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0])).get(RECOVER_TIMEOUT, TimeUnit.SECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            log.error("recover past livy sessions error:{}", e.toString());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+        //ready的排在前面，启动中的借用时再由validate等待
+        int ready = 0;
+        for (Session session : candidates) {
+            SessionState state = states.get(session);
+            if (state != null && state.isUsable()) {
+                pastSessions.add(session);
+                ready++;
+            }
+        }
+        for (Session session : candidates) {
+            SessionState state = states.get(session);
+            if (state != null && !state.isUsable()) {
+                pastSessions.add(session);
+            }
+        }
+        log.info("recover past livy sessions,ready:{},starting:{},deleted:{},cost(ms):{}",
+                ready, pastSessions.size() - ready, deleted.get(), System.currentTimeMillis() - start);
+        return ready;
+    }
+
+    //查询session当前状态，不存在返回null
+    private SessionState currentState(Session session) {
+        try {
+            Session current = clientOf(session).getSession(session.getId());
+            if (current == null) {
+                return null;
+            }
+            session.setState(current.getState());
+            return session.getSessionState();
+        } catch (IOException e) {
+            log.error("recover past livy session error,id:{},error:{}", session.getId(), e.getMessage());
+            return SessionState.UNKNOWN;
+        }
+    }
+
+    private boolean deletePast(Session session) {
+        try {
+            clientOf(session).deleteSession(session.getId());
+            log.info("delete past livy session : {}, name : {}, state : {}", session.getId(), session.getName(), session.getState());
+            return true;
+        } catch (IOException e) {
+            log.error("delete past livy session error,id:{},error:{}", session.getId(), e.getMessage());
+            return false;
         }
     }
 
+    private static List<Session> drain(Queue<Session> queue) {
+        List<Session> sessions = new ArrayList<>();
+        Session session;
+        while ((session = queue.poll()) != null) {
+            sessions.add(session);
+        }
+        return sessions;
+    }
+
+    //还没有接管的之前留下的session数量
+    public int getNumPastSessions() {
+        return pastSessions == null ? 0 : pastSessions.size();
+    }
+
+    public SessionProfile getProfile() {
+        return profile;
+    }
+
+    //第一个livy，多livy时请用getBalancer
+    public LivyClient getLivyClient() {
+        return livyClient;
+    }
+
+    public LivyEndpointBalancer getBalancer() {
+        return balancer;
+    }
+
+    public int getMaxConcurrentCreates() {
+        return maxConcurrentCreates;
+    }
+
+    //需要时开启，小于等于0不限制；正在创建的不受影响
+    public void setMaxConcurrentCreates(int maxConcurrentCreates) {
+        this.maxConcurrentCreates = maxConcurrentCreates;
+        this.createPermits = maxConcurrentCreates > 0 ? new Semaphore(maxConcurrentCreates) : null;
+    }
+
+    public SessionWarmup getWarmup() {
+        return warmup;
+    }
+
+    //只对之后新建的session生效，之前留下的session没有预热记录
+    public void setWarmup(SessionWarmup warmup) {
+        this.warmup = warmup;
+    }
 
     @Override
     public Session create() throws IOException {
         //get from past sessions
-        synchronized (this) {
-            if (CollectionUtils.isNotEmpty(pastSessions)) {
-                Session session = pastSessions.poll();
-                log.info("create session from past : {}", session.getId());
-                return session;
+        Session past = pastSessions == null ? null : pastSessions.poll();
+        if (past != null) {
+            log.info("create session from past : {}", past.getId());
+            return past;
+        }
+        Semaphore permits = createPermits;
+        if (permits == null) {
+            return createNew();
+        }
+        if (!permits.tryAcquire()) {
+            LivyMetrics.get().increment(LivyMetrics.OVERLOAD_REJECTIONS);
+            throw new LivyOverloadedException("too many livy sessions creating : " + maxConcurrentCreates, (long) createMillis);
+        }
+        try {
+            return createNew();
+        } finally {
+            permits.release();
+        }
+    }
+
+    //create new session，负载最低的livy失败时换下一个
+    private Session createNew() throws IOException {
+        Session session = null;
+        LivyClient created = null;
+        IOException error = null;
+        for (LivyClient client : balancer.candidates()) {
+            long start = System.currentTimeMillis();
+            try {
+                session = client.createSession(profile);
+                session.setProfile(profile);
+                created = client;
+                long elapsed = System.currentTimeMillis() - start;
+                LivyMetrics.get().record(LivyMetrics.SESSION_CREATE, elapsed);
+                createMillis += CREATE_ALPHA * (elapsed - createMillis);
+                log.info("create session : {}, url : {}", session.getId(), client.getUrl());
+                break;
+            } catch (IOException e) {
+                LivyMetrics.get().increment(LivyMetrics.SESSION_CREATE_FAILURES);
+                log.error("create session error,url:{},error:{}", client.getUrl(), e.getMessage());
+                error = e;
+            }
+        }
+        if (session == null) {
+            throw error;
+        }
+        //预热失败跟livy无关，不再换下一个livy重试；session直接删除，不进入池子
+        SessionWarmup current = warmup;
+        if (current != null) {
+            try {
+                current.warm(session);
+            } catch (IOException e) {
+                try {
+                    created.deleteSession(session.getId());
+                } catch (IOException deleteError) {
+                    log.error("delete session after warm up error,id:{},error:{}", session.getId(), deleteError.getMessage());
+                    e.addSuppressed(deleteError);
+                }
+                throw e;
             }
         }
-        //create new session
-        Session session = livyClient.createSession(sessionUser,
-                sessionDriverMemory,
-                sessionDriverCores,
-                sessionExecutorMemory,
-                sessionExecutorCores,
-                sessionMinExecutors,
-                sessionMaxExecutors,
-                sessionQueue);
-        log.info("create session : {}", session.getId());
-        //prepare 预热
-        //livyClient.testStatement(session.getId());
         return session;
     }
 
+    //session固定在创建它的livy上
+    private LivyClient clientOf(Session session) {
+        return session.getLivyClient() != null ? session.getLivyClient() : livyClient;
+    }
+
     @Override
     public PooledObject<Session> wrap(Session session) {
         return new DefaultPooledObject<>(session);
@@ -98,61 +339,75 @@ public class LivySessionFactory extends BasePooledObjectFactory<Session> {
     @Override
     public void destroyObject(PooledObject<Session> p) throws Exception {
         super.destroyObject(p);
-        livyClient.deleteSession(p.getObject().getId());
+        clientOf(p.getObject()).deleteSession(p.getObject().getId());
         log.info("delete livy session : {}", p.getObject().getId());
     }
 
-    //校验session有效性
     @Override
     public boolean validateObject(PooledObject<Session> p) {
+        long start = System.currentTimeMillis();
+        boolean valid = validate(p);
+        LivyMetrics.get().record(LivyMetrics.SESSION_VALIDATE, System.currentTimeMillis() - start);
+        if (!valid) {
+            LivyMetrics.get().increment(LivyMetrics.SESSION_VALIDATE_FAILURES);
+        }
+        return valid;
+    }
+
+    //校验session有效性，读取本地状态表，状态表不可信时才请求livy
+    private boolean validate(PooledObject<Session> p) {
         try {
-            Session session = livyClient.getSession(p.getObject().getId());
-            if (session == null) {
+            String sessionId = p.getObject().getId();
+            LivyClient livyClient = clientOf(p.getObject());
+            SessionStateWatcher watcher = livyClient.getSessionStateWatcher();
+            String state;
+            if (watcher.isFresh()) {
+                state = watcher.getState(sessionId);
+            } else {
+                Session session = livyClient.getSession(sessionId);
+                state = session == null ? null : session.getState();
+            }
+            if (state == null) {
                 //session 不存在
-                log.error("validate livy session error:session not exist, id:{}", p.getObject().getId());
+                log.error("validate livy session error:session not exist, id:{}", sessionId);
                 return false;
             }
-            String state = session.getState();
 
             /*********************session 正常情况*****************/
-            if (StringUtils.equals(state, LivyClient.SESSION_IDLE) ||
-                    StringUtils.equals(state, LivyClient.SESSION_BUSY) ||
-                    StringUtils.equals(state, LivyClient.SESSION_SUCCESS)) {
-                log.debug("validate livy session,id:{},state:true", p.getObject().getId());
+            if (SessionState.of(state).isUsable()) {
+                log.debug("validate livy session,id:{},state:true", sessionId);
                 return true;
-            } else if (StringUtils.equals(state, LivyClient.SESSION_STARTING)) {
+            } else if (SessionState.of(state) == SessionState.STARTING) {
                 /*********************session 还在创建*****************/
-                //轮询等待
-                Stopwatch sw = Stopwatch.createStarted();
-                for (; ; ) {
-                    try {
-                        Thread.sleep(2000);
-                        log.info("waiting some time for creating session");
-                    } catch (Exception e) {
-                    }
+                //等待状态表通知
+                log.info("waiting some time for creating session");
+                String state_current;
+                try {
+                    state_current = watcher.awaitState(sessionId, LivyClient::isSessionStarted,
+                            LivyClient.CREATE_SESSION_TIMEOUT, TimeUnit.SECONDS).get();
+                } catch (ExecutionException e) {
                     //超时处理
-                    long elapsed = sw.elapsed(TimeUnit.SECONDS);
-                    if (elapsed > LivyClient.CREATE_SESSION_TIMEOUT) {
-                        log.info("create session timeout(s) : " + LivyClient.CREATE_SESSION_TIMEOUT);
-                        livyClient.deleteSession(session.getId());
-                        log.error("validate livy session,create session timeout,id:{}", p.getObject().getId());
-                        return false;
-                    }
-                    Session session_current = livyClient.getSession(session.getId());
-                    if (org.apache.commons.lang3.StringUtils.equals(session_current.getState(), LivyClient.SESSION_IDLE)) {
-                        log.debug("validate livy session,id:{},state:true", p.getObject().getId());
-                        return true;
-                    } else if (org.apache.commons.lang3.StringUtils.equals(session_current.getState(), LivyClient.SESSION_STARTING)) {
-                        continue;
-                    } else {
-                        livyClient.deleteSession(session.getId());
-                        log.error("validate livy session error,id:{},state:{}", p.getObject().getId(), session_current.getState());
-                        return false;
+                    log.info("create session timeout(s) : " + LivyClient.CREATE_SESSION_TIMEOUT);
+                    livyClient.deleteSession(sessionId);
+                    log.error("validate livy session,create session timeout,id:{}", sessionId);
+                    return false;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                if (SessionState.of(state_current) == SessionState.IDLE) {
+                    log.debug("validate livy session,id:{},state:true", sessionId);
+                    return true;
+                } else {
+                    if (state_current != null) {
+                        livyClient.deleteSession(sessionId);
                     }
+                    log.error("validate livy session error,id:{},state:{}", sessionId, state_current);
+                    return false;
                 }
             } else {
                 /*********************session 其他情况均属异常*****************/
-                log.error("validate livy session error,id:{},state:{}", p.getObject().getId(), state);
+                log.error("validate livy session error,id:{},state:{}", sessionId, state);
                 return false;
             }
         } catch (IOException e) {
@@ -1,30 +1,49 @@
 package io.vergil.livy.sessionpool;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.vergil.livy.sessionpool.metrics.LivyMetrics;
+import io.vergil.livy.sessionpool.model.ListStatementResponse;
 import io.vergil.livy.sessionpool.model.Session;
+import io.vergil.livy.sessionpool.model.Statement;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.pool2.DestroyMode;
+import org.apache.commons.pool2.PooledObject;
 import org.apache.commons.pool2.PooledObjectFactory;
 import org.apache.commons.pool2.impl.AbandonedConfig;
 import org.apache.commons.pool2.impl.GenericObjectPool;
 import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
 
-import java.util.concurrent.atomic.AtomicInteger;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 设计：LivySessionPool使用commons-pool2进行实现
  * <p>
  * <p>
- * TODO 说明
- * LivySessionPool当前设计是单机模式，即每个实例都会创建自己的session pool
- * 1.当前这么做的原因：取数使用人较少，使用资源也较少，单机模式实现最简单
- * 2.缺点：当部署实例较多的时候会浪费很多资源，毕竟livypool有一些资源是闲置状态，实例越多闲置资源越多。
- * 因为请求用户不多，所以线上最多部署两个实例即可。
- * 如果实现多实例共享session pool，实现较为复杂，需要使用分布式锁，可放在以后实现。
+ * 两种模式：
+ * 1.单机模式(LivySessionFactory)：每个实例创建自己的session pool，实现最简单，
+ * 缺点是部署实例较多的时候会浪费很多资源，实例越多闲置资源越多。
+ * 2.共享模式(SharedLivySessionFactory)：所有实例共享一批livy session，
+ * 通过SessionLeaseStore租用session，租约有过期时间和fencing token，
+ * 创建、销毁在存储的全局锁内协调，全局session数不超过上限，空闲session由各实例轮流使用。
  * <p>
- * 所有实例共享session pool。
- * 修改方法：在livyfactory中，分布式加锁初始化读取，分布式加锁实现create,分布式加锁destroy
+ * 传入AbandonedConfig时开启泄漏检测：借出后超过removeAbandonedTimeout没有statement活动的session，
+ * 先取消上面还在执行的statement再销毁，释放占用的spark资源。借用位置记录在Session.borrowSite。
+ * removeAbandonedOnMaintenance需要同时配置timeBetweenEvictionRunsMillis。
  */
 @Slf4j
 public class LivySessionPool extends GenericObjectPool<Session> {
+    //亲和借用时最多试探的idle session数
+    public static final int AFFINITY_PROBES = 3;
     private static GenericObjectPoolConfig defaultPoolConfig = new GenericObjectPoolConfig();
     //private static AbandonedConfig defaultAbandonedConfig = new AbandonedConfig();
 
@@ -38,37 +57,357 @@ public class LivySessionPool extends GenericObjectPool<Session> {
         //defaultAbandonedConfig.setRemoveAbandonedTimeout(30);
     }
 
+    //为true时当前线程的借用只取idle session，不创建
+    private static final ThreadLocal<Boolean> IDLE_ONLY = new ThreadLocal<>();
+
+    //先建后拆时后台创建替代session
+    private final ExecutorService replacementExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("livy-replacement-%d")
+            .setDaemon(true)
+            .build());
+    //泄漏后被回收的session数
+    private final AtomicLong numLeaked = new AtomicLong(0);
+    //有session进入idle时通知
+    private final List<Runnable> idleListeners = new CopyOnWriteArrayList<>();
+
     public LivySessionPool(PooledObjectFactory<Session> factory) {
-        super(factory, defaultPoolConfig);
+        super(new IdleOnlyFactory(factory), defaultPoolConfig);
+        initEvictionPolicy();
+        adoptPastSessions();
     }
 
     public LivySessionPool(PooledObjectFactory<Session> factory, GenericObjectPoolConfig config) {
-        super(factory, config);
+        super(new IdleOnlyFactory(factory), config);
+        initEvictionPolicy();
+        adoptPastSessions();
+    }
+
+    public LivySessionPool(PooledObjectFactory<Session> factory, GenericObjectPoolConfig config, AbandonedConfig abandonedConfig) {
+        super(new IdleOnlyFactory(factory), config, abandonedConfig);
+        initEvictionPolicy();
+        adoptPastSessions();
+    }
+
+    //构造时传入的factory
+    @Override
+    public PooledObjectFactory<Session> getFactory() {
+        return ((IdleOnlyFactory) super.getFactory()).delegate;
+    }
+
+    //只借用idle session，没有时返回null，不会在当前线程创建session
+    public Session borrowIdle() throws Exception {
+        long start = System.currentTimeMillis();
+        Session session = borrowIdleOnly();
+        return session == null ? null : afterBorrow(session, start);
+    }
+
+    private Session borrowIdleOnly() throws Exception {
+        if (getNumIdle() <= 0) {
+            return null;
+        }
+        IDLE_ONLY.set(Boolean.TRUE);
+        try {
+            return super.borrowObject(0);
+        } catch (NoSuchElementException e) {
+            return null;
+        } finally {
+            IDLE_ONLY.remove();
+        }
+    }
+
+    //启动时接管之前留下的session，校验通过的直接放进idle，不超过maxIdle、maxTotal
+    private void adoptPastSessions() {
+        if (!(getFactory() instanceof LivySessionFactory)) {
+            return;
+        }
+        int adopt = ((LivySessionFactory) getFactory()).recoverPastSessions();
+        if (getMaxIdle() >= 0) {
+            adopt = Math.min(adopt, getMaxIdle());
+        }
+        if (getMaxTotal() >= 0) {
+            adopt = Math.min(adopt, getMaxTotal());
+        }
+        for (int i = 0; i < adopt; i++) {
+            try {
+                addObject();
+            } catch (Exception e) {
+                log.error("adopt past session error:{}", e.getMessage());
+                break;
+            }
+        }
+    }
+
+    //使用ScheduleEvictionPolicy时，注入补充session的回调，实现先建后拆
+    private void initEvictionPolicy() {
+        if (ScheduleEvictionPolicy.class.getName().equals(getEvictionPolicyClassName())) {
+            setEvictionPolicy(new ScheduleEvictionPolicy<>(ScheduleEvictionPolicy.DEFAULT_JITTER,
+                    ScheduleEvictionPolicy.DEFAULT_MAX_EVICT_PER_RUN, this::requestReplacement));
+        }
+    }
+
+    //后台创建一个替代session，进入idle后future完成；已到maxTotal时不创建并返回null，由驱逐策略直接回收
+    CompletableFuture<Void> requestReplacement() {
+        if (getMaxTotal() >= 0 && getNumActive() + getNumIdle() >= getMaxTotal()) {
+            return null;
+        }
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            replacementExecutor.execute(() -> {
+                try {
+                    log.info("create replacement session before evicting");
+                    addObject();
+                    future.complete(null);
+                } catch (Exception e) {
+                    log.error("create replacement session error:{}", e.getMessage());
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            //池子已关闭
+            return null;
+        }
+        return future;
     }
 
-    public LivySessionPool(PooledObjectFactory<Session> factory, GenericObjectPoolConfig config, AbandonedConfig defaultAbandonedConfig) {
-        super(factory, config);
+    @Override
+    @SuppressWarnings("unchecked")
+    public void evict() throws Exception {
+        if (getEvictionPolicy() instanceof ScheduleEvictionPolicy) {
+            ((ScheduleEvictionPolicy<Session>) getEvictionPolicy()).beginRun();
+        }
+        super.evict();
     }
 
-    private AtomicInteger numOfCreatingObject = new AtomicInteger(0);
+    private volatile SessionPrewarmer prewarmer;
+
+    //开启后台预热，maxConcurrentCreates为同时创建session的上限
+    public synchronized void enablePrewarm(int maxConcurrentCreates) {
+        if (prewarmer == null) {
+            prewarmer = new SessionPrewarmer(this, maxConcurrentCreates);
+        }
+    }
+
+    public SessionPrewarmer getPrewarmer() {
+        return prewarmer;
+    }
 
     @Override
-    public Session borrowObject() throws Exception {
-        Session session = super.borrowObject();
-        /*//为了减少初始化session的时间，当检测到idle的数量小于1，就预热一个session
-        if (getNumIdle() < 1 && (getNumActive() + numOfCreatingObject.get()) < getMaxTotal()) {
-            synchronized (this) {
-                new Thread(() -> {
-                    try {
-                        numOfCreatingObject.addAndGet(1);
-                        log.info("numIdle < minIdle ,prepare create session");
-                        addObject();
-                    } catch (Exception e) {
-                        e.printStackTrace();
+    public Session borrowObject(long borrowMaxWaitMillis) throws Exception {
+        long start = System.currentTimeMillis();
+        Session session;
+        try {
+            session = super.borrowObject(borrowMaxWaitMillis);
+        } catch (Exception e) {
+            //借用超时、创建失败同样说明供给不足，计入预热的借用统计
+            SessionPrewarmer current = prewarmer;
+            if (current != null) {
+                current.onBorrow(System.currentTimeMillis() - start);
+            }
+            throw e;
+        }
+        return afterBorrow(session, start);
+    }
+
+    /**
+     * 优先借用预热时缓存过tables的session：最多试探AFFINITY_PROBES个idle session，
+     * 选缓存表最多的一个，其余的马上归还。没有配置预热或idle不足两个时按普通借用。
+     */
+    public Session borrowObject(Set<String> tables, long borrowMaxWaitMillis) throws Exception {
+        if (tables.isEmpty() || getNumIdle() < 2 || !hasWarmup()) {
+            return borrowObject(borrowMaxWaitMillis);
+        }
+        long start = System.currentTimeMillis();
+        List<Session> probed = new ArrayList<>();
+        Session best = null;
+        int bestScore = -1;
+        try {
+            while (probed.size() < AFFINITY_PROBES && getNumIdle() > 0) {
+                //只取idle，不为了试探而创建session
+                Session session = borrowIdleOnly();
+                if (session == null) {
+                    break;
+                }
+                probed.add(session);
+                int score = 0;
+                for (String table : tables) {
+                    if (session.getWarmedTables().contains(table)) {
+                        score++;
                     }
-                }).start();
+                }
+                if (score > bestScore) {
+                    best = session;
+                    bestScore = score;
+                }
+                if (score == tables.size()) {
+                    break;
+                }
             }
-        }*/
+        } finally {
+            for (Session session : probed) {
+                if (session != best) {
+                    returnObject(session);
+                }
+            }
+        }
+        if (best == null) {
+            return borrowObject(borrowMaxWaitMillis);
+        }
+        return afterBorrow(best, start);
+    }
+
+    private boolean hasWarmup() {
+        return getFactory() instanceof LivySessionFactory && ((LivySessionFactory) getFactory()).getWarmup() != null;
+    }
+
+    private Session afterBorrow(Session session, long start) {
+        long end = System.currentTimeMillis();
+        session.touch();
+        if (isAbandonedConfig()) {
+            session.setBorrowSite(borrowSite());
+        }
+        long wait = end - start;
+        session.setBorrowStart(start);
+        session.setBorrowEnd(end);
+        LivyMetrics.get().record(LivyMetrics.BORROW_WAIT, wait);
+        //为了减少初始化session的时间，按借用速率提前预热
+        SessionPrewarmer current = prewarmer;
+        if (current != null) {
+            current.onBorrow(wait);
+        }
         return session;
     }
+
+    //调用栈中第一个不属于池子本身的位置
+    private static String borrowSite() {
+        for (StackTraceElement element : new Throwable().getStackTrace()) {
+            String className = element.getClassName();
+            if (!className.equals(LivySessionPool.class.getName()) && !className.startsWith("org.apache.commons.pool2.")) {
+                return element.toString();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 泄漏的session：记录借用位置，取消还在执行的statement后销毁。
+     */
+    @Override
+    public void invalidateObject(Session session, DestroyMode mode) throws Exception {
+        if (mode == DestroyMode.ABANDONED) {
+            numLeaked.incrementAndGet();
+            LivyMetrics.get().increment(LivyMetrics.SESSION_LEAKED);
+            log.warn("reclaim leaked livy session : {}, borrowed at : {}, idle(ms) : {}", session.getId(),
+                    session.getBorrowSite(), System.currentTimeMillis() - session.getLastUsed());
+            cancelRunningStatements(session);
+        }
+        super.invalidateObject(session, mode);
+    }
+
+    private static void cancelRunningStatements(Session session) {
+        try {
+            ListStatementResponse response = session.getLivyClient().listStatements(session.getId());
+            if (response == null || response.getStatements() == null) {
+                return;
+            }
+            for (Statement statement : response.getStatements()) {
+                if (statement.getStatementState() != null && statement.getStatementState().isRunning()) {
+                    session.getLivyClient().cancelStatement(session.getId(), statement.getId());
+                    log.info("cancel statement of leaked livy session : {}, statement : {}", session.getId(), statement.getId());
+                }
+            }
+        } catch (IOException e) {
+            log.error("cancel statements of leaked livy session error,id:{},error:{}", session.getId(), e.getMessage());
+        }
+    }
+
+    //泄漏后被回收的session数
+    public long getNumLeaked() {
+        return numLeaked.get();
+    }
+
+    public void addIdleListener(Runnable listener) {
+        idleListeners.add(listener);
+    }
+
+    private void fireIdle() {
+        for (Runnable listener : idleListeners) {
+            try {
+                listener.run();
+            } catch (Exception e) {
+                log.error("idle listener error:{}", e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void returnObject(Session session) {
+        super.returnObject(session);
+        fireIdle();
+    }
+
+    @Override
+    public void addObject() throws Exception {
+        super.addObject();
+        fireIdle();
+    }
+
+    /**
+     * 借用时idle为空，commons-pool会在借用线程上同步创建；只取idle时改为直接失败。
+     */
+    private static class IdleOnlyFactory implements PooledObjectFactory<Session> {
+        private final PooledObjectFactory<Session> delegate;
+
+        private IdleOnlyFactory(PooledObjectFactory<Session> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public PooledObject<Session> makeObject() throws Exception {
+            if (IDLE_ONLY.get() != null) {
+                throw new NoSuchElementException("no idle livy session");
+            }
+            return delegate.makeObject();
+        }
+
+        @Override
+        public void destroyObject(PooledObject<Session> p) throws Exception {
+            delegate.destroyObject(p);
+        }
+
+        @Override
+        public void destroyObject(PooledObject<Session> p, DestroyMode mode) throws Exception {
+            delegate.destroyObject(p, mode);
+        }
+
+        @Override
+        public boolean validateObject(PooledObject<Session> p) {
+            return delegate.validateObject(p);
+        }
+
+        @Override
+        public void activateObject(PooledObject<Session> p) throws Exception {
+            delegate.activateObject(p);
+        }
+
+        @Override
+        public void passivateObject(PooledObject<Session> p) throws Exception {
+            delegate.passivateObject(p);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (prewarmer != null) {
+            prewarmer.close();
+        }
+        super.close();
+        replacementExecutor.shutdownNow();
+        if (getFactory() instanceof SharedLivySessionFactory) {
+            ((SharedLivySessionFactory) getFactory()).close();
+        }
+        //停止状态表刷新和statement轮询
+        if (getFactory() instanceof LivySessionFactory) {
+            ((LivySessionFactory) getFactory()).getBalancer().close();
+        }
+    }
 }
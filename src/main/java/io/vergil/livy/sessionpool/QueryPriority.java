@@ -0,0 +1,20 @@
+package io.vergil.livy.sessionpool;
+
+/**
+ * 查询优先级，按权重分配空闲session：交互式查询优先，批量查询也能按比例拿到session，不会饿死。
+ */
+public enum QueryPriority {
+    INTERACTIVE(6),
+    NORMAL(3),
+    BATCH(1);
+
+    private final int weight;
+
+    QueryPriority(int weight) {
+        this.weight = weight;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+}
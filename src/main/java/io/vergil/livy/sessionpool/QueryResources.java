@@ -0,0 +1,18 @@
+package io.vergil.livy.sessionpool;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 查询需要的资源，用于选择session的资源配置。
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class QueryResources {
+    private String driverMemory;
+    private String executorMemory;
+    private int executorCores;
+    private int executors;
+}
@@ -0,0 +1,186 @@
+package io.vergil.livy.sessionpool;
+
+import com.alibaba.fastjson.parser.DefaultJSONParser;
+import io.vergil.livy.sessionpool.metrics.LivyMetrics;
+import io.vergil.livy.sessionpool.model.ResponseResult;
+import io.vergil.livy.sessionpool.utils.JsonStreamUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.Closeable;
+import java.io.Reader;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * statement结果的流式读取。
+ * <p>
+ * 直接从响应流中解析 output.data["application/json"]，schema整体读取，data按行读取，
+ * 内存占用只跟一行的大小有关，跟结果总大小无关。
+ * <p>
+ * 用完需要close，读完最后一行时也会自动关闭。
+ */
+@Slf4j
+public class ResultCursor implements Iterator<List<Object>>, Closeable {
+    public static final String JSON_MIME = "application/json";
+
+    private final DefaultJSONParser parser;
+    private final Closeable source;
+    private ResponseResult.Schema schema;
+    private boolean hasRows;
+    private boolean closed;
+    private long rowCount;
+    //关闭后执行
+    private Runnable closeAction;
+
+    public ResultCursor(Reader input, Closeable source) throws SQLException {
+        this(JsonStreamUtils.open(input), source, false);
+    }
+
+    //atOutput为true时parser已经定位到statement的output值上，比如轮询时读到结束状态的同一个响应
+    ResultCursor(DefaultJSONParser parser, Closeable source, boolean atOutput) throws SQLException {
+        this.parser = parser;
+        this.source = source;
+        try {
+            hasRows = atOutput ? !JsonStreamUtils.isNull(parser) && seekOutput() : seekRows();
+        } catch (SQLException | RuntimeException e) {
+            close();
+            throw e;
+        }
+        if (!hasRows) {
+            close();
+        }
+    }
+
+    public ResponseResult.Schema getSchema() {
+        return schema;
+    }
+
+    //已经读取的行数
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    //关闭时执行action，已经关闭的马上执行
+    public ResultCursor onClose(Runnable action) {
+        if (closed) {
+            action.run();
+        } else {
+            closeAction = action;
+        }
+        return this;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (!hasRows) {
+            return false;
+        }
+        if (JsonStreamUtils.hasNextElement(parser)) {
+            return true;
+        }
+        hasRows = false;
+        close();
+        return false;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<Object> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        rowCount++;
+        return (List<Object>) parser.parse();
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        LivyMetrics.get().record(LivyMetrics.RESULT_ROWS, rowCount);
+        try {
+            JsonStreamUtils.close(parser);
+        } catch (Exception e) {
+            log.debug("close result reader error:{}", e.getMessage());
+        }
+        try {
+            if (source != null) {
+                source.close();
+            }
+        } catch (Exception e) {
+            log.debug("close result source error:{}", e.getMessage());
+        }
+        if (closeAction != null) {
+            closeAction.run();
+        }
+    }
+
+    //定位到 output.data["application/json"].data 数组内部
+    private boolean seekRows() throws SQLException {
+        JsonStreamUtils.beginObject(parser);
+        String key;
+        while ((key = JsonStreamUtils.nextName(parser)) != null) {
+            if ("output".equals(key) && !JsonStreamUtils.isNull(parser)) {
+                return seekOutput();
+            }
+            JsonStreamUtils.skipValue(parser);
+        }
+        return false;
+    }
+
+    private boolean seekOutput() throws SQLException {
+        String status = null;
+        String ename = null;
+        String evalue = null;
+        JsonStreamUtils.beginObject(parser);
+        String key;
+        while ((key = JsonStreamUtils.nextName(parser)) != null) {
+            if ("status".equals(key)) {
+                status = JsonStreamUtils.readString(parser);
+            } else if ("ename".equals(key)) {
+                ename = JsonStreamUtils.readString(parser);
+            } else if ("evalue".equals(key)) {
+                evalue = JsonStreamUtils.readString(parser);
+            } else if ("data".equals(key) && !JsonStreamUtils.isNull(parser)) {
+                if (seekData()) {
+                    return true;
+                }
+            } else {
+                JsonStreamUtils.skipValue(parser);
+            }
+        }
+        if (StringUtils.equals(status, "error")) {
+            throw new SQLException(ename + " : " + evalue);
+        }
+        return false;
+    }
+
+    private boolean seekData() {
+        JsonStreamUtils.beginObject(parser);
+        String mime;
+        while ((mime = JsonStreamUtils.nextName(parser)) != null) {
+            if (!JSON_MIME.equals(mime) || JsonStreamUtils.isNull(parser)) {
+                JsonStreamUtils.skipValue(parser);
+                continue;
+            }
+            JsonStreamUtils.beginObject(parser);
+            String key;
+            while ((key = JsonStreamUtils.nextName(parser)) != null) {
+                if ("schema".equals(key)) {
+                    schema = parser.parseObject(ResponseResult.Schema.class);
+                } else if ("data".equals(key) && !JsonStreamUtils.isNull(parser)) {
+                    JsonStreamUtils.beginArray(parser);
+                    return true;
+                } else {
+                    JsonStreamUtils.skipValue(parser);
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -4,15 +4,118 @@ import org.apache.commons.pool2.PooledObject;
 import org.apache.commons.pool2.impl.EvictionConfig;
 import org.apache.commons.pool2.impl.EvictionPolicy;
 
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * 定时驱逐：session从创建开始超过idleEvictTime就回收重建。
+ * <p>
+ * 1.寿命加随机抖动，同一批创建的session不会在同一次驱逐中一起过期
+ * 2.每次驱逐最多回收maxEvictPerRun个
+ * 3.先建后拆：每个过期的session先申请创建一个替代的session，等替代的session进入idle后再回收，容量不会下降；
+ * 同时在建的替代session不超过maxEvictPerRun个，其余过期session等下一轮。
+ * 已到maxTotal无法创建、或者替代session创建失败时直接回收，否则过期session永远不会被回收
+ */
 public class ScheduleEvictionPolicy<T> implements EvictionPolicy<T> {
+    public static final double DEFAULT_JITTER = 0.2;
+    public static final int DEFAULT_MAX_EVICT_PER_RUN = 1;
+    //两次调用间隔超过该值认为是新一轮驱逐
+    private static final long RUN_GAP = 1000;
+
+    private final double jitter;
+    private final int maxEvictPerRun;
+    //申请创建一个替代session，进入idle后future完成，无法创建时返回null
+    private final Supplier<CompletableFuture<Void>> replacement;
+    //过期session对应的替代session，session销毁后自动移除
+    private final Map<PooledObject<T>, CompletableFuture<Void>> replacements = Collections.synchronizedMap(new WeakHashMap<>());
+    private final AtomicInteger evictedInRun = new AtomicInteger(0);
+    private volatile long lastEvictTime;
+
+    public ScheduleEvictionPolicy() {
+        this(DEFAULT_JITTER, DEFAULT_MAX_EVICT_PER_RUN, null);
+    }
+
+    public ScheduleEvictionPolicy(double jitter, int maxEvictPerRun, Supplier<CompletableFuture<Void>> replacement) {
+        this.jitter = jitter;
+        this.maxEvictPerRun = maxEvictPerRun;
+        this.replacement = replacement;
+    }
+
+    //每轮驱逐开始前调用
+    public void beginRun() {
+        evictedInRun.set(0);
+    }
 
     @Override
     public boolean evict(final EvictionConfig config, final PooledObject<T> underTest,
                          final int idleCount) {
-        long elapsed = System.currentTimeMillis() - underTest.getCreateTime();
-        if (config.getIdleEvictTime() < elapsed) {
+        long now = System.currentTimeMillis();
+        if (now - lastEvictTime > RUN_GAP) {
+            beginRun();
+        }
+        lastEvictTime = now;
+        long elapsed = now - underTest.getCreateTime();
+        if (lifetimeOf(config.getIdleEvictTime(), underTest) >= elapsed) {
+            return false;
+        }
+        if (evictedInRun.get() >= maxEvictPerRun) {
+            return false;
+        }
+        //先建后拆，替代的session还没有进入idle时先不回收
+        if (replacement != null && !isReplaced(underTest)) {
+            return false;
+        }
+        evictedInRun.incrementAndGet();
+        return true;
+    }
+
+    //替代session已经进入idle，或者无法创建替代session时返回true
+    private boolean isReplaced(PooledObject<T> underTest) {
+        synchronized (replacements) {
+            CompletableFuture<Void> future = replacements.get(underTest);
+            if (future == null) {
+                if (getNumReplacing() >= maxEvictPerRun) {
+                    return false;
+                }
+                future = replacement.get();
+                if (future == null) {
+                    return true;
+                }
+                replacements.put(underTest, future);
+            }
+            if (!future.isDone()) {
+                return false;
+            }
+            replacements.remove(underTest);
             return true;
         }
-        return false;
+    }
+
+    //还在创建中的替代session数
+    int getNumReplacing() {
+        synchronized (replacements) {
+            int num = 0;
+            for (CompletableFuture<Void> future : replacements.values()) {
+                if (!future.isDone()) {
+                    num++;
+                }
+            }
+            return num;
+        }
+    }
+
+    //按对象生成固定的抖动，寿命在[idleEvictTime * (1 - jitter), idleEvictTime]之间
+    long lifetimeOf(long idleEvictTime, PooledObject<T> underTest) {
+        if (idleEvictTime == Long.MAX_VALUE || jitter <= 0) {
+            return idleEvictTime;
+        }
+        long h = System.identityHashCode(underTest.getObject()) * 0x9E3779B97F4A7C15L + underTest.getCreateTime();
+        h ^= h >>> 33;
+        double u = (h & 0xFFFF) / 65536.0;
+        return (long) (idleEvictTime * (1 - jitter * u));
     }
 }
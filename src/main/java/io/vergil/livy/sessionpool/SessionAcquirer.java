@@ -0,0 +1,322 @@
+package io.vergil.livy.sessionpool;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.vergil.livy.sessionpool.metrics.LivyMetrics;
+import io.vergil.livy.sessionpool.model.Session;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 异步借用session，等待不占用线程。
+ * <p>
+ * 每个优先级一个等待队列，有空闲session时按权重平滑轮询(smooth weighted round robin)选择队列，
+ * 交互式查询优先拿到session，批量查询按权重比例也能拿到。
+ * 每个等待者有截止时间，超时失败；队列长度超过上限时直接拒绝。
+ * 设置延迟目标后，同级及更高优先级队列里最早的等待者已经等了超过目标时，新请求以LivyOverloadedException快速失败，
+ * 带上建议的重试时间，避免请求越积越多。
+ * <p>
+ * 没有空闲session且未到maxTotal时，后台创建session，创建完成后分配给等待者。
+ * <p>
+ * 分配线程只选择等待者，借用(可能需要校验session)和完成future都交给handoff线程，
+ * 调用方的后续回调不会阻塞分配。
+ */
+@Slf4j
+public class SessionAcquirer {
+    public static final long TICK_INTERVAL = 50;
+    public static final int DEFAULT_MAX_QUEUE_DEPTH = 1000;
+    public static final int DEFAULT_MAX_CONCURRENT_CREATES = 2;
+
+    private final LivySessionPool pool;
+    private final int maxQueueDepth;
+    private final int maxConcurrentCreates;
+    private final Map<QueryPriority, Deque<Waiter>> queues = new EnumMap<>(QueryPriority.class);
+    private final Map<QueryPriority, AtomicInteger> depths = new EnumMap<>(QueryPriority.class);
+    //平滑加权轮询的当前权重，只在分配线程中访问
+    private final Map<QueryPriority, Integer> currentWeights = new EnumMap<>(QueryPriority.class);
+    private final ExecutorService dispatchExecutor;
+    private final ExecutorService createExecutor;
+    private final ExecutorService handoffExecutor;
+    //已经交给handoff线程、还没借到的数量
+    private final AtomicInteger handoffs = new AtomicInteger(0);
+    private final ScheduledFuture<?> tickFuture;
+    private final AtomicBoolean dispatchScheduled = new AtomicBoolean(false);
+    private final AtomicInteger creating = new AtomicInteger(0);
+    //排队延迟目标(毫秒)，0不限制
+    private volatile long latencyTarget;
+
+    public SessionAcquirer(LivySessionPool pool) {
+        this(pool, DEFAULT_MAX_QUEUE_DEPTH, DEFAULT_MAX_CONCURRENT_CREATES);
+    }
+
+    public SessionAcquirer(LivySessionPool pool, int maxQueueDepth, int maxConcurrentCreates) {
+        this.pool = pool;
+        this.maxQueueDepth = maxQueueDepth;
+        this.maxConcurrentCreates = maxConcurrentCreates;
+        for (QueryPriority priority : QueryPriority.values()) {
+            queues.put(priority, new ConcurrentLinkedDeque<>());
+            depths.put(priority, new AtomicInteger(0));
+            currentWeights.put(priority, 0);
+        }
+        this.dispatchExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("livy-acquirer-%d")
+                .setDaemon(true)
+                .build());
+        this.createExecutor = Executors.newFixedThreadPool(maxConcurrentCreates, new ThreadFactoryBuilder()
+                .setNameFormat("livy-acquirer-create-%d")
+                .setDaemon(true)
+                .build());
+        //同时进行的handoff不超过idle session数
+        this.handoffExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+                .setNameFormat("livy-acquirer-handoff-%d")
+                .setDaemon(true)
+                .build());
+        pool.addIdleListener(this::signal);
+        //兜底：直接归还到池子的session和超时的等待者
+        this.tickFuture = LivyClient.SCHEDULER.scheduleWithFixedDelay(this::signal,
+                TICK_INTERVAL, TICK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    public LivySessionPool getPool() {
+        return pool;
+    }
+
+    public long getLatencyTarget() {
+        return latencyTarget;
+    }
+
+    public void setLatencyTarget(long latencyTarget, TimeUnit unit) {
+        this.latencyTarget = unit.toMillis(latencyTarget);
+    }
+
+    //借用session，超时以TimeoutException失败，队列满以RejectedExecutionException失败，超过延迟目标以LivyOverloadedException失败
+    public CompletableFuture<Session> acquire(QueryPriority priority, long timeout, TimeUnit unit) {
+        long target = latencyTarget;
+        if (target > 0) {
+            long queued = oldestWait(priority, System.currentTimeMillis());
+            if (queued > target) {
+                LivyMetrics.get().increment(LivyMetrics.OVERLOAD_REJECTIONS);
+                CompletableFuture<Session> rejected = new CompletableFuture<>();
+                rejected.completeExceptionally(new LivyOverloadedException("acquire queue latency(ms) : " + queued
+                        + " exceeds target : " + target + ", " + priority, queued));
+                return rejected;
+            }
+        }
+        AtomicInteger depth = depths.get(priority);
+        if (depth.incrementAndGet() > maxQueueDepth) {
+            depth.decrementAndGet();
+            CompletableFuture<Session> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(new RejectedExecutionException("acquire queue is full : " + priority));
+            return rejected;
+        }
+        Waiter waiter = new Waiter(priority, System.currentTimeMillis() + unit.toMillis(timeout));
+        waiter.future.whenComplete((session, e) -> depth.decrementAndGet());
+        queues.get(priority).add(waiter);
+        signal();
+        return waiter.future;
+    }
+
+    //归还session，马上分配给下一个等待者
+    public void release(Session session) {
+        pool.returnObject(session);
+    }
+
+    //各优先级等待数量
+    public int getQueueDepth(QueryPriority priority) {
+        return depths.get(priority).get();
+    }
+
+    public void close() {
+        tickFuture.cancel(false);
+        dispatchExecutor.shutdown();
+        createExecutor.shutdown();
+        handoffExecutor.shutdown();
+        for (Queue<Waiter> queue : queues.values()) {
+            Waiter waiter;
+            while ((waiter = queue.poll()) != null) {
+                waiter.future.completeExceptionally(new IllegalStateException("session acquirer closed"));
+            }
+        }
+    }
+
+    void signal() {
+        if (dispatchScheduled.compareAndSet(false, true)) {
+            try {
+                dispatchExecutor.execute(this::dispatch);
+            } catch (RejectedExecutionException e) {
+                dispatchScheduled.set(false);
+            }
+        }
+    }
+
+    private void dispatch() {
+        dispatchScheduled.set(false);
+        try {
+            expireWaiters(System.currentTimeMillis());
+            QueryPriority priority;
+            while ((priority = pickPriority()) != null) {
+                if (pool.getNumIdle() - handoffs.get() <= 0) {
+                    requestCreate();
+                    return;
+                }
+                Waiter waiter = pollWaiter(priority);
+                if (waiter == null) {
+                    continue;
+                }
+                handoffs.incrementAndGet();
+                try {
+                    handoffExecutor.execute(() -> handoff(waiter));
+                } catch (RejectedExecutionException e) {
+                    handoffs.decrementAndGet();
+                    waiter.future.completeExceptionally(new IllegalStateException("session acquirer closed"));
+                }
+            }
+        } catch (Exception e) {
+            log.error("dispatch livy session error:{}", e.getMessage());
+        }
+    }
+
+    //只取idle session，没有借到时等待者回到队首
+    private void handoff(Waiter waiter) {
+        Session session = null;
+        try {
+            session = pool.borrowIdle();
+        } catch (Exception e) {
+            log.error("borrow idle livy session error:{}", e.getMessage());
+        } finally {
+            handoffs.decrementAndGet();
+        }
+        if (session == null) {
+            if (!waiter.future.isDone()) {
+                queues.get(waiter.priority).addFirst(waiter);
+            }
+            signal();
+            return;
+        }
+        //等待从进入队列算起
+        session.setBorrowStart(waiter.createTime);
+        session.setBorrowEnd(System.currentTimeMillis());
+        if (!waiter.future.complete(session)) {
+            pool.returnObject(session);
+        }
+    }
+
+    //同级及更高优先级队列中最早的等待者已经等待的时间
+    private long oldestWait(QueryPriority priority, long now) {
+        long oldest = 0;
+        for (QueryPriority p : QueryPriority.values()) {
+            if (p.ordinal() > priority.ordinal()) {
+                break;
+            }
+            for (Waiter waiter : queues.get(p)) {
+                if (!waiter.future.isDone()) {
+                    oldest = Math.max(oldest, now - waiter.createTime);
+                    break;
+                }
+            }
+        }
+        return oldest;
+    }
+
+    private void expireWaiters(long now) {
+        for (Queue<Waiter> queue : queues.values()) {
+            queue.removeIf(waiter -> {
+                if (waiter.future.isDone()) {
+                    return true;
+                }
+                if (waiter.deadline <= now) {
+                    waiter.future.completeExceptionally(new TimeoutException("acquire livy session timeout : " + waiter.priority));
+                    //超时也是一次供给不足的借用
+                    SessionPrewarmer prewarmer = pool.getPrewarmer();
+                    if (prewarmer != null) {
+                        prewarmer.onBorrow(now - waiter.createTime);
+                    }
+                    return true;
+                }
+                return false;
+            });
+        }
+    }
+
+    //平滑加权轮询选择有等待者的队列
+    private QueryPriority pickPriority() {
+        QueryPriority best = null;
+        int total = 0;
+        for (QueryPriority priority : QueryPriority.values()) {
+            Queue<Waiter> queue = queues.get(priority);
+            Waiter head;
+            while ((head = queue.peek()) != null && head.future.isDone()) {
+                queue.poll();
+            }
+            if (head == null) {
+                continue;
+            }
+            int current = currentWeights.get(priority) + priority.getWeight();
+            currentWeights.put(priority, current);
+            total += priority.getWeight();
+            if (best == null || current > currentWeights.get(best)) {
+                best = priority;
+            }
+        }
+        if (best != null) {
+            currentWeights.put(best, currentWeights.get(best) - total);
+        }
+        return best;
+    }
+
+    private Waiter pollWaiter(QueryPriority priority) {
+        Queue<Waiter> queue = queues.get(priority);
+        Waiter waiter;
+        while ((waiter = queue.poll()) != null) {
+            if (!waiter.future.isDone()) {
+                return waiter;
+            }
+        }
+        return null;
+    }
+
+    //后台创建session，不超过maxTotal和同时创建的上限
+    private void requestCreate() {
+        int total = pool.getNumActive() + pool.getNumIdle() + creating.get();
+        SessionPrewarmer prewarmer = pool.getPrewarmer();
+        if (prewarmer != null) {
+            total += prewarmer.getNumCreating();
+        }
+        if ((pool.getMaxTotal() >= 0 && total >= pool.getMaxTotal()) || creating.get() >= maxConcurrentCreates) {
+            return;
+        }
+        creating.incrementAndGet();
+        try {
+            createExecutor.execute(() -> {
+                try {
+                    pool.addObject();
+                } catch (Exception e) {
+                    log.error("create livy session for waiters error:{}", e.getMessage());
+                } finally {
+                    creating.decrementAndGet();
+                    signal();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            creating.decrementAndGet();
+        }
+    }
+
+    private static class Waiter {
+        private final QueryPriority priority;
+        private final long deadline;
+        private final long createTime = System.currentTimeMillis();
+        private final CompletableFuture<Session> future = new CompletableFuture<>();
+
+        private Waiter(QueryPriority priority, long deadline) {
+            this.priority = priority;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package io.vergil.livy.sessionpool;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 共享session的租约。token在整个存储中单调递增，用作fencing：
+ * 租约过期被其他实例拿走后，旧持有者的token不再是当前token，续约、释放都会失败。
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class SessionLease {
+    private String sessionId;
+    private String owner;
+    private long token;
+    private long expireTime;
+
+    public boolean isExpired(long now) {
+        return expireTime <= now;
+    }
+}
@@ -0,0 +1,32 @@
+package io.vergil.livy.sessionpool;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * 多实例共享session池的协调存储，可以基于文件锁、数据库、zookeeper等实现。
+ * <p>
+ * 所有方法都是原子的；withLock内可以调用其他方法，用于多实例间互斥的创建、销毁。
+ */
+public interface SessionLeaseStore extends Closeable {
+
+    //全局互斥执行，必须可重入
+    <T> T withLock(Callable<T> action) throws IOException;
+
+    //租用session(sessionId为livy地址/session id)，没有租约或租约已过期时成功，已被其他人租用返回null
+    SessionLease acquire(String sessionId, String owner, long ttlMillis) throws IOException;
+
+    //续约，token不是当前token(已被其他人拿走)时返回false
+    boolean renew(SessionLease lease, long ttlMillis) throws IOException;
+
+    //释放租约，token不是当前token时忽略
+    void release(SessionLease lease) throws IOException;
+
+    //租约是否仍然有效
+    boolean isCurrent(SessionLease lease) throws IOException;
+
+    //所有未过期的租约，key为acquire时的sessionId
+    Map<String, SessionLease> getLeases() throws IOException;
+}
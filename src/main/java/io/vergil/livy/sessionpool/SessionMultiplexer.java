@@ -0,0 +1,222 @@
+package io.vergil.livy.sessionpool;
+
+import io.vergil.livy.sessionpool.metrics.LivyMetrics;
+import io.vergil.livy.sessionpool.model.Session;
+import io.vergil.livy.sessionpool.model.Statement;
+import io.vergil.livy.sessionpool.trace.QueryTrace;
+import io.vergil.livy.sessionpool.utils.SqlUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiPredicate;
+import java.util.regex.Pattern;
+
+/**
+ * 多个轻量查询共用session：同一个session上最多同时排队depth个statement。
+ * <p>
+ * livy在一个session内按顺序执行statement，共用的好处是省掉借用、归还的等待，
+ * 前一个statement结束时下一个已经在driver上排队，driver不会在两次查询之间空闲。
+ * 所以只有轻量查询适合共用，重的查询仍然独占session，避免堵住后面排队的查询。
+ * <p>
+ * 路由：选择未完成statement最少的共用session；都有排队且池子里还有空闲session时，再借一个出来共用。
+ * 共用session上的statement全部结束、livy确认没有在跑的statement后归还池子。
+ */
+@Slf4j
+public class SessionMultiplexer {
+    public static final int DEFAULT_MAX_LIGHT_LENGTH = 4096;
+    //join、分组、排序、去重、union、窗口函数和聚合函数调用
+    private static final Pattern HEAVY_PATTERN = Pattern.compile(
+            "\\b(?:join|group\\s+by|order\\s+by|distinct|union|over\\s*\\("
+                    + "|(?:count|sum|avg|min|max|stddev\\w*|variance|var_\\w+|percentile\\w*|approx_\\w+"
+                    + "|collect_\\w+|corr|covar_\\w+)\\s*\\()", Pattern.CASE_INSENSITIVE);
+
+    private final LivySessionPool pool;
+    private final int depth;
+    private final int maxSharedSessions;
+    private volatile BiPredicate<String, String> lightPredicate = SessionMultiplexer::isLight;
+    //共用中的session，访问都在this锁内
+    private final List<SharedSession> shared = new ArrayList<>();
+    //正在为共用借出的session数量
+    private int borrowing;
+
+    public SessionMultiplexer(LivySessionPool pool, int depth, int maxSharedSessions) {
+        if (depth < 1 || maxSharedSessions < 1) {
+            throw new IllegalArgumentException("depth and maxSharedSessions must be positive");
+        }
+        this.pool = pool;
+        this.depth = depth;
+        this.maxSharedSessions = maxSharedSessions;
+    }
+
+    //判断(code, kind)是否轻量查询，默认为isLight
+    public void setLightPredicate(BiPredicate<String, String> lightPredicate) {
+        this.lightPredicate = lightPredicate;
+    }
+
+    public boolean accepts(String code_, String kind) {
+        return lightPredicate.test(code_, kind);
+    }
+
+    /**
+     * 启发式判断，只看sql文本，不解析也不看数据量：
+     * 只读、长度不超过DEFAULT_MAX_LIGHT_LENGTH，且不含join、group by、order by、distinct、union、
+     * 窗口函数和聚合函数调用(count(、sum(等)的sql算轻量查询，比如按主键的点查、带limit的预览。
+     * 按关键字匹配，字符串常量、注释里出现这些词也会被当成重查询，误判只会让查询独占session，不影响正确性。
+     * 需要更精确的判断时用setLightPredicate替换。
+     */
+    public static boolean isLight(String code_, String kind) {
+        return StringUtils.equals(kind, "sql")
+                && code_ != null
+                && code_.length() <= DEFAULT_MAX_LIGHT_LENGTH
+                && SqlUtils.isReadOnly(code_)
+                && !HEAVY_PATTERN.matcher(code_).find();
+    }
+
+    public synchronized int getNumSharedSessions() {
+        return shared.size();
+    }
+
+    //所有共用session上未完成的statement数
+    public synchronized int getNumOutstanding() {
+        int num = 0;
+        for (SharedSession s : shared) {
+            num += s.outstanding;
+        }
+        return num;
+    }
+
+    /**
+     * 在共用session上执行，共用session都已排满且不能再借时返回null，由调用方独占session执行。
+     */
+    public Statement execute(String code_, String kind, long deadline) throws IOException, SQLException {
+        long start = System.currentTimeMillis();
+        SharedSession target = acquire(deadline);
+        if (target == null) {
+            return null;
+        }
+        LivyMetrics.get().increment(LivyMetrics.STATEMENT_MULTIPLEXED);
+        Session session = target.session;
+        try {
+            QueryTrace trace = session.getLivyClient().startTrace(session.getId(), code_, kind);
+            if (trace != null) {
+                trace.setBorrowStart(start);
+                trace.setBorrowEnd(System.currentTimeMillis());
+            }
+            return session.executeStatementSync(code_, kind, deadline, trace);
+        } catch (IOException e) {
+            //请求livy出错，session可能已经不可用，不再分配新的statement
+            target.broken = true;
+            throw e;
+        } finally {
+            release(target);
+        }
+    }
+
+    private SharedSession acquire(long deadline) throws IOException, SQLException {
+        SharedSession best;
+        synchronized (this) {
+            best = leastOutstanding();
+            boolean canBorrow = shared.size() + borrowing < maxSharedSessions;
+            if (best != null && (best.outstanding == 0 || !canBorrow || pool.getNumIdle() == 0)) {
+                best.outstanding++;
+                return best;
+            }
+            if (!canBorrow) {
+                return null;
+            }
+            borrowing++;
+        }
+        Session session = null;
+        Exception error = null;
+        long wait = deadline - System.currentTimeMillis();
+        if (wait > 0) {
+            try {
+                //已有可共用的session时不等待，没有空闲session就排到已有的上面
+                session = pool.borrowObject(best != null ? 0 : Math.min(wait, pool.getMaxWaitMillis() < 0 ? wait : pool.getMaxWaitMillis()));
+            } catch (Exception e) {
+                error = e;
+            }
+        }
+        synchronized (this) {
+            borrowing--;
+            if (session != null) {
+                SharedSession s = new SharedSession(session);
+                s.outstanding++;
+                shared.add(s);
+                return s;
+            }
+            //借用期间其他请求可能已经借到了
+            best = leastOutstanding();
+            if (best != null) {
+                best.outstanding++;
+                return best;
+            }
+        }
+        if (error == null) {
+            throw new SQLTimeoutException("query deadline exceeded before borrow");
+        }
+        if (error instanceof LivyOverloadedException) {
+            throw (LivyOverloadedException) error;
+        }
+        throw new SQLException("borrow livy session error : " + error.getMessage(), error);
+    }
+
+    //未完成statement最少、还没排满的共用session
+    private SharedSession leastOutstanding() {
+        SharedSession best = null;
+        for (SharedSession s : shared) {
+            if (!s.broken && s.outstanding < depth && (best == null || s.outstanding < best.outstanding)) {
+                best = s;
+            }
+        }
+        return best;
+    }
+
+    //同LivyQueryExecutor.release：statement在livy上结束后归还，取消未确认时销毁
+    private void release(SharedSession target) {
+        synchronized (this) {
+            target.outstanding--;
+            if (target.outstanding > 0) {
+                return;
+            }
+            shared.remove(target);
+        }
+        Session session = target.session;
+        if (target.broken) {
+            try {
+                pool.invalidateObject(session);
+            } catch (Exception e) {
+                log.error("invalidate shared livy session error:{}", e.getMessage());
+            }
+            return;
+        }
+        session.getLivyClient().awaitSettled(session.getId()).whenComplete((v, e) -> {
+            try {
+                if (e == null) {
+                    pool.returnObject(session);
+                } else {
+                    log.warn("invalidate shared livy session with unconfirmed cancel : {}, error : {}",
+                            session.getId(), LivyClient.unwrap(e).getMessage());
+                    pool.invalidateObject(session);
+                }
+            } catch (Exception e2) {
+                log.error("release shared livy session error,id:{},error:{}", session.getId(), e2.getMessage());
+            }
+        });
+    }
+
+    private static class SharedSession {
+        private final Session session;
+        private int outstanding;
+        private volatile boolean broken;
+
+        private SharedSession(Session session) {
+            this.session = session;
+        }
+    }
+}
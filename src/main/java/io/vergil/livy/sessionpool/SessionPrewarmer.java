@@ -0,0 +1,161 @@
+package io.vergil.livy.sessionpool;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.LocalTime;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * session预热。
+ * <p>
+ * 创建session要几十秒到几分钟，按借用速率提前在后台创建，避免第一个借不到idle session的用户承担创建时间。
+ * <p>
+ * 需求预估：按Little定律，需要的session数 = 借用速率 * 平均占用时长。
+ * 借用速率取当前速率和历史同时段速率(提前一个创建耗时)的较大值，这样早高峰前就能把session准备好。
+ * 有借用等待时多预留一个，任何时候至少保留一个idle。
+ * 预热不会超过maxTotal(负数不限制)，同时创建中的数量不超过maxConcurrentCreates。
+ * 借用失败、超时也计入借用速率和等待时长。
+ */
+@Slf4j
+public class SessionPrewarmer {
+    public static final long CHECK_INTERVAL = 5000;
+    //一天按15分钟分段统计历史借用速率
+    public static final int SLOT_MINUTES = 15;
+    public static final int SLOTS = 24 * 60 / SLOT_MINUTES;
+    private static final double RATE_ALPHA = 0.3;
+    private static final double SLOT_ALPHA = 0.2;
+    //借用等待超过该值认为供给不足
+    private static final long WAIT_THRESHOLD = 100;
+
+    private final LivySessionPool pool;
+    private final int maxConcurrentCreates;
+    private final ExecutorService createExecutor;
+    private final ScheduledFuture<?> checkFuture;
+    private final AtomicInteger creating = new AtomicInteger(0);
+    private final AtomicLong borrowCount = new AtomicLong(0);
+    private final AtomicBoolean checking = new AtomicBoolean(false);
+    private final double[] slotRates = new double[SLOTS];
+    private volatile long lastCheckTime = System.currentTimeMillis();
+    //借用速率(次/秒)
+    private volatile double borrowRate;
+    private volatile double borrowWaitMillis;
+    //创建耗时，初始按一分钟估计
+    private volatile double createMillis = 60_000;
+
+    public SessionPrewarmer(LivySessionPool pool, int maxConcurrentCreates) {
+        if (maxConcurrentCreates <= 0) {
+            throw new IllegalArgumentException("maxConcurrentCreates must be positive : " + maxConcurrentCreates);
+        }
+        this.pool = pool;
+        this.maxConcurrentCreates = maxConcurrentCreates;
+        this.createExecutor = Executors.newFixedThreadPool(maxConcurrentCreates, new ThreadFactoryBuilder()
+                .setNameFormat("livy-prewarm-%d")
+                .setDaemon(true)
+                .build());
+        this.checkFuture = LivyClient.SCHEDULER.scheduleWithFixedDelay(this::check,
+                CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    //每次借用后调用，借用失败时也调用，waitMillis为失败前等待的时长
+    public void onBorrow(long waitMillis) {
+        borrowCount.incrementAndGet();
+        borrowWaitMillis = borrowWaitMillis * (1 - RATE_ALPHA) + waitMillis * RATE_ALPHA;
+        //idle已经用完，马上检查一次
+        if (pool.getNumIdle() < 1) {
+            LivyClient.SCHEDULER.execute(this::check);
+        }
+    }
+
+    public int getNumCreating() {
+        return creating.get();
+    }
+
+    public double getBorrowRate() {
+        return borrowRate;
+    }
+
+    public void close() {
+        checkFuture.cancel(false);
+        createExecutor.shutdown();
+    }
+
+    void check() {
+        if (!checking.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            updateRate();
+            int toCreate = computeShortage();
+            for (int i = 0; i < toCreate; i++) {
+                creating.incrementAndGet();
+                createExecutor.execute(this::prewarm);
+            }
+        } catch (Exception e) {
+            log.error("prewarm check error:{}", e.getMessage());
+        } finally {
+            checking.set(false);
+        }
+    }
+
+    private void updateRate() {
+        long now = System.currentTimeMillis();
+        long elapsed = now - lastCheckTime;
+        //间隔太短的检查不更新速率，避免抖动
+        if (elapsed < CHECK_INTERVAL / 2) {
+            return;
+        }
+        lastCheckTime = now;
+        double rate = borrowCount.getAndSet(0) * 1000.0 / elapsed;
+        borrowRate = borrowRate * (1 - RATE_ALPHA) + rate * RATE_ALPHA;
+        int slot = slotOf(LocalTime.now());
+        slotRates[slot] = slotRates[slot] * (1 - SLOT_ALPHA) + rate * SLOT_ALPHA;
+    }
+
+    //需要额外创建的session数量
+    int computeShortage() {
+        int active = pool.getNumActive();
+        int idle = pool.getNumIdle();
+        int inCreating = creating.get();
+        int total = active + idle + inCreating;
+        //提前一个创建耗时看历史同时段的速率
+        int futureSlot = slotOf(LocalTime.now().plusSeconds((long) (createMillis / 1000)));
+        double rate = Math.max(borrowRate, slotRates[futureSlot]);
+        double holdSeconds = Math.max(pool.getMeanActiveTimeMillis(), 1) / 1000.0;
+        int needed = (int) Math.ceil(rate * holdSeconds);
+        if (borrowWaitMillis > WAIT_THRESHOLD) {
+            needed++;
+        }
+        //至少保留一个idle，借用高峰时不用现场创建
+        needed = Math.max(needed, active + Math.max(pool.getMinIdle(), 1));
+        int shortage = needed - total;
+        if (pool.getMaxTotal() >= 0) {
+            shortage = Math.min(shortage, pool.getMaxTotal() - total);
+        }
+        shortage = Math.min(shortage, maxConcurrentCreates - inCreating);
+        if (shortage > 0) {
+            log.info("prewarm session,rate:{}/s,active:{},idle:{},creating:{},create:{}",
+                    String.format("%.2f", rate), active, idle, inCreating, shortage);
+        }
+        return Math.max(shortage, 0);
+    }
+
+    private void prewarm() {
+        long start = System.currentTimeMillis();
+        try {
+            pool.addObject();
+            createMillis = createMillis * (1 - RATE_ALPHA) + (System.currentTimeMillis() - start) * RATE_ALPHA;
+        } catch (Exception e) {
+            log.error("prewarm session error:{}", e.getMessage());
+        } finally {
+            creating.decrementAndGet();
+        }
+    }
+
+    private static int slotOf(LocalTime time) {
+        return (time.getHour() * 60 + time.getMinute()) / SLOT_MINUTES;
+    }
+}
@@ -0,0 +1,89 @@
+package io.vergil.livy.sessionpool;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * session的资源配置，同时作为多配置session池的key。
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class SessionProfile {
+    private String user;
+    private String driverMemory;
+    private int driverCores;
+    private String executorMemory;
+    private int executorCores;
+    private int minExecutors;
+    private int maxExecutors;
+    private String queue;
+
+    //同样的资源配置，换一个用户
+    public SessionProfile withUser(String user) {
+        return new SessionProfile(user, driverMemory, driverCores, executorMemory, executorCores,
+                minExecutors, maxExecutors, queue);
+    }
+
+    //配置的指纹，写进session名称，重启后只接管配置一致的session
+    public String fingerprint() {
+        CRC32 crc = new CRC32();
+        crc.update(toString().getBytes(StandardCharsets.UTF_8));
+        return String.format("%08x", crc.getValue());
+    }
+
+    //session最多占用的内存(MB)
+    public long totalMemoryMb() {
+        return parseMemoryMb(driverMemory) + parseMemoryMb(executorMemory) * maxExecutors;
+    }
+
+    //session最多占用的cpu
+    public int totalCores() {
+        return driverCores + executorCores * maxExecutors;
+    }
+
+    //资源是否满足查询需求
+    public boolean fits(QueryResources resources) {
+        if (resources == null) {
+            return true;
+        }
+        return parseMemoryMb(driverMemory) >= parseMemoryMb(resources.getDriverMemory())
+                && parseMemoryMb(executorMemory) >= parseMemoryMb(resources.getExecutorMemory())
+                && executorCores >= resources.getExecutorCores()
+                && maxExecutors >= resources.getExecutors();
+    }
+
+    //spark内存格式，如 512m、2G、1.5g，不带单位按MB
+    public static long parseMemoryMb(String memory) {
+        if (memory == null || memory.trim().isEmpty()) {
+            return 0;
+        }
+        String value = memory.trim().toLowerCase();
+        if (value.endsWith("b")) {
+            value = value.substring(0, value.length() - 1);
+        }
+        char unit = value.charAt(value.length() - 1);
+        double multiplier;
+        switch (unit) {
+            case 'k':
+                multiplier = 1.0 / 1024;
+                break;
+            case 'm':
+                multiplier = 1;
+                break;
+            case 'g':
+                multiplier = 1024;
+                break;
+            case 't':
+                multiplier = 1024 * 1024;
+                break;
+            default:
+                return Math.round(Double.parseDouble(value));
+        }
+        return (long) (Double.parseDouble(value.substring(0, value.length() - 1).trim()) * multiplier);
+    }
+}
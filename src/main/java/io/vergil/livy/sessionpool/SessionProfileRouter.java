@@ -0,0 +1,51 @@
+package io.vergil.livy.sessionpool;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 按查询需要的资源选择session配置：满足需求的配置里选最小的。
+ * 小查询不再占用大executor，大查询也能拿到足够的资源。
+ */
+@Slf4j
+public class SessionProfileRouter {
+    private static final Comparator<SessionProfile> BY_SIZE = Comparator
+            .comparingLong(SessionProfile::totalMemoryMb)
+            .thenComparingInt(SessionProfile::totalCores);
+
+    private final List<SessionProfile> profiles = new CopyOnWriteArrayList<>();
+
+    public SessionProfileRouter(List<SessionProfile> profiles) {
+        List<SessionProfile> sorted = new ArrayList<>(profiles);
+        sorted.sort(BY_SIZE);
+        this.profiles.addAll(sorted);
+    }
+
+    public List<SessionProfile> getProfiles() {
+        return profiles;
+    }
+
+    //返回的配置以查询用户为key，user为null时使用配置里的用户
+    public SessionProfile route(String user, QueryResources resources) {
+        if (profiles.isEmpty()) {
+            throw new IllegalStateException("no session profile configured");
+        }
+        SessionProfile selected = null;
+        for (SessionProfile profile : profiles) {
+            if (profile.fits(resources)) {
+                selected = profile;
+                break;
+            }
+        }
+        if (selected == null) {
+            //没有满足的配置，用最大的
+            selected = profiles.get(profiles.size() - 1);
+            log.warn("no session profile fits resources:{},use largest:{}", resources, selected);
+        }
+        return user == null ? selected : selected.withUser(user);
+    }
+}
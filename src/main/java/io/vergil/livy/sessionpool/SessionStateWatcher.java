@@ -0,0 +1,258 @@
+package io.vergil.livy.sessionpool;
+
+import io.vergil.livy.sessionpool.model.ListSessionResponse;
+import io.vergil.livy.sessionpool.model.Session;
+import io.vergil.livy.sessionpool.model.SessionState;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+/**
+ * session状态表，每个LivyClient一个。
+ * <p>
+ * 后台定时调用一次 GET /sessions 刷新本地状态表，校验和等待创建都只读本地表，
+ * 借出session的时候不再需要对livy发http请求。
+ * 状态变化时通知等待者和监听器。
+ */
+@Slf4j
+public class SessionStateWatcher {
+    public static final long REFRESH_INTERVAL = 2000;
+    //状态表超过该时长没有刷新成功，认为不可信
+    public static final long STALE_THRESHOLD = 5 * REFRESH_INTERVAL;
+    public static final int PAGE_SIZE = 500;
+
+    private final LivyClient livyClient;
+    private final Map<String, Entry> sessions = new ConcurrentHashMap<>();
+    private final Map<String, List<Waiter>> waiters = new ConcurrentHashMap<>();
+    private final List<SessionStateListener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean refreshing = new AtomicBoolean(false);
+    private volatile long lastRefreshTime;
+    private volatile ScheduledFuture<?> refreshFuture;
+
+    public SessionStateWatcher(LivyClient livyClient) {
+        this.livyClient = livyClient;
+    }
+
+    //本地状态表是否可信
+    public boolean isFresh() {
+        start();
+        return System.currentTimeMillis() - lastRefreshTime < STALE_THRESHOLD;
+    }
+
+    //session当前状态，不存在返回null
+    public String getState(String sessionId) {
+        Session session = getSession(sessionId);
+        return session == null ? null : session.getState();
+    }
+
+    //本地表中的session，不存在返回null
+    public Session getSession(String sessionId) {
+        start();
+        Entry entry = sessions.get(sessionId);
+        return entry == null ? null : entry.session;
+    }
+
+    //livy上还活着的session数量(未结束的)，用于选择负载最低的livy
+    public int getNumLiveSessions() {
+        start();
+        int num = 0;
+        for (Entry entry : sessions.values()) {
+            if (entry.session.getSessionState() == null || entry.session.getSessionState().isLive()) {
+                num++;
+            }
+        }
+        return num;
+    }
+
+    static boolean isLive(String state) {
+        return state == null || SessionState.of(state).isLive();
+    }
+
+    //主动更新状态，比如刚创建的session，不用等下一次刷新
+    public void update(Session session) {
+        Entry entry = new Entry(session, System.currentTimeMillis());
+        Entry old = sessions.put(session.getId(), entry);
+        onChange(session.getId(), old == null ? null : old.session.getState(), session.getState());
+    }
+
+    /**
+     * 等待session状态满足条件，session被删除时用null调用条件。
+     * 超时抛出TimeoutException。
+     */
+    public CompletableFuture<String> awaitState(String sessionId, Predicate<String> condition, long timeout, TimeUnit unit) {
+        start();
+        Waiter waiter = new Waiter(condition);
+        waiters.compute(sessionId, (k, list) -> {
+            List<Waiter> result = list == null ? new CopyOnWriteArrayList<>() : list;
+            result.add(waiter);
+            return result;
+        });
+        //登记之后再检查一次，防止错过通知
+        Entry entry = sessions.get(sessionId);
+        if (entry != null) {
+            waiter.test(entry.session.getState());
+        }
+        ScheduledFuture<?> timeoutFuture = LivyClient.SCHEDULER.schedule(
+                () -> waiter.future.completeExceptionally(new TimeoutException("wait session state timeout : " + sessionId)),
+                timeout, unit);
+        waiter.future.whenComplete((state, e) -> {
+            timeoutFuture.cancel(false);
+            //列表空了就删掉，避免每个等待过的session id都留在表里
+            waiters.computeIfPresent(sessionId, (k, list) -> {
+                list.remove(waiter);
+                return list.isEmpty() ? null : list;
+            });
+        });
+        return waiter.future;
+    }
+
+    //有等待者的session数
+    int getNumWaitingSessions() {
+        return waiters.size();
+    }
+
+    public void addListener(SessionStateListener listener) {
+        listeners.add(listener);
+    }
+
+    public void refreshNow() {
+        start();
+        LivyClient.SCHEDULER.execute(this::refresh);
+    }
+
+    public void close() {
+        synchronized (this) {
+            if (refreshFuture != null) {
+                refreshFuture.cancel(false);
+                refreshFuture = null;
+            }
+        }
+    }
+
+    private void start() {
+        if (refreshFuture == null) {
+            synchronized (this) {
+                if (refreshFuture == null) {
+                    refreshFuture = LivyClient.SCHEDULER.scheduleWithFixedDelay(this::refresh,
+                            0, REFRESH_INTERVAL, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+    }
+
+    private void refresh() {
+        if (!refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        long refreshStartTime = System.currentTimeMillis();
+        Map<String, Session> current = new ConcurrentHashMap<>();
+        fetch(0, current).whenComplete((v, e) -> {
+            try {
+                if (e != null) {
+                    log.warn("refresh livy session state error:{}", LivyClient.unwrap(e).getMessage());
+                    return;
+                }
+                apply(current, refreshStartTime);
+                lastRefreshTime = refreshStartTime;
+            } catch (Exception e1) {
+                log.error("apply livy session state error:{}", e1.getMessage());
+            } finally {
+                refreshing.set(false);
+            }
+        });
+    }
+
+    //分页拉取所有session
+    private CompletableFuture<Void> fetch(int from, Map<String, Session> current) {
+        return livyClient.listSessionAsync(from, PAGE_SIZE).thenCompose(response -> {
+            List<Session> list = response.getSessions();
+            if (list != null) {
+                for (Session session : list) {
+                    if (session != null && session.getId() != null) {
+                        session.setLivyClient(livyClient);
+                        current.put(session.getId(), session);
+                    }
+                }
+            }
+            int next = from + (list == null ? 0 : list.size());
+            if (list == null || list.isEmpty() || next >= response.getTotal()) {
+                return CompletableFuture.completedFuture(null);
+            }
+            return fetch(next, current);
+        });
+    }
+
+    private void apply(Map<String, Session> current, long refreshStartTime) {
+        for (Session session : current.values()) {
+            Entry old = sessions.put(session.getId(), new Entry(session, refreshStartTime));
+            String oldState = old == null ? null : old.session.getState();
+            onChange(session.getId(), oldState, session.getState());
+        }
+        for (Map.Entry<String, Entry> e : sessions.entrySet()) {
+            //刷新开始之后才写入的不删除，livy的列表里可能还没有
+            if (!current.containsKey(e.getKey()) && e.getValue().updateTime < refreshStartTime
+                    && sessions.remove(e.getKey(), e.getValue())) {
+                livyClient.evictSession(e.getKey());
+                onChange(e.getKey(), e.getValue().session.getState(), null);
+            }
+        }
+    }
+
+    private void onChange(String sessionId, String oldState, String newState) {
+        if (StringUtils.equals(oldState, newState)) {
+            return;
+        }
+        log.debug("livy session state change,id:{},{} -> {}", sessionId, oldState, newState);
+        List<Waiter> list = waiters.get(sessionId);
+        if (list != null) {
+            for (Waiter waiter : list) {
+                waiter.test(newState);
+            }
+        }
+        for (SessionStateListener listener : listeners) {
+            try {
+                listener.onStateChange(sessionId, oldState, newState);
+            } catch (Exception e) {
+                log.error("session state listener error:{}", e.getMessage());
+            }
+        }
+    }
+
+    public interface SessionStateListener {
+        void onStateChange(String sessionId, String oldState, String newState);
+    }
+
+    private static class Entry {
+        private final Session session;
+        private final long updateTime;
+
+        private Entry(Session session, long updateTime) {
+            this.session = session;
+            this.updateTime = updateTime;
+        }
+    }
+
+    private static class Waiter {
+        private final Predicate<String> condition;
+        private final CompletableFuture<String> future = new CompletableFuture<>();
+
+        private Waiter(Predicate<String> condition) {
+            this.condition = condition;
+        }
+
+        private void test(String state) {
+            try {
+                if (condition.test(state)) {
+                    future.complete(state);
+                }
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package io.vergil.livy.sessionpool;
+
+import io.vergil.livy.sessionpool.metrics.LivyMetrics;
+import io.vergil.livy.sessionpool.model.Session;
+import io.vergil.livy.sessionpool.model.Statement;
+import io.vergil.livy.sessionpool.model.StatementState;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 新session进入idle之前按顺序执行的预热步骤：缓存常用表、注册udf、设置conf等。
+ * <p>
+ * 任意一步失败时整个预热失败，session不进入池子。缓存过的表记录在session上，
+ * 借用时涉及这些表的查询优先分配到已经缓存的session。
+ */
+@Slf4j
+public class SessionWarmup {
+    public static final long DEFAULT_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+
+    private final List<Step> steps = new ArrayList<>();
+    private long timeout = DEFAULT_TIMEOUT;
+
+    //任意statement
+    public SessionWarmup addStep(String code_, String kind) {
+        steps.add(new Step(code_, kind, null));
+        return this;
+    }
+
+    //缓存表，成功后记录到session的warmedTables
+    public SessionWarmup cacheTable(String table) {
+        String name = table.replace("`", "").toLowerCase();
+        steps.add(new Step("CACHE TABLE " + table, "sql", name));
+        return this;
+    }
+
+    public SessionWarmup setConf(String key, String value) {
+        steps.add(new Step("SET " + key + "=" + value, "sql", null));
+        return this;
+    }
+
+    //所有步骤总的超时时间(毫秒)
+    public SessionWarmup setTimeout(long timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    public int getNumSteps() {
+        return steps.size();
+    }
+
+    public void warm(Session session) throws IOException {
+        if (steps.isEmpty()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        long deadline = start + timeout;
+        for (Step step : steps) {
+            Statement statement;
+            try {
+                statement = session.executeStatementSync(step.code, step.kind, deadline);
+            } catch (SQLException e) {
+                throw new IOException("warm up session error,id:" + session.getId() + ",code:" + step.code + " : " + e.getMessage(), e);
+            }
+            if (statement.getStatementState() != StatementState.AVAILABLE
+                    || (statement.getOutput() != null && StringUtils.equals(statement.getOutput().getStatus(), "error"))) {
+                String error = statement.getOutput() == null ? statement.getState() : statement.getOutput().getEvalue();
+                throw new IOException("warm up session error,id:" + session.getId() + ",code:" + step.code + " : " + error);
+            }
+            if (step.table != null) {
+                session.getWarmedTables().add(step.table);
+            }
+        }
+        LivyMetrics.get().record(LivyMetrics.SESSION_WARMUP, System.currentTimeMillis() - start);
+        log.info("warm up session : {}, steps : {}, tables : {}", session.getId(), steps.size(), session.getWarmedTables());
+    }
+
+    private static class Step {
+        private final String code;
+        private final String kind;
+        private final String table;
+
+        private Step(String code, String kind, String table) {
+            this.code = code;
+            this.kind = kind;
+            this.table = table;
+        }
+    }
+}
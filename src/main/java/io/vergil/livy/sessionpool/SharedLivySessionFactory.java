@@ -0,0 +1,303 @@
+package io.vergil.livy.sessionpool;
+
+import io.vergil.livy.sessionpool.metrics.LivyMetrics;
+import io.vergil.livy.sessionpool.model.ListSessionResponse;
+import io.vergil.livy.sessionpool.model.Session;
+import io.vergil.livy.sessionpool.model.SessionState;
+import io.vergil.livy.sessionpool.utils.GuidUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.pool2.PooledObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 多实例共享session池的工厂。
+ * <p>
+ * 共享session以统一前缀命名，所有实例都能在livy上看到；实例通过SessionLeaseStore租用session，
+ * 租约在本地池中持有期间定期续约，过期后其他实例可以接管。
+ * <p>
+ * create：优先租用没有租约的空闲共享session，没有时在全局上限内创建新session(创建中的用占位租约计数)。
+ * destroy：释放租约，集群内空闲的共享session超过globalMaxIdle，或session已失效时才删除livy session。
+ * 借用时(activate)校验租约的token，租约已被其他实例拿走的session不会再使用。
+ * <p>
+ * 本地池的maxIdle、minEvictableIdleTimeMillis宜设小一些，空闲session尽快回到共享池。
+ * <p>
+ * 列出livy上的共享session是http请求，在全局锁外进行，锁内只读写租约；
+ * 锁外列表可能已经过时，计数时同时算上租约中的session。
+ * <p>
+ * 不同livy上的session id会重复，租约以livy地址加session id为key。
+ */
+@Slf4j
+public class SharedLivySessionFactory extends LivySessionFactory {
+    public static final String SHARED_NAME_PREFIX = "MY_LIVY_SHARED_";
+    public static final long DEFAULT_LEASE_TTL = 60_000;
+    private static final String CREATING_PREFIX = "creating-";
+    private static final int MAX_CREATE_ATTEMPTS = 3;
+    //列出单个livy上的session的超时时间(毫秒)，超时的livy不参与分配
+    private static final long LIST_TIMEOUT = 10_000;
+
+    private final SessionLeaseStore store;
+    private final String namePrefix;
+    private final int globalMaxTotal;
+    private final int globalMaxIdle;
+    private final long leaseTtl;
+    private final String owner = LivyClient.NAME_PREFIX + GuidUtils.newGuild();
+    //本实例持有的租约
+    private final Map<String, SessionLease> leases = new ConcurrentHashMap<>();
+    //校验失败需要删除的session
+    private final Set<String> broken = ConcurrentHashMap.newKeySet();
+    private final ScheduledFuture<?> renewFuture;
+
+    public SharedLivySessionFactory(List<String> urls, SessionProfile profile, SessionLeaseStore store,
+                                    String poolName, int globalMaxTotal, int globalMaxIdle) {
+        this(new LivyEndpointBalancer(urls), profile, store, poolName, globalMaxTotal, globalMaxIdle, DEFAULT_LEASE_TTL);
+    }
+
+    public SharedLivySessionFactory(LivyEndpointBalancer balancer, SessionProfile profile, SessionLeaseStore store,
+                                    String poolName, int globalMaxTotal, int globalMaxIdle, long leaseTtl) {
+        super(balancer, profile, false);
+        this.store = store;
+        this.namePrefix = SHARED_NAME_PREFIX + poolName + "@";
+        this.globalMaxTotal = globalMaxTotal;
+        this.globalMaxIdle = globalMaxIdle;
+        this.leaseTtl = leaseTtl;
+        this.renewFuture = LivyClient.SCHEDULER.scheduleWithFixedDelay(this::renewLeases,
+                leaseTtl / 3, leaseTtl / 3, TimeUnit.MILLISECONDS);
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public int getNumLeases() {
+        return leases.size();
+    }
+
+    @Override
+    public Session create() throws IOException {
+        for (int attempt = 0; attempt < MAX_CREATE_ATTEMPTS; attempt++) {
+            List<Session> shared = listShared();
+            Claim claim = store.withLock(() -> claim(shared));
+            if (claim.session != null) {
+                log.info("lease shared livy session : {}, token : {}", claim.session.getId(), claim.lease.getToken());
+                leases.put(leaseKey(claim.session), claim.lease);
+                return claim.session;
+            }
+            if (claim.lease == null) {
+                throw new IOException("shared livy session pool exhausted : " + globalMaxTotal);
+            }
+            //创建耗时较长，不在锁内进行，占位租约保证其他实例计数正确
+            Session session;
+            try {
+                session = createShared();
+            } catch (IOException e) {
+                store.release(claim.lease);
+                throw e;
+            }
+            SessionLease lease = store.withLock(() -> {
+                store.release(claim.lease);
+                return store.acquire(leaseKey(session), owner, leaseTtl);
+            });
+            if (lease != null) {
+                leases.put(leaseKey(session), lease);
+                return session;
+            }
+            //刚创建完就被其他实例租走，重新来
+            log.info("shared livy session leased by others before us : {}", session.getId());
+        }
+        throw new IOException("lease shared livy session failed after " + MAX_CREATE_ATTEMPTS + " attempts");
+    }
+
+    //在全局锁内：租用一个空闲共享session，或者占一个创建名额
+    private Claim claim(List<Session> shared) throws IOException {
+        Map<String, SessionLease> current = store.getLeases();
+        for (Session session : shared) {
+            if (!current.containsKey(leaseKey(session)) && session.getSessionState() == SessionState.IDLE) {
+                SessionLease lease = store.acquire(leaseKey(session), owner, leaseTtl);
+                if (lease != null) {
+                    session.setProfile(getProfile());
+                    return new Claim(session, lease);
+                }
+            }
+        }
+        //列出之后其他实例新建的session不在列表里，但一定持有租约
+        Set<String> ids = new HashSet<>();
+        for (Session session : shared) {
+            ids.add(leaseKey(session));
+        }
+        ids.addAll(current.keySet());
+        if (ids.size() >= globalMaxTotal) {
+            return new Claim(null, null);
+        }
+        long ttl = TimeUnit.SECONDS.toMillis(LivyClient.CREATE_SESSION_TIMEOUT) + leaseTtl;
+        return new Claim(null, store.acquire(CREATING_PREFIX + GuidUtils.newGuild(), owner, ttl));
+    }
+
+    private Session createShared() throws IOException {
+        IOException error = null;
+        for (LivyClient client : getBalancer().candidates()) {
+            long start = System.currentTimeMillis();
+            try {
+                Session session = client.createSession(getProfile(), namePrefix + GuidUtils.newGuild());
+                session.setProfile(getProfile());
+                LivyMetrics.get().record(LivyMetrics.SESSION_CREATE, System.currentTimeMillis() - start);
+                log.info("create shared session : {}, url : {}", session.getId(), client.getUrl());
+                return session;
+            } catch (IOException e) {
+                LivyMetrics.get().increment(LivyMetrics.SESSION_CREATE_FAILURES);
+                log.error("create shared session error,url:{},error:{}", client.getUrl(), e.getMessage());
+                error = e;
+            }
+        }
+        throw error;
+    }
+
+    //所有livy上活着的共享session，不要在全局锁内调用
+    private List<Session> listShared() throws IOException {
+        List<Session> shared = new ArrayList<>();
+        for (LivyClient client : getBalancer().getLivyClients()) {
+            List<Session> sessions;
+            try {
+                sessions = listAll(client);
+            } catch (ExecutionException | TimeoutException e) {
+                //不可用的livy上的session不参与分配
+                String error = e instanceof ExecutionException ? e.getCause().getMessage() : "timeout";
+                log.warn("list shared session error,url:{},error:{}", client.getUrl(), error);
+                continue;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("list shared session interrupted");
+            }
+            for (Session session : sessions) {
+                if (session != null && session.getName() != null && session.getName().startsWith(namePrefix)
+                        && StringUtils.equals(session.getProxyUser(), getProfile().getUser())
+                        && session.getSessionState() != null && session.getSessionState().isLive()) {
+                    session.setLivyClient(client);
+                    shared.add(session);
+                }
+            }
+        }
+        return shared;
+    }
+
+    //分页拉取单个livy上的所有session
+    private static List<Session> listAll(LivyClient client)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.currentTimeMillis() + LIST_TIMEOUT;
+        List<Session> sessions = new ArrayList<>();
+        int from = 0;
+        while (true) {
+            long remaining = Math.max(1, deadline - System.currentTimeMillis());
+            ListSessionResponse response = client.listSessionAsync(from, SessionStateWatcher.PAGE_SIZE)
+                    .get(remaining, TimeUnit.MILLISECONDS);
+            List<Session> page = response.getSessions();
+            if (page == null || page.isEmpty()) {
+                return sessions;
+            }
+            sessions.addAll(page);
+            from += page.size();
+            if (from >= response.getTotal()) {
+                return sessions;
+            }
+        }
+    }
+
+    //借用时校验租约，已被其他实例接管的session不能使用
+    @Override
+    public void activateObject(PooledObject<Session> p) throws Exception {
+        SessionLease lease = leases.get(leaseKey(p.getObject()));
+        if (lease == null || !store.isCurrent(lease)) {
+            throw new IOException("lease of shared livy session lost : " + p.getObject().getId());
+        }
+    }
+
+    @Override
+    public boolean validateObject(PooledObject<Session> p) {
+        boolean valid = super.validateObject(p);
+        if (!valid) {
+            broken.add(leaseKey(p.getObject()));
+        }
+        return valid;
+    }
+
+    @Override
+    public void destroyObject(PooledObject<Session> p) throws Exception {
+        String sessionId = p.getObject().getId();
+        String key = leaseKey(p.getObject());
+        SessionLease lease = leases.remove(key);
+        boolean isBroken = broken.remove(key);
+        if (lease == null) {
+            return;
+        }
+        List<Session> shared = isBroken ? null : listShared();
+        store.withLock(() -> {
+            if (!store.isCurrent(lease)) {
+                //租约已被其他实例接管，不能删除
+                log.warn("lease of shared livy session lost,skip delete : {}", sessionId);
+                return null;
+            }
+            if (isBroken || countIdleUnleased(shared) >= globalMaxIdle) {
+                super.destroyObject(p);
+            } else {
+                log.info("release shared livy session : {}", sessionId);
+            }
+            store.release(lease);
+            return null;
+        });
+    }
+
+    private int countIdleUnleased(List<Session> shared) throws IOException {
+        Map<String, SessionLease> current = store.getLeases();
+        int idle = 0;
+        for (Session session : shared) {
+            if (!current.containsKey(leaseKey(session)) && session.getSessionState() == SessionState.IDLE) {
+                idle++;
+            }
+        }
+        return idle;
+    }
+
+    //租约的key：livy地址/session id
+    static String leaseKey(Session session) {
+        LivyClient client = session.getLivyClient();
+        return (client == null ? "" : client.getUrl()) + "/" + session.getId();
+    }
+
+    private void renewLeases() {
+        for (SessionLease lease : leases.values()) {
+            try {
+                if (!store.renew(lease, leaseTtl)) {
+                    log.warn("renew lease of shared livy session failed : {}", lease.getSessionId());
+                }
+            } catch (Exception e) {
+                log.error("renew lease of shared livy session error : {}", e.getMessage());
+            }
+        }
+    }
+
+    //停止续约，释放租约由池子close时的destroy完成
+    public void close() {
+        renewFuture.cancel(false);
+    }
+
+    private static class Claim {
+        private final Session session;
+        private final SessionLease lease;
+
+        private Claim(Session session, SessionLease lease) {
+            this.session = session;
+            this.lease = lease;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package io.vergil.livy.sessionpool;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import io.vergil.livy.sessionpool.model.BatchResult;
+import io.vergil.livy.sessionpool.model.ResponseResult;
+import io.vergil.livy.sessionpool.model.Statement;
+import io.vergil.livy.sessionpool.model.StatementState;
+import io.vergil.livy.sessionpool.utils.GuidUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 多条sql合并成一个statement执行，省掉每条sql各自的提交和轮询。
+ * <p>
+ * 生成的scala代码逐条执行sql，每条输出一行：标记、序号、ok/error、base64编码的结果。
+ * sql和结果都用base64传递，不用处理引号、换行的转义；单条sql失败不影响其他sql。
+ * 结果从output.data["text/plain"]中按标记拆分，没有输出的sql（比如中途session出错）记为失败。
+ * <p>
+ * 每条sql最多返回maxRows行，跟livy执行sql时的默认行数限制一致。
+ */
+public class StatementBatch {
+    public static final String KIND = "spark";
+    public static final int DEFAULT_MAX_ROWS = 1000;
+
+    private final List<String> codes;
+    private final int maxRows;
+    //每个批次不同，避免跟sql自身的输出混淆
+    private final String marker = "__livy_batch_" + GuidUtils.newGuild();
+
+    public StatementBatch(List<String> codes) {
+        this(codes, DEFAULT_MAX_ROWS);
+    }
+
+    public StatementBatch(List<String> codes, int maxRows) {
+        if (codes == null || codes.isEmpty()) {
+            throw new IllegalArgumentException("batch must contain at least one sql");
+        }
+        if (maxRows < 1) {
+            throw new IllegalArgumentException("maxRows must be positive");
+        }
+        this.codes = Collections.unmodifiableList(new ArrayList<>(codes));
+        this.maxRows = maxRows;
+    }
+
+    public List<String> getCodes() {
+        return codes;
+    }
+
+    String getMarker() {
+        return marker;
+    }
+
+    public int size() {
+        return codes.size();
+    }
+
+    //提交给livy的scala代码
+    public String toCode() {
+        Base64.Encoder encoder = Base64.getEncoder();
+        StringBuilder queries = new StringBuilder();
+        for (String code : codes) {
+            if (queries.length() > 0) {
+                queries.append(", ");
+            }
+            queries.append('"').append(encoder.encodeToString(code.getBytes(StandardCharsets.UTF_8))).append('"');
+        }
+        return "{\n"
+                + "  val __queries = Array(" + queries + ")\n"
+                + "  def __b64(s: String) = java.util.Base64.getEncoder.encodeToString(s.getBytes(\"UTF-8\"))\n"
+                + "  for (__i <- __queries.indices) {\n"
+                + "    val __line = try {\n"
+                + "      val __df = spark.sql(new String(java.util.Base64.getDecoder.decode(__queries(__i)), \"UTF-8\"))\n"
+                + "      val __rows = __df.toJSON.take(" + maxRows + ")\n"
+                + "      \"ok\\t\" + __b64(\"{\\\"schema\\\":\" + __df.schema.json + \",\\\"data\\\":[\" + __rows.mkString(\",\") + \"]}\")\n"
+                + "    } catch {\n"
+                + "      case scala.util.control.NonFatal(__e) => \"error\\t\" + __b64(__e.getClass.getSimpleName + \" : \" + __e.getMessage)\n"
+                + "    }\n"
+                + "    println(\"" + marker + "\\t\" + __i + \"\\t\" + __line)\n"
+                + "  }\n"
+                + "}";
+    }
+
+    /**
+     * 按sql顺序拆分结果，statement本身失败（比如scala编译出错）时抛出SQLException。
+     */
+    public List<BatchResult> parse(Statement statement) throws SQLException {
+        if (statement.getStatementState() != StatementState.AVAILABLE) {
+            throw new SQLException("batch statement not available,id:" + statement.getId() + ",state:" + statement.getState());
+        }
+        Statement.Output output = statement.getOutput();
+        if (output == null) {
+            throw new SQLException("batch statement has no output,id:" + statement.getId());
+        }
+        if (StringUtils.equals(output.getStatus(), "error")) {
+            throw new SQLException("batch statement error : " + output.getEvalue());
+        }
+        String text = null;
+        if (output.getData() != null) {
+            text = JSON.parseObject(output.getData()).getString("text/plain");
+        }
+        return parse(text);
+    }
+
+    List<BatchResult> parse(String text) {
+        BatchResult[] results = new BatchResult[codes.size()];
+        Base64.Decoder decoder = Base64.getDecoder();
+        for (String line : StringUtils.split(StringUtils.defaultString(text), '\n')) {
+            String[] parts = StringUtils.split(line.trim(), '\t');
+            if (parts.length != 4 || !marker.equals(parts[0])) {
+                continue;
+            }
+            int index = Integer.parseInt(parts[1]);
+            if (index < 0 || index >= results.length) {
+                continue;
+            }
+            String payload = new String(decoder.decode(parts[3]), StandardCharsets.UTF_8);
+            BatchResult result = newResult(index);
+            if ("ok".equals(parts[2])) {
+                JSONObject json = JSON.parseObject(payload);
+                result.setSchema(json.getObject("schema", ResponseResult.Schema.class));
+                result.setData(toRows(result.getSchema(), json.getJSONArray("data")));
+            } else {
+                result.setError(payload);
+            }
+            results[index] = result;
+        }
+        List<BatchResult> list = new ArrayList<>(results.length);
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] == null) {
+                results[i] = newResult(i);
+                results[i].setError("no result for batch sql,index:" + i);
+            }
+            list.add(results[i]);
+        }
+        return list;
+    }
+
+    private BatchResult newResult(int index) {
+        BatchResult result = new BatchResult();
+        result.setIndex(index);
+        result.setCode(codes.get(index));
+        return result;
+    }
+
+    //toJSON输出的每行是对象，按schema的字段顺序转成数组，值为null的字段不会输出
+    private static List<List<Object>> toRows(ResponseResult.Schema schema, JSONArray array) {
+        List<List<Object>> rows = new ArrayList<>(array.size());
+        List<ResponseResult.Field> fields = schema.getFields();
+        for (int i = 0; i < array.size(); i++) {
+            JSONObject json = array.getJSONObject(i);
+            List<Object> row = new ArrayList<>(fields.size());
+            for (ResponseResult.Field field : fields) {
+                row.add(json.get(field.getName()));
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,389 @@
+package io.vergil.livy.sessionpool;
+
+import io.vergil.livy.sessionpool.metrics.LivyMetrics;
+import io.vergil.livy.sessionpool.model.ListStatementResponse;
+import io.vergil.livy.sessionpool.model.Statement;
+import io.vergil.livy.sessionpool.model.StatementState;
+import io.vergil.livy.sessionpool.trace.QueryTrace;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 统一的statement状态轮询器，每个LivyClient一个。
+ * <p>
+ * 所有在执行中的statement都登记在这里，按session聚合，
+ * 每次只对一个session发一个 GET /sessions/{id}/statements?from=&size= 请求，
+ * 所以对livy的请求量跟session数量相关，跟查询数量无关。
+ * 流式读取结果的statement例外，单独查询状态，结束时的响应直接作为结果流。
+ * <p>
+ * 轮询间隔自适应：刚提交时查得勤，运行越久查得越慢，根据progress预估快结束时再查得勤一些。
+ */
+@Slf4j
+public class StatementPoller {
+    public static final long TICK_INTERVAL = 50;
+    public static final long MIN_POLL_INTERVAL = 100;
+    public static final long MAX_POLL_INTERVAL = 5000;
+    //连续失败次数超过该值，session下的statement全部失败
+    public static final int MAX_POLL_FAILURES = 3;
+
+    private final LivyClient livyClient;
+    private final Map<String, SessionEntry> sessions = new ConcurrentHashMap<>();
+    private volatile ScheduledFuture<?> tickFuture;
+    private volatile boolean closed;
+
+    public StatementPoller(LivyClient livyClient) {
+        this.livyClient = livyClient;
+    }
+
+    //登记一个已提交的statement，状态变为终态时future完成，skipOutput时轮询不读取output
+    public CompletableFuture<Statement> track(String sessionId, String statementId, String code_, boolean skipOutput) {
+        return track(sessionId, statementId, code_, skipOutput, null);
+    }
+
+    //trace不为空时记录状态变化和结束时的响应时间
+    public CompletableFuture<Statement> track(String sessionId, String statementId, String code_, boolean skipOutput,
+                                              QueryTrace trace) {
+        return track(new PendingStatement(sessionId, statementId, code_, skipOutput, null, trace));
+    }
+
+    /**
+     * 登记一个要流式读取结果的statement，不参与按session合并的列表查询，单独查询状态；
+     * 执行成功时从读到结束状态的同一个响应继续读取结果，游标先交给result，再完成返回的future。
+     */
+    public CompletableFuture<Statement> trackResult(String sessionId, String statementId, String code_,
+                                                    CompletableFuture<ResultCursor> result, QueryTrace trace) {
+        return track(new PendingStatement(sessionId, statementId, code_, true, result, trace));
+    }
+
+    private CompletableFuture<Statement> track(PendingStatement pending) {
+        String sessionId = pending.sessionId;
+        //在compute中登记，跟tick移除空的SessionEntry互斥，不会登记到已经移除的entry上
+        sessions.compute(sessionId, (k, entry) -> {
+            SessionEntry result = entry == null ? new SessionEntry() : entry;
+            result.statements.put(pending.statementId, pending);
+            return result;
+        });
+        if (closed) {
+            //跟close并发时，close可能没有看到这个statement
+            fail(pending, new IOException("statement poller closed"));
+            return pending.future;
+        }
+        start();
+        return pending.future;
+    }
+
+    //当前在途的statement数量
+    public int getNumPending() {
+        int num = 0;
+        for (SessionEntry entry : sessions.values()) {
+            num += entry.statements.size();
+        }
+        return num;
+    }
+
+    //停止轮询，在途的statement以IOException失败
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            if (tickFuture != null) {
+                tickFuture.cancel(false);
+                tickFuture = null;
+            }
+        }
+        IOException e = new IOException("statement poller closed");
+        for (String sessionId : sessions.keySet()) {
+            SessionEntry entry = sessions.remove(sessionId);
+            if (entry != null) {
+                for (PendingStatement pending : entry.statements.values()) {
+                    pending.future.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    private void fail(PendingStatement pending, Throwable e) {
+        sessions.computeIfPresent(pending.sessionId, (k, entry) -> {
+            entry.statements.remove(pending.statementId);
+            return entry.statements.isEmpty() ? null : entry;
+        });
+        pending.future.completeExceptionally(e);
+    }
+
+    private void start() {
+        if (tickFuture == null) {
+            synchronized (this) {
+                if (tickFuture == null && !closed) {
+                    tickFuture = LivyClient.SCHEDULER.scheduleWithFixedDelay(this::tick,
+                            TICK_INTERVAL, TICK_INTERVAL, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+    }
+
+    void tick() {
+        try {
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, SessionEntry> e : sessions.entrySet()) {
+                SessionEntry entry = e.getValue();
+                //调用方取消的直接移除
+                entry.statements.values().removeIf(p -> p.future.isDone());
+                if (entry.statements.isEmpty()) {
+                    //跟track互斥，期间新登记了statement时保留
+                    sessions.computeIfPresent(e.getKey(), (k, v) -> v.statements.isEmpty() ? null : v);
+                    continue;
+                }
+                if (entry.inFlight.get() || !isDue(entry, now)) {
+                    continue;
+                }
+                if (entry.inFlight.compareAndSet(false, true)) {
+                    poll(e.getKey(), entry);
+                }
+            }
+        } catch (Exception e) {
+            log.error("statement poller tick error:{}", e.getMessage());
+        }
+    }
+
+    private boolean isDue(SessionEntry entry, long now) {
+        for (PendingStatement pending : entry.statements.values()) {
+            if (pending.nextCheck <= now) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void poll(String sessionId, SessionEntry entry) {
+        int from = Integer.MAX_VALUE;
+        int to = Integer.MIN_VALUE;
+        //只读取在途且需要output的statement的output，范围内其他调用方已经结束的statement不解析
+        Set<String> withOutput = Collections.emptySet();
+        //流式读取结果的statement单独查询，到期的才查
+        List<PendingStatement> streams = Collections.emptyList();
+        long now = System.currentTimeMillis();
+        for (PendingStatement pending : entry.statements.values()) {
+            if (pending.result != null) {
+                if (pending.nextCheck <= now) {
+                    if (streams.isEmpty()) {
+                        streams = new ArrayList<>();
+                    }
+                    streams.add(pending);
+                }
+                continue;
+            }
+            from = Math.min(from, pending.statementId);
+            to = Math.max(to, pending.statementId);
+            if (!pending.skipOutput) {
+                if (withOutput.isEmpty()) {
+                    withOutput = Collections.singleton(pending.id);
+                } else {
+                    if (withOutput.size() == 1) {
+                        withOutput = new HashSet<>(withOutput);
+                    }
+                    withOutput.add(pending.id);
+                }
+            }
+        }
+        boolean list = from <= to;
+        //所有请求都返回后才允许下一次轮询
+        AtomicInteger remaining = new AtomicInteger((list ? 1 : 0) + streams.size());
+        if (remaining.get() == 0) {
+            entry.inFlight.set(false);
+            return;
+        }
+        Runnable done = () -> {
+            if (remaining.decrementAndGet() == 0) {
+                entry.inFlight.set(false);
+            }
+        };
+        if (list) {
+            LivyMetrics.get().increment(LivyMetrics.POLL_REQUESTS);
+            for (PendingStatement pending : entry.statements.values()) {
+                if (pending.result == null) {
+                    pending.polls++;
+                }
+            }
+            livyClient.listStatementsAsync(sessionId, from, to - from + 1, withOutput).whenComplete((response, e) -> {
+                try {
+                    if (e != null) {
+                        onPollFailure(sessionId, entry, LivyClient.unwrap(e));
+                    } else {
+                        entry.failures = 0;
+                        onPollSuccess(entry, response);
+                    }
+                } finally {
+                    done.run();
+                }
+            });
+        }
+        for (PendingStatement pending : streams) {
+            LivyMetrics.get().increment(LivyMetrics.POLL_REQUESTS);
+            pending.polls++;
+            livyClient.getStatementStreamAsync(sessionId, pending.id).whenComplete((streamed, e) -> {
+                try {
+                    if (e != null) {
+                        onPollFailure(sessionId, entry, LivyClient.unwrap(e));
+                    } else {
+                        entry.failures = 0;
+                        onStreamSuccess(entry, pending, streamed);
+                    }
+                } finally {
+                    done.run();
+                }
+            });
+        }
+    }
+
+    private void onPollSuccess(SessionEntry entry, ListStatementResponse response) {
+        long now = System.currentTimeMillis();
+        if (response.getStatements() != null) {
+            for (Statement statement : response.getStatements()) {
+                PendingStatement pending = entry.statements.get(Integer.parseInt(statement.getId()));
+                //流式读取结果的statement由单独的查询处理
+                if (pending == null || pending.result != null) {
+                    continue;
+                }
+                onStatement(entry, pending, statement, response.getReceivedTime(), now);
+            }
+        }
+        //超时由调用方按deadline处理，超时后取消future，下个tick移除
+        for (PendingStatement pending : entry.statements.values()) {
+            if (pending.result == null) {
+                pending.nextCheck = now + nextInterval(now - pending.submitTime, pending.progress);
+            }
+        }
+    }
+
+    private void onStreamSuccess(SessionEntry entry, PendingStatement pending, LivyClient.StreamedStatement streamed) {
+        long now = System.currentTimeMillis();
+        //先交出游标，调用方拿到statement时游标已经就绪；调用方已经放弃时由它负责关闭
+        if (!isRunning(streamed.getStatement().getState())) {
+            if (streamed.getError() != null) {
+                pending.result.completeExceptionally(streamed.getError());
+            } else {
+                pending.result.complete(streamed.getCursor());
+            }
+        }
+        if (onStatement(entry, pending, streamed.getStatement(), now, now)) {
+            pending.nextCheck = now + nextInterval(now - pending.submitTime, pending.progress);
+        }
+    }
+
+    //处理一个statement的最新状态，还在运行时返回true
+    private boolean onStatement(SessionEntry entry, PendingStatement pending, Statement statement, long receivedTime, long now) {
+        if (pending.trace != null && !StringUtils.equals(statement.getState(), pending.lastState)) {
+            pending.lastState = statement.getState();
+            pending.trace.addStateChange(now, statement.getState(), statement.getProgress());
+        }
+        if (isRunning(statement.getState())) {
+            pending.progress = statement.getProgress();
+            return true;
+        }
+        entry.statements.remove(pending.statementId);
+        record(pending, statement, now);
+        if (pending.trace != null) {
+            QueryTrace trace = pending.trace;
+            trace.setResponseStart(receivedTime);
+            trace.setParseEnd(now);
+            trace.setPolls(pending.polls);
+            trace.setLivyStarted(statement.getStarted());
+            trace.setLivyCompleted(statement.getCompleted());
+        }
+        pending.future.complete(statement);
+        return false;
+    }
+
+    private static void record(PendingStatement pending, Statement statement, long now) {
+        LivyMetrics metrics = LivyMetrics.get();
+        long total = now - pending.submitTime;
+        metrics.record(LivyMetrics.STATEMENT_TOTAL, total);
+        if (statement.getStarted() > 0 && statement.getCompleted() >= statement.getStarted()) {
+            long run = statement.getCompleted() - statement.getStarted();
+            metrics.record(LivyMetrics.STATEMENT_RUN, run);
+            metrics.record(LivyMetrics.STATEMENT_QUEUE, Math.max(0, total - run));
+        }
+        metrics.record(LivyMetrics.STATEMENT_POLLS, pending.polls);
+        if (statement.getOutput() != null && statement.getOutput().getData() != null) {
+            metrics.record(LivyMetrics.RESULT_CHARS, statement.getOutput().getData().length());
+        }
+    }
+
+    //waiting、running、cancelling都还没有结束
+    static boolean isRunning(String state) {
+        return state != null && StatementState.of(state).isRunning();
+    }
+
+    private void onPollFailure(String sessionId, SessionEntry entry, Throwable e) {
+        entry.failures++;
+        log.warn("poll statements error,livy session id:{},failures:{},error:{}", sessionId, entry.failures, e.getMessage());
+        if (entry.failures < MAX_POLL_FAILURES) {
+            long now = System.currentTimeMillis();
+            for (PendingStatement pending : entry.statements.values()) {
+                pending.nextCheck = now + MIN_POLL_INTERVAL * (1L << entry.failures);
+            }
+            return;
+        }
+        for (PendingStatement pending : entry.statements.values()) {
+            entry.statements.remove(pending.statementId);
+            pending.future.completeExceptionally(e);
+        }
+    }
+
+    //运行时间的1/4作为间隔，progress预估剩余时间更短时按剩余时间的一半
+    static long nextInterval(long elapsed, double progress) {
+        long interval = elapsed / 4;
+        if (progress > 0 && progress < 1) {
+            long remaining = (long) (elapsed * (1 - progress) / progress);
+            interval = Math.min(interval, remaining / 2);
+        }
+        return Math.max(MIN_POLL_INTERVAL, Math.min(MAX_POLL_INTERVAL, interval));
+    }
+
+    private static class SessionEntry {
+        private final Map<Integer, PendingStatement> statements = new ConcurrentHashMap<>();
+        private final AtomicBoolean inFlight = new AtomicBoolean(false);
+        private volatile int failures;
+    }
+
+    private static class PendingStatement {
+        private final String sessionId;
+        private final String id;
+        private final int statementId;
+        private final String code;
+        private final long submitTime = System.currentTimeMillis();
+        private final boolean skipOutput;
+        private final CompletableFuture<Statement> future = new CompletableFuture<>();
+        //不为空时单独查询状态，结束时交出结果游标
+        private final CompletableFuture<ResultCursor> result;
+        private volatile long nextCheck = submitTime + MIN_POLL_INTERVAL;
+        private volatile double progress;
+        private volatile int polls;
+        private final QueryTrace trace;
+        private volatile String lastState;
+
+        private PendingStatement(String sessionId, String id, String code, boolean skipOutput,
+                                 CompletableFuture<ResultCursor> result, QueryTrace trace) {
+            this.result = result;
+            this.trace = trace;
+            this.sessionId = sessionId;
+            this.id = id;
+            this.statementId = Integer.parseInt(id);
+            this.code = code;
+            this.skipOutput = skipOutput;
+        }
+    }
+}
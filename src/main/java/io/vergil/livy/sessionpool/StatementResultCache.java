@@ -0,0 +1,139 @@
+package io.vergil.livy.sessionpool;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import io.vergil.livy.sessionpool.model.Statement;
+import io.vergil.livy.sessionpool.model.StatementState;
+import io.vergil.livy.sessionpool.utils.SqlUtils;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 查询结果缓存。
+ * <p>
+ * key为规范化后的sql+kind，只缓存只读查询的成功结果。
+ * 按过期时间(TTL)失效，按结果大小加权的LRU淘汰。
+ * 按表维护索引，表数据变化时可以按表失效；索引只用不带库名的表名，db.t和t互相失效。
+ * <p>
+ * 返回的Statement是缓存中的同一个对象，调用方不要修改。
+ */
+@Slf4j
+public class StatementResultCache {
+    //按字符估算，每个结果额外算1KB的对象开销
+    private static final int ENTRY_OVERHEAD = 1024;
+
+    private final Cache<CacheKey, Statement> cache;
+    private final Map<String, Set<CacheKey>> tableIndex = new ConcurrentHashMap<>();
+
+    public StatementResultCache(long ttl, TimeUnit unit, long maxBytes) {
+        RemovalListener<CacheKey, Statement> removalListener = notification -> {
+            //同一个key重新put时，新的结果仍然在索引里
+            if (notification.getCause() != RemovalCause.REPLACED) {
+                unindex(notification.getKey());
+            }
+        };
+        this.cache = CacheBuilder.newBuilder()
+                .expireAfterWrite(ttl, unit)
+                .maximumWeight(maxBytes)
+                .weigher((CacheKey key, Statement statement) -> weigh(key, statement))
+                .removalListener(removalListener)
+                .recordStats()
+                .build();
+    }
+
+    //是否可以缓存
+    public boolean isCacheable(String code_, String kind) {
+        return StringUtils.equals(kind, "sql") && SqlUtils.isReadOnly(code_);
+    }
+
+    public Statement get(String code_, String kind) {
+        return cache.getIfPresent(new CacheKey(SqlUtils.normalize(code_), kind));
+    }
+
+    //只缓存成功的结果
+    public void put(String code_, String kind, Statement statement) {
+        if (!isCacheable(code_, kind) || !isSuccess(statement)) {
+            return;
+        }
+        CacheKey key = new CacheKey(SqlUtils.normalize(code_), kind);
+        for (String table : SqlUtils.extractTables(code_)) {
+            tableIndex.compute(indexName(table), (k, keys) -> {
+                if (keys == null) {
+                    keys = ConcurrentHashMap.newKeySet();
+                }
+                keys.add(key);
+                return keys;
+            });
+        }
+        cache.put(key, statement);
+    }
+
+    //表数据变化时调用，表名不区分大小写
+    public void invalidateTable(String table) {
+        Set<CacheKey> keys = tableIndex.remove(indexName(table));
+        if (keys != null) {
+            log.debug("invalidate cached results of table:{},count:{}", table, keys.size());
+            cache.invalidateAll(keys);
+        }
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    public double hitRate() {
+        return cache.stats().hitRate();
+    }
+
+    static boolean isSuccess(Statement statement) {
+        return statement != null
+                && statement.getStatementState() == StatementState.AVAILABLE
+                && statement.getOutput() != null
+                && StringUtils.equals(statement.getOutput().getStatus(), "ok");
+    }
+
+    private static int weigh(CacheKey key, Statement statement) {
+        long chars = key.getCode().length();
+        if (statement.getOutput() != null && statement.getOutput().getData() != null) {
+            chars += statement.getOutput().getData().length();
+        }
+        return (int) Math.min(Integer.MAX_VALUE, chars * 2 + ENTRY_OVERHEAD);
+    }
+
+    private void unindex(CacheKey key) {
+        for (String table : SqlUtils.extractTables(key.getCode())) {
+            tableIndex.computeIfPresent(indexName(table), (k, keys) -> {
+                keys.remove(key);
+                return keys.isEmpty() ? null : keys;
+            });
+        }
+    }
+
+    //小写，去掉反引号和库名
+    static String indexName(String table) {
+        String name = table.replace("`", "").trim().toLowerCase();
+        return name.substring(name.lastIndexOf('.') + 1);
+    }
+
+    int getNumIndexedTables() {
+        return tableIndex.size();
+    }
+
+    @Data
+    private static class CacheKey {
+        private final String code;
+        private final String kind;
+    }
+}
@@ -0,0 +1,24 @@
+package io.vergil.livy.sessionpool.columnar;
+
+import java.util.BitSet;
+
+/**
+ * 布尔列，值保存在位图中。
+ */
+public class BooleanColumn extends Column {
+    private final BitSet values;
+
+    BooleanColumn(String name, String type, BitSet values, int size, BitSet nulls) {
+        super(name, type, size, nulls);
+        this.values = values;
+    }
+
+    public boolean getBoolean(int row) {
+        return values.get(row);
+    }
+
+    @Override
+    public Object getObject(int row) {
+        return isNull(row) ? null : getBoolean(row);
+    }
+}
@@ -0,0 +1,44 @@
+package io.vergil.livy.sessionpool.columnar;
+
+import java.util.BitSet;
+
+/**
+ * 列存结果中的一列，null单独用位图记录。
+ */
+public abstract class Column {
+    private final String name;
+    private final String type;
+    private final int size;
+    private final BitSet nulls;
+
+    protected Column(String name, String type, int size, BitSet nulls) {
+        this.name = name;
+        this.type = type;
+        this.size = size;
+        this.nulls = nulls;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    //spark的字段类型，如 integer、double、string、decimal(10,2)
+    public String getType() {
+        return type;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isNull(int row) {
+        return nulls.get(row);
+    }
+
+    public int getNullCount() {
+        return nulls.cardinality();
+    }
+
+    //装箱读取，扫描时优先用各列的原始类型方法
+    public abstract Object getObject(int row);
+}
@@ -0,0 +1,83 @@
+package io.vergil.livy.sessionpool.columnar;
+
+import io.vergil.livy.sessionpool.ResultCursor;
+import io.vergil.livy.sessionpool.model.ResponseResult;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * 列存的查询结果，按ResponseResult.Field.type把每列转成原始类型数组，
+ * 数值列不装箱，字符串列字典编码，null用位图记录。
+ */
+public class ColumnarBatch {
+    private final ResponseResult.Schema schema;
+    private final List<Column> columns;
+    private final int rowCount;
+
+    ColumnarBatch(ResponseResult.Schema schema, List<Column> columns, int rowCount) {
+        this.schema = schema;
+        this.columns = columns;
+        this.rowCount = rowCount;
+    }
+
+    public ResponseResult.Schema getSchema() {
+        return schema;
+    }
+
+    public List<Column> getColumns() {
+        return columns;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public Column column(int index) {
+        return columns.get(index);
+    }
+
+    public Column column(String name) {
+        for (Column column : columns) {
+            if (column.getName().equalsIgnoreCase(name)) {
+                return column;
+            }
+        }
+        throw new IllegalArgumentException("column not found : " + name);
+    }
+
+    //整体转换
+    public static ColumnarBatch of(ResponseResult result, boolean offHeap) {
+        List<List<Object>> data = result.getData();
+        ColumnarBatchBuilder builder = new ColumnarBatchBuilder(result.getSchema(), data == null ? 16 : data.size(), offHeap);
+        if (data != null) {
+            for (List<Object> row : data) {
+                builder.append(row);
+            }
+        }
+        return builder.build();
+    }
+
+    //从流式结果按批转换，每批最多batchSize行
+    public static Iterator<ColumnarBatch> read(ResultCursor cursor, int batchSize, boolean offHeap) {
+        return new Iterator<ColumnarBatch>() {
+            @Override
+            public boolean hasNext() {
+                return cursor.hasNext();
+            }
+
+            @Override
+            public ColumnarBatch next() {
+                if (!cursor.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                ColumnarBatchBuilder builder = new ColumnarBatchBuilder(cursor.getSchema(), batchSize, offHeap);
+                while (builder.size() < batchSize && cursor.hasNext()) {
+                    builder.append(cursor.next());
+                }
+                return builder.build();
+            }
+        };
+    }
+}
@@ -0,0 +1,260 @@
+package io.vergil.livy.sessionpool.columnar;
+
+import io.vergil.livy.sessionpool.model.ResponseResult;
+
+import java.util.*;
+
+/**
+ * 逐行追加，按列类型写入对应的原始类型数组，容量不够时翻倍。
+ * <p>
+ * build时直接把数组交给ColumnarBatch，不再复制，所以每个builder只能build一次，之后不能再追加。
+ */
+public class ColumnarBatchBuilder {
+    private final ResponseResult.Schema schema;
+    private final boolean offHeap;
+    private final ColumnWriter[] writers;
+    private int size;
+    private boolean built;
+
+    public ColumnarBatchBuilder(ResponseResult.Schema schema, int capacity, boolean offHeap) {
+        this.schema = schema;
+        this.offHeap = offHeap;
+        List<ResponseResult.Field> fields = schema == null || schema.getFields() == null
+                ? Collections.emptyList() : schema.getFields();
+        this.writers = new ColumnWriter[fields.size()];
+        for (int i = 0; i < fields.size(); i++) {
+            writers[i] = ColumnWriter.of(fields.get(i), Math.max(capacity, 1));
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void append(List<Object> row) {
+        checkNotBuilt();
+        for (int i = 0; i < writers.length; i++) {
+            Object value = row != null && i < row.size() ? row.get(i) : null;
+            writers[i].write(size, value);
+        }
+        size++;
+    }
+
+    public ColumnarBatch build() {
+        checkNotBuilt();
+        built = true;
+        List<Column> columns = new ArrayList<>(writers.length);
+        for (ColumnWriter writer : writers) {
+            columns.add(writer.build(size, offHeap));
+        }
+        return new ColumnarBatch(schema, columns, size);
+    }
+
+    private void checkNotBuilt() {
+        if (built) {
+            throw new IllegalStateException("columnar batch already built");
+        }
+    }
+
+    private abstract static class ColumnWriter {
+        protected final String name;
+        protected final String type;
+        protected final BitSet nulls = new BitSet();
+
+        ColumnWriter(ResponseResult.Field field) {
+            this.name = field.getName();
+            this.type = field.getType();
+        }
+
+        static ColumnWriter of(ResponseResult.Field field, int capacity) {
+            String type = field.getType() == null ? "" : field.getType().toLowerCase();
+            switch (type) {
+                case "byte":
+                case "short":
+                case "integer":
+                case "long":
+                    return new LongWriter(field, capacity);
+                case "float":
+                case "double":
+                    return new DoubleWriter(field, capacity);
+                case "boolean":
+                    return new BooleanWriter(field);
+                case "string":
+                    return new StringWriter(field, capacity);
+                default:
+                    return new ObjectWriter(field, capacity);
+            }
+        }
+
+        void write(int row, Object value) {
+            if (value == null) {
+                nulls.set(row);
+                writeNull(row);
+            } else {
+                writeValue(row, value);
+            }
+        }
+
+        abstract void writeNull(int row);
+
+        abstract void writeValue(int row, Object value);
+
+        abstract Column build(int size, boolean offHeap);
+    }
+
+    private static class LongWriter extends ColumnWriter {
+        private long[] values;
+
+        LongWriter(ResponseResult.Field field, int capacity) {
+            super(field);
+            values = new long[capacity];
+        }
+
+        @Override
+        void writeNull(int row) {
+            ensure(row);
+        }
+
+        @Override
+        void writeValue(int row, Object value) {
+            ensure(row);
+            values[row] = value instanceof Number ? ((Number) value).longValue() : Long.parseLong(value.toString());
+        }
+
+        private void ensure(int row) {
+            if (row >= values.length) {
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+        }
+
+        @Override
+        Column build(int size, boolean offHeap) {
+            return new LongColumn(name, type, values, size, nulls, offHeap);
+        }
+    }
+
+    private static class DoubleWriter extends ColumnWriter {
+        private double[] values;
+
+        DoubleWriter(ResponseResult.Field field, int capacity) {
+            super(field);
+            values = new double[capacity];
+        }
+
+        @Override
+        void writeNull(int row) {
+            ensure(row);
+        }
+
+        @Override
+        void writeValue(int row, Object value) {
+            ensure(row);
+            values[row] = value instanceof Number ? ((Number) value).doubleValue() : Double.parseDouble(value.toString());
+        }
+
+        private void ensure(int row) {
+            if (row >= values.length) {
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+        }
+
+        @Override
+        Column build(int size, boolean offHeap) {
+            return new DoubleColumn(name, type, values, size, nulls, offHeap);
+        }
+    }
+
+    private static class BooleanWriter extends ColumnWriter {
+        private final BitSet values = new BitSet();
+
+        BooleanWriter(ResponseResult.Field field) {
+            super(field);
+        }
+
+        @Override
+        void writeNull(int row) {
+        }
+
+        @Override
+        void writeValue(int row, Object value) {
+            values.set(row, value instanceof Boolean ? (Boolean) value : Boolean.parseBoolean(value.toString()));
+        }
+
+        @Override
+        Column build(int size, boolean offHeap) {
+            return new BooleanColumn(name, type, values, size, nulls);
+        }
+    }
+
+    private static class StringWriter extends ColumnWriter {
+        private final Map<String, Integer> codeOf = new HashMap<>();
+        private final List<String> dictionary = new ArrayList<>();
+        private int[] codes;
+
+        StringWriter(ResponseResult.Field field, int capacity) {
+            super(field);
+            codes = new int[capacity];
+        }
+
+        @Override
+        void writeNull(int row) {
+            ensure(row);
+            codes[row] = -1;
+        }
+
+        @Override
+        void writeValue(int row, Object value) {
+            ensure(row);
+            String str = value.toString();
+            Integer code = codeOf.get(str);
+            if (code == null) {
+                code = dictionary.size();
+                dictionary.add(str);
+                codeOf.put(str, code);
+            }
+            codes[row] = code;
+        }
+
+        private void ensure(int row) {
+            if (row >= codes.length) {
+                codes = Arrays.copyOf(codes, codes.length * 2);
+            }
+        }
+
+        @Override
+        Column build(int size, boolean offHeap) {
+            return new StringColumn(name, type, codes, Collections.unmodifiableList(dictionary), size, nulls);
+        }
+    }
+
+    private static class ObjectWriter extends ColumnWriter {
+        private Object[] values;
+
+        ObjectWriter(ResponseResult.Field field, int capacity) {
+            super(field);
+            values = new Object[capacity];
+        }
+
+        @Override
+        void writeNull(int row) {
+            ensure(row);
+        }
+
+        @Override
+        void writeValue(int row, Object value) {
+            ensure(row);
+            values[row] = value;
+        }
+
+        private void ensure(int row) {
+            if (row >= values.length) {
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+        }
+
+        @Override
+        Column build(int size, boolean offHeap) {
+            return new ObjectColumn(name, type, values, size, nulls);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package io.vergil.livy.sessionpool.columnar;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.BitSet;
+
+/**
+ * 浮点列(float/double)，值保存在double[]或堆外内存中。
+ */
+public class DoubleColumn extends Column {
+    private final double[] values;
+    private final DoubleBuffer offHeapValues;
+
+    DoubleColumn(String name, String type, double[] values, int size, BitSet nulls, boolean offHeap) {
+        super(name, type, size, nulls);
+        if (offHeap) {
+            this.offHeapValues = ByteBuffer.allocateDirect(size * Double.BYTES).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+            this.offHeapValues.put(values, 0, size);
+            this.values = null;
+        } else {
+            this.values = values;
+            this.offHeapValues = null;
+        }
+    }
+
+    public double getDouble(int row) {
+        return values != null ? values[row] : offHeapValues.get(row);
+    }
+
+    public boolean isOffHeap() {
+        return values == null;
+    }
+
+    public double sum() {
+        double sum = 0;
+        for (int i = 0; i < size(); i++) {
+            sum += getDouble(i);
+        }
+        return sum;
+    }
+
+    @Override
+    public Object getObject(int row) {
+        return isNull(row) ? null : getDouble(row);
+    }
+}
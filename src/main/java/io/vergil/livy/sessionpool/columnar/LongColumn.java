@@ -0,0 +1,47 @@
+package io.vergil.livy.sessionpool.columnar;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.BitSet;
+
+/**
+ * 整数列(byte/short/integer/long)，值保存在long[]或堆外内存中。
+ */
+public class LongColumn extends Column {
+    private final long[] values;
+    private final LongBuffer offHeapValues;
+
+    LongColumn(String name, String type, long[] values, int size, BitSet nulls, boolean offHeap) {
+        super(name, type, size, nulls);
+        if (offHeap) {
+            this.offHeapValues = ByteBuffer.allocateDirect(size * Long.BYTES).order(ByteOrder.nativeOrder()).asLongBuffer();
+            this.offHeapValues.put(values, 0, size);
+            this.values = null;
+        } else {
+            this.values = values;
+            this.offHeapValues = null;
+        }
+    }
+
+    public long getLong(int row) {
+        return values != null ? values[row] : offHeapValues.get(row);
+    }
+
+    public boolean isOffHeap() {
+        return values == null;
+    }
+
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < size(); i++) {
+            sum += getLong(i);
+        }
+        return sum;
+    }
+
+    @Override
+    public Object getObject(int row) {
+        return isNull(row) ? null : getLong(row);
+    }
+}
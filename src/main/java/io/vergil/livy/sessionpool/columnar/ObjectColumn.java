@@ -0,0 +1,20 @@
+package io.vergil.livy.sessionpool.columnar;
+
+import java.util.BitSet;
+
+/**
+ * 其他类型(decimal、date、timestamp、复杂类型)的列，按原始解析的对象保存。
+ */
+public class ObjectColumn extends Column {
+    private final Object[] values;
+
+    ObjectColumn(String name, String type, Object[] values, int size, BitSet nulls) {
+        super(name, type, size, nulls);
+        this.values = values;
+    }
+
+    @Override
+    public Object getObject(int row) {
+        return values[row];
+    }
+}
@@ -0,0 +1,36 @@
+package io.vergil.livy.sessionpool.columnar;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * 字典编码的字符串列，每行只保存字典下标，重复的值只保存一份。
+ */
+public class StringColumn extends Column {
+    private final int[] codes;
+    private final List<String> dictionary;
+
+    StringColumn(String name, String type, int[] codes, List<String> dictionary, int size, BitSet nulls) {
+        super(name, type, size, nulls);
+        this.codes = codes;
+        this.dictionary = dictionary;
+    }
+
+    public String getString(int row) {
+        return isNull(row) ? null : dictionary.get(codes[row]);
+    }
+
+    //字典下标，可以直接用于分组
+    public int getCode(int row) {
+        return codes[row];
+    }
+
+    public List<String> getDictionary() {
+        return dictionary;
+    }
+
+    @Override
+    public Object getObject(int row) {
+        return getString(row);
+    }
+}
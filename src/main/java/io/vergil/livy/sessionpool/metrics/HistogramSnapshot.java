@@ -0,0 +1,18 @@
+package io.vergil.livy.sessionpool.metrics;
+
+import lombok.Data;
+
+/**
+ * 直方图某一时刻的统计值，JMX中以CompositeData展示。
+ */
+@Data
+public class HistogramSnapshot {
+    private String name;
+    private long count;
+    private double mean;
+    private long max;
+    private long p50;
+    private long p90;
+    private long p99;
+    private long p999;
+}
@@ -0,0 +1,110 @@
+package io.vergil.livy.sessionpool.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 无锁直方图，记录非负long值(一般是毫秒耗时，也可以是次数、大小)。
+ * <p>
+ * 对数-线性分桶：小于8的值每个一桶，之后每个2的幂区间分8个桶，相对误差不超过12.5%，
+ * 记录只有几次原子加，不分配对象。
+ */
+public class LatencyHistogram {
+    static final int SUB_BUCKETS = 8;
+    static final int SUB_BUCKET_BITS = 3;
+    static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong(0);
+
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public HistogramSnapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+        HistogramSnapshot snapshot = new HistogramSnapshot();
+        snapshot.setName(name);
+        snapshot.setCount(total);
+        snapshot.setMax(max.get());
+        snapshot.setMean(total == 0 ? 0 : (double) sum.sum() / count.sum());
+        snapshot.setP50(percentile(copy, total, 0.5));
+        snapshot.setP90(percentile(copy, total, 0.9));
+        snapshot.setP99(percentile(copy, total, 0.99));
+        snapshot.setP999(percentile(copy, total, 0.999));
+        return snapshot;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exp - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    //桶内最大值
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exp = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        long lower = (long) (SUB_BUCKETS + sub) << (exp - SUB_BUCKET_BITS);
+        return lower + (1L << (exp - SUB_BUCKET_BITS)) - 1;
+    }
+
+    private long percentile(long[] copy, long total, double quantile) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * quantile);
+        long seen = 0;
+        for (int i = 0; i < copy.length; i++) {
+            seen += copy[i];
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+}
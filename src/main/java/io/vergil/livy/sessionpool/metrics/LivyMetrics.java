@@ -0,0 +1,130 @@
+package io.vergil.livy.sessionpool.metrics;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 进程内的指标注册表，池子、工厂、LivyClient都记录到这里，通过JMX或snapshot()拉取。
+ * <p>
+ * 耗时单位都是毫秒。
+ */
+@Slf4j
+public class LivyMetrics implements LivyMetricsMXBean {
+    public static final String OBJECT_NAME = "io.vergil.livy.sessionpool:type=LivyMetrics";
+
+    //借用session的等待时间
+    public static final String BORROW_WAIT = "pool.borrow.wait";
+    //创建新session的耗时，包括等待session启动
+    public static final String SESSION_CREATE = "session.create";
+    public static final String SESSION_CREATE_FAILURES = "session.create.failures";
+    //借出后长时间没有活动、被当作泄漏回收的session数
+    public static final String SESSION_LEAKED = "session.leaked";
+    //新session执行预热步骤的耗时
+    public static final String SESSION_WARMUP = "session.warmup";
+    public static final String SESSION_VALIDATE = "session.validate";
+    public static final String SESSION_VALIDATE_FAILURES = "session.validate.failures";
+    //http请求耗时，完整名称为 http.{host:port}.{method} {path}
+    public static final String HTTP_PREFIX = "http.";
+    public static final String HTTP_ERRORS_SUFFIX = ".errors";
+    //从提交到开始执行(客户端总耗时减去livy记录的执行时间)
+    public static final String STATEMENT_QUEUE = "statement.queue";
+    //livy记录的执行时间 completed - started
+    public static final String STATEMENT_RUN = "statement.run";
+    //从提交到客户端拿到结束状态
+    public static final String STATEMENT_TOTAL = "statement.total";
+    //每个statement结束前被轮询的次数
+    public static final String STATEMENT_POLLS = "statement.polls";
+    public static final String POLL_REQUESTS = "poll.requests";
+    //过载时快速拒绝的次数：熔断、创建session并发上限、借用排队超过延迟目标
+    public static final String OVERLOAD_REJECTIONS = "overload.rejections";
+    //在共用session上执行的statement数
+    public static final String STATEMENT_MULTIPLEXED = "statement.multiplexed";
+    //结果大小：output.data字符数、流式读取的行数
+    public static final String RESULT_CHARS = "statement.result.chars";
+    public static final String RESULT_ROWS = "statement.result.rows";
+
+    private static final LivyMetrics INSTANCE = new LivyMetrics();
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+        } catch (Exception e) {
+            log.warn("register livy metrics mbean error:{}", e.getMessage());
+        }
+    }
+
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    public static LivyMetrics get() {
+        return INSTANCE;
+    }
+
+    public LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histogram = histograms.computeIfAbsent(name, LatencyHistogram::new);
+        }
+        return histogram;
+    }
+
+    public void record(String name, long value) {
+        histogram(name).record(value);
+    }
+
+    public void increment(String name) {
+        counter(name).increment();
+    }
+
+    private LongAdder counter(String name) {
+        LongAdder counter = counters.get(name);
+        if (counter == null) {
+            counter = counters.computeIfAbsent(name, k -> new LongAdder());
+        }
+        return counter;
+    }
+
+    public MetricsSnapshot snapshot() {
+        MetricsSnapshot snapshot = new MetricsSnapshot();
+        snapshot.setTime(System.currentTimeMillis());
+        Map<String, HistogramSnapshot> histogramSnapshots = new TreeMap<>();
+        for (LatencyHistogram histogram : histograms.values()) {
+            histogramSnapshots.put(histogram.getName(), histogram.snapshot());
+        }
+        snapshot.setHistograms(histogramSnapshots);
+        snapshot.setCounters(getCounters());
+        return snapshot;
+    }
+
+    @Override
+    public List<HistogramSnapshot> getHistograms() {
+        return new ArrayList<>(snapshot().getHistograms().values());
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> e : counters.entrySet()) {
+            values.put(e.getKey(), e.getValue().sum());
+        }
+        return values;
+    }
+
+    @Override
+    public void reset() {
+        for (LatencyHistogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+        for (LongAdder counter : counters.values()) {
+            counter.reset();
+        }
+    }
+}
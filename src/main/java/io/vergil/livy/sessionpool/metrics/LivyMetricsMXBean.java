@@ -0,0 +1,16 @@
+package io.vergil.livy.sessionpool.metrics;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JMX接口，ObjectName为io.vergil.livy.sessionpool:type=LivyMetrics
+ */
+public interface LivyMetricsMXBean {
+
+    List<HistogramSnapshot> getHistograms();
+
+    Map<String, Long> getCounters();
+
+    void reset();
+}
@@ -0,0 +1,15 @@
+package io.vergil.livy.sessionpool.metrics;
+
+import lombok.Data;
+
+import java.util.Map;
+
+/**
+ * 所有指标某一时刻的快照，用于定时拉取后上报到其他监控系统。
+ */
+@Data
+public class MetricsSnapshot {
+    private long time;
+    private Map<String, HistogramSnapshot> histograms;
+    private Map<String, Long> counters;
+}
@@ -0,0 +1,21 @@
+package io.vergil.livy.sessionpool.model;
+
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * 批量执行中单条sql的结果，成功时有schema和data，失败时只有error。
+ */
+@Data
+public class BatchResult {
+    private int index;
+    private String code;
+    private ResponseResult.Schema schema;
+    private List<List<Object>> data;
+    private String error;
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+}
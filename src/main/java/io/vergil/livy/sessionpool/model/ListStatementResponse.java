@@ -0,0 +1,15 @@
+package io.vergil.livy.sessionpool.model;
+
+import com.alibaba.fastjson.annotation.JSONField;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class ListStatementResponse {
+    private int total_statements;
+    private List<Statement> statements;
+    //开始收到响应的时间
+    @JSONField(serialize = false, deserialize = false)
+    private long receivedTime;
+}
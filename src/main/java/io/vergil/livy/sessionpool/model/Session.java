@@ -1,20 +1,120 @@
 package io.vergil.livy.sessionpool.model;
 
+import com.alibaba.fastjson.annotation.JSONField;
 import io.vergil.livy.sessionpool.LivyClient;
+import io.vergil.livy.sessionpool.ResultCursor;
+import io.vergil.livy.sessionpool.SessionProfile;
+import io.vergil.livy.sessionpool.StatementBatch;
+import io.vergil.livy.sessionpool.trace.QueryTrace;
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
+import org.apache.commons.pool2.TrackedUse;
 
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * livy session。实现TrackedUse，池子按最后一次statement活动判断借出的session是否泄漏，
+ * 有statement正在等待结果、或者结果游标还没有关闭时一直算作活动中。
+ * <p>
+ * 按所属livy的地址和id判断相等，不同livy上的session id会重复；状态、使用时间等可变字段不参与。
+ */
 @Data
-public class Session {
+public class Session implements TrackedUse {
     private String id;
     private String appId;
     private String owner;
     private String name;
     private String proxyUser;
     private String state;
+    //state对应的枚举，随setState更新
+    @JSONField(serialize = false, deserialize = false)
+    @Setter(AccessLevel.NONE)
+    private SessionState sessionState;
     private LivyClient livyClient;
+    //创建时使用的资源配置
+    private SessionProfile profile;
+    //最近一次借用的开始、结束时间，用于查询trace
+    @JSONField(serialize = false, deserialize = false)
+    private long borrowStart;
+    @JSONField(serialize = false, deserialize = false)
+    private long borrowEnd;
+    //本次借用的时间是否已经记到trace上，只记到借用后的第一个trace
+    @JSONField(serialize = false, deserialize = false)
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private final AtomicBoolean borrowTraced = new AtomicBoolean(true);
+    //预热时缓存过的表，小写
+    @JSONField(serialize = false, deserialize = false)
+    private Set<String> warmedTables = ConcurrentHashMap.newKeySet();
+    //借用位置，开启泄漏检测时记录
+    @JSONField(serialize = false, deserialize = false)
+    private String borrowSite;
+    //最后一次statement活动的时间
+    @JSONField(serialize = false, deserialize = false)
+    @Setter(AccessLevel.NONE)
+    private volatile long lastUsed = System.currentTimeMillis();
+    //正在等待结果的statement数
+    @JSONField(serialize = false, deserialize = false)
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private final AtomicInteger activeStatements = new AtomicInteger(0);
+
+    //已知状态复用枚举里的字符串，解析出来的字符串可以尽快回收
+    public void setState(String state) {
+        this.sessionState = SessionState.of(state);
+        this.state = sessionState == null || sessionState == SessionState.UNKNOWN ? state : sessionState.getValue();
+    }
+
+    //每次借用时在setBorrowStart之后调用
+    public void setBorrowEnd(long borrowEnd) {
+        this.borrowEnd = borrowEnd;
+        borrowTraced.set(false);
+    }
+
+    @Override
+    public long getLastUsed() {
+        return activeStatements.get() > 0 ? System.currentTimeMillis() : lastUsed;
+    }
+
+    public void touch() {
+        lastUsed = System.currentTimeMillis();
+    }
+
+    @JSONField(serialize = false)
+    public int getNumActiveStatements() {
+        return activeStatements.get();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Session)) {
+            return false;
+        }
+        Session other = (Session) o;
+        return Objects.equals(id, other.id) && Objects.equals(endpoint(), other.endpoint());
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id, endpoint());
+    }
+
+    private String endpoint() {
+        return livyClient == null ? null : livyClient.getUrl();
+    }
 
     //delete session
     public void deleteSession() throws IOException {
@@ -33,16 +133,19 @@ public class Session {
 
     //execute statement
     public Statement executeStatement(String code_, String kind) throws IOException {
+        touch();
         return livyClient.executeStatement(id, code_, kind);
     }
 
     //get statement
     public Statement getStatement(String statementId) throws IOException {
+        touch();
         return livyClient.getStatement(id, statementId);
     }
 
     //cancel statement
     public void cancelStatement(String statementId) throws IOException {
+        touch();
         livyClient.cancelStatement(id, statementId);
     }
 
@@ -52,6 +155,82 @@ public class Session {
     }
 
     public Statement executeStatementSync(String code_, String kind) throws IOException, SQLException {
-        return livyClient.executeStatementSync(id, code_, kind);
+        return executeStatementSync(code_, kind, LivyClient.defaultDeadline());
+    }
+
+    //deadline为截止时间点(毫秒)，超时后取消livy上的statement
+    public Statement executeStatementSync(String code_, String kind, long deadline) throws IOException, SQLException {
+        return executeStatementSync(code_, kind, deadline, startTrace(code_, kind));
+    }
+
+    public Statement executeStatementSync(String code_, String kind, long deadline, QueryTrace trace) throws IOException, SQLException {
+        beginUse();
+        try {
+            return livyClient.executeStatementSync(id, code_, kind, deadline, trace);
+        } finally {
+            endUse();
+        }
+    }
+
+    public CompletableFuture<Statement> executeStatementAsync(String code_, String kind) {
+        return executeStatementAsync(code_, kind, LivyClient.defaultDeadline());
+    }
+
+    public CompletableFuture<Statement> executeStatementAsync(String code_, String kind, long deadline) {
+        beginUse();
+        CompletableFuture<Statement> future = livyClient.executeStatementAsync(id, code_, kind, deadline, startTrace(code_, kind));
+        future.whenComplete((statement, e) -> endUse());
+        return future;
+    }
+
+    //多条sql合并成一个statement执行
+    public List<BatchResult> executeBatch(List<String> codes) throws IOException, SQLException {
+        return executeBatch(codes, LivyClient.defaultDeadline());
+    }
+
+    public List<BatchResult> executeBatch(List<String> codes, long deadline) throws IOException, SQLException {
+        beginUse();
+        try {
+            return livyClient.executeBatchSync(id, new StatementBatch(codes), deadline);
+        } finally {
+            endUse();
+        }
+    }
+
+    //结果按行流式读取，游标关闭前session一直算作活动中
+    public ResultCursor executeStatementCursor(String code_, String kind) throws IOException, SQLException {
+        return executeStatementCursor(code_, kind, LivyClient.defaultDeadline());
+    }
+
+    public ResultCursor executeStatementCursor(String code_, String kind, long deadline) throws IOException, SQLException {
+        beginUse();
+        ResultCursor cursor;
+        try {
+            cursor = livyClient.executeStatementCursor(id, code_, kind, deadline, startTrace(code_, kind));
+        } catch (IOException | SQLException | RuntimeException e) {
+            endUse();
+            throw e;
+        }
+        return cursor.onClose(this::endUse);
+    }
+
+    private void beginUse() {
+        activeStatements.incrementAndGet();
+        touch();
+    }
+
+    private void endUse() {
+        touch();
+        activeStatements.decrementAndGet();
+    }
+
+    //开启trace时带上借用时间，同一次借用上的后续statement不再计入借用耗时
+    private QueryTrace startTrace(String code_, String kind) {
+        QueryTrace trace = livyClient.startTrace(id, code_, kind);
+        if (trace != null && borrowTraced.compareAndSet(false, true)) {
+            trace.setBorrowStart(borrowStart);
+            trace.setBorrowEnd(borrowEnd);
+        }
+        return trace;
     }
 }
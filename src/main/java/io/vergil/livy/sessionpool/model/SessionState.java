@@ -0,0 +1,65 @@
+package io.vergil.livy.sessionpool.model;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * livy session状态，value为livy返回的字符串
+ */
+public enum SessionState {
+    NOT_STARTED("not_started"),
+    STARTING("starting"),
+    IDLE("idle"),
+    BUSY("busy"),
+    SHUTTING_DOWN("shutting_down"),
+    ERROR("error"),
+    DEAD("dead"),
+    KILLED("killed"),
+    SUCCESS("success"),
+    //livy新版本增加的其他状态
+    UNKNOWN(null);
+
+    private static final Map<String, SessionState> VALUES = new HashMap<>();
+
+    static {
+        for (SessionState state : values()) {
+            if (state.value != null) {
+                VALUES.put(state.value, state);
+            }
+        }
+    }
+
+    private final String value;
+
+    SessionState(String value) {
+        this.value = value;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    //null返回null，不认识的状态返回UNKNOWN
+    public static SessionState of(String value) {
+        if (value == null) {
+            return null;
+        }
+        SessionState state = VALUES.get(value);
+        return state == null ? UNKNOWN : state;
+    }
+
+    //已经结束启动阶段
+    public boolean isStarted() {
+        return this != NOT_STARTED && this != STARTING;
+    }
+
+    //还没有结束
+    public boolean isLive() {
+        return this != DEAD && this != KILLED && this != ERROR && this != SUCCESS;
+    }
+
+    //可以执行statement
+    public boolean isUsable() {
+        return this == IDLE || this == BUSY || this == SUCCESS;
+    }
+}
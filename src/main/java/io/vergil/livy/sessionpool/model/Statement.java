@@ -1,16 +1,29 @@
 package io.vergil.livy.sessionpool.model;
 
+import com.alibaba.fastjson.annotation.JSONField;
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.Setter;
 
 @Data
 public class Statement {
     private String id;
     private String state;
+    //state对应的枚举，随setState更新
+    @JSONField(serialize = false, deserialize = false)
+    @Setter(AccessLevel.NONE)
+    private StatementState statementState;
     private Output output;
     private double progress;
     private long started;
     private long completed;
 
+    //已知状态复用枚举里的字符串，解析出来的字符串可以尽快回收
+    public void setState(String state) {
+        this.statementState = StatementState.of(state);
+        this.state = statementState == null || statementState == StatementState.UNKNOWN ? state : statementState.getValue();
+    }
+
     @Data
     public static class Output {
         private String status;
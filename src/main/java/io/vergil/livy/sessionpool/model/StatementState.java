@@ -0,0 +1,52 @@
+package io.vergil.livy.sessionpool.model;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * livy statement状态，value为livy返回的字符串
+ */
+public enum StatementState {
+    WAITING("waiting"),
+    RUNNING("running"),
+    AVAILABLE("available"),
+    ERROR("error"),
+    CANCELLING("cancelling"),
+    CANCELLED("cancelled"),
+    //livy新版本增加的其他状态
+    UNKNOWN(null);
+
+    private static final Map<String, StatementState> VALUES = new HashMap<>();
+
+    static {
+        for (StatementState state : values()) {
+            if (state.value != null) {
+                VALUES.put(state.value, state);
+            }
+        }
+    }
+
+    private final String value;
+
+    StatementState(String value) {
+        this.value = value;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    //null返回null，不认识的状态返回UNKNOWN
+    public static StatementState of(String value) {
+        if (value == null) {
+            return null;
+        }
+        StatementState state = VALUES.get(value);
+        return state == null ? UNKNOWN : state;
+    }
+
+    //waiting、running、cancelling都还没有结束
+    public boolean isRunning() {
+        return this == WAITING || this == RUNNING || this == CANCELLING;
+    }
+}
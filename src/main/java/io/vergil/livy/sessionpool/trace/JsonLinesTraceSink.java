@@ -0,0 +1,104 @@
+package io.vergil.livy.sessionpool.trace;
+
+import com.alibaba.fastjson.JSONObject;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 每条trace写一行json，追加到文件，便于用jq等工具分析。
+ * <p>
+ * 回调线程只把trace放进队列，由后台线程写文件，队列空时再flush；队列满时丢弃。
+ */
+@Slf4j
+public class JsonLinesTraceSink implements TraceSink, Closeable {
+    public static final int DEFAULT_CAPACITY = 10_000;
+    private static final long POLL_INTERVAL = 100;
+    private static final long CLOSE_TIMEOUT = 5000;
+
+    private final BufferedWriter writer;
+    private final BlockingQueue<QueryTrace> queue;
+    private final ExecutorService writeExecutor;
+    //队列满丢弃的trace数
+    private final AtomicLong dropped = new AtomicLong(0);
+    private volatile boolean closed;
+
+    public JsonLinesTraceSink(String file) throws IOException {
+        this(file, DEFAULT_CAPACITY);
+    }
+
+    public JsonLinesTraceSink(String file, int capacity) throws IOException {
+        this.writer = Files.newBufferedWriter(Paths.get(file), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.writeExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("livy-trace-writer-%d")
+                .setDaemon(true)
+                .build());
+        writeExecutor.execute(this::writeLoop);
+    }
+
+    @Override
+    public void accept(QueryTrace trace) {
+        if (closed || !queue.offer(trace)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    public long getNumDropped() {
+        return dropped.get();
+    }
+
+    //写完队列中剩下的trace后关闭文件
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        writeExecutor.shutdown();
+        try {
+            if (!writeExecutor.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                log.warn("query trace writer not finished,remaining:{}", queue.size());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writer.close();
+    }
+
+    private void writeLoop() {
+        try {
+            while (!closed || !queue.isEmpty()) {
+                QueryTrace trace = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (trace == null) {
+                    continue;
+                }
+                try {
+                    writer.write(JSONObject.toJSONString(trace));
+                    writer.newLine();
+                    if (queue.isEmpty()) {
+                        writer.flush();
+                    }
+                } catch (IOException e) {
+                    log.error("write query trace error:{}", e.getMessage());
+                }
+            }
+            writer.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            log.error("flush query trace error:{}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package io.vergil.livy.sessionpool.trace;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 单个查询的时间线，时间都是毫秒时间戳，0表示没有经过该阶段。
+ * <p>
+ * livyStarted、livyCompleted是livy服务端的时间，其余是客户端时间。
+ */
+@Data
+public class QueryTrace {
+    private String traceId;
+    private String sessionId;
+    private String statementId;
+    private String code;
+    private String kind;
+    private long borrowStart;
+    private long borrowEnd;
+    //POST statement
+    private long submitStart;
+    private long submitEnd;
+    private List<StateChange> stateChanges = new CopyOnWriteArrayList<>();
+    private long livyStarted;
+    private long livyCompleted;
+    //返回结束状态的那次轮询：开始收到响应、解析完成
+    private long responseStart;
+    private long parseEnd;
+    private int polls;
+    private long finishTime;
+    private String finalState;
+    private String error;
+
+    public void addStateChange(long time, String state, double progress) {
+        stateChanges.add(new StateChange(time, state, progress));
+    }
+
+    //各阶段耗时，用于找出慢在哪一步
+    public Map<String, Long> getPhases() {
+        Map<String, Long> phases = new LinkedHashMap<>();
+        putPhase(phases, "borrow", borrowStart, borrowEnd);
+        putPhase(phases, "submit", submitStart, submitEnd);
+        putPhase(phases, "run", livyStarted, livyCompleted);
+        putPhase(phases, "wait", submitEnd, responseStart);
+        putPhase(phases, "parse", responseStart, parseEnd);
+        putPhase(phases, "total", borrowStart > 0 ? borrowStart : submitStart, finishTime);
+        return phases;
+    }
+
+    private static void putPhase(Map<String, Long> phases, String name, long start, long end) {
+        if (start > 0 && end >= start) {
+            phases.put(name, end - start);
+        }
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class StateChange {
+        private long time;
+        private String state;
+        private double progress;
+    }
+}
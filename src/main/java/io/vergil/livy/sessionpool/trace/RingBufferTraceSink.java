@@ -0,0 +1,43 @@
+package io.vergil.livy.sessionpool.trace;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 只保留最近capacity条trace，无锁写入，用于在线排查。
+ */
+public class RingBufferTraceSink implements TraceSink {
+    private final AtomicReferenceArray<QueryTrace> buffer;
+    private final AtomicLong next = new AtomicLong(0);
+
+    public RingBufferTraceSink(int capacity) {
+        this.buffer = new AtomicReferenceArray<>(capacity);
+    }
+
+    @Override
+    public void accept(QueryTrace trace) {
+        buffer.set((int) (next.getAndIncrement() % buffer.length()), trace);
+    }
+
+    //最近的trace，新的在前
+    public List<QueryTrace> getTraces() {
+        List<QueryTrace> traces = new ArrayList<>();
+        long last = next.get();
+        for (long i = last - 1; i >= 0 && i >= last - buffer.length(); i--) {
+            QueryTrace trace = buffer.get((int) (i % buffer.length()));
+            if (trace != null) {
+                traces.add(trace);
+            }
+        }
+        return traces;
+    }
+
+    //按总耗时从大到小取前n条
+    public List<QueryTrace> getSlowest(int n) {
+        List<QueryTrace> traces = getTraces();
+        traces.sort((a, b) -> Long.compare(b.getPhases().getOrDefault("total", 0L), a.getPhases().getOrDefault("total", 0L)));
+        return traces.size() > n ? new ArrayList<>(traces.subList(0, n)) : traces;
+    }
+}
@@ -0,0 +1,9 @@
+package io.vergil.livy.sessionpool.trace;
+
+/**
+ * 查询结束时接收trace，实现要快且不能抛异常，在回调线程中执行。
+ */
+public interface TraceSink {
+
+    void accept(QueryTrace trace);
+}
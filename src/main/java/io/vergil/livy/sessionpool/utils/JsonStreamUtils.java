@@ -0,0 +1,134 @@
+package io.vergil.livy.sessionpool.utils;
+
+import com.alibaba.fastjson.JSONException;
+import com.alibaba.fastjson.parser.DefaultJSONParser;
+import com.alibaba.fastjson.parser.JSONLexer;
+import com.alibaba.fastjson.parser.JSONReaderScanner;
+import com.alibaba.fastjson.parser.JSONToken;
+
+import java.io.Reader;
+
+/**
+ * 基于fastjson词法分析的流式读取，按字段、按数组元素逐个读取，不把整个响应读入内存。
+ * 当前token总是指向下一个要读取的值。
+ */
+public class JsonStreamUtils {
+
+    public static DefaultJSONParser open(Reader reader) {
+        return new DefaultJSONParser(new JSONReaderScanner(reader));
+    }
+
+    //从字符数组读取，词法分析使用自己的缓冲区，不会把数组转成String
+    public static DefaultJSONParser open(char[] chars, int length) {
+        return new DefaultJSONParser(new JSONReaderScanner(chars, length));
+    }
+
+    //关闭底层流，不要求已经读到结尾
+    public static void close(DefaultJSONParser parser) {
+        parser.getLexer().close();
+    }
+
+    public static boolean isNull(DefaultJSONParser parser) {
+        return parser.getLexer().token() == JSONToken.NULL;
+    }
+
+    //进入对象，当前token必须是 {，字段名由nextName直接扫描
+    public static void beginObject(DefaultJSONParser parser) {
+        JSONLexer lexer = parser.getLexer();
+        if (lexer.token() != JSONToken.LBRACE) {
+            throw new JSONException("expect '{', but " + JSONToken.name(lexer.token()));
+        }
+    }
+
+    /**
+     * 读取下一个字段名并移动到字段值上，对象结束时返回null。
+     * 字段名从符号表取，同名字段不重复生成String。
+     */
+    public static String nextName(DefaultJSONParser parser) {
+        JSONLexer lexer = parser.getLexer();
+        if (lexer.token() == JSONToken.RBRACE) {
+            lexer.nextToken();
+            return null;
+        }
+        if (lexer.token() != JSONToken.LBRACE && lexer.token() != JSONToken.COMMA) {
+            throw new JSONException("expect ',' or '}', but " + JSONToken.name(lexer.token()));
+        }
+        lexer.skipWhitespace();
+        char ch = lexer.getCurrent();
+        if (ch == '}') {
+            lexer.next();
+            lexer.resetStringPosition();
+            lexer.nextToken();
+            return null;
+        }
+        if (ch != '"') {
+            throw new JSONException("expect field name, but " + ch);
+        }
+        String name = lexer.scanSymbol(parser.getSymbolTable(), '"');
+        lexer.skipWhitespace();
+        if (lexer.getCurrent() != ':') {
+            throw new JSONException("expect ':', but " + lexer.getCurrent());
+        }
+        lexer.next();
+        lexer.resetStringPosition();
+        lexer.nextToken();
+        return name;
+    }
+
+    //进入数组，当前token必须是 [
+    public static void beginArray(DefaultJSONParser parser) {
+        JSONLexer lexer = parser.getLexer();
+        if (lexer.token() != JSONToken.LBRACKET) {
+            throw new JSONException("expect '[', but " + JSONToken.name(lexer.token()));
+        }
+        lexer.nextToken();
+    }
+
+    //是否还有数组元素，数组结束时移动到下一个token
+    public static boolean hasNextElement(DefaultJSONParser parser) {
+        JSONLexer lexer = parser.getLexer();
+        if (lexer.token() == JSONToken.COMMA) {
+            lexer.nextToken();
+        }
+        if (lexer.token() == JSONToken.RBRACKET) {
+            lexer.nextToken();
+            return false;
+        }
+        return true;
+    }
+
+    //跳过当前的值，对象和数组逐层跳过，不整体读入内存
+    public static void skipValue(DefaultJSONParser parser) {
+        int token = parser.getLexer().token();
+        if (token == JSONToken.LBRACE) {
+            beginObject(parser);
+            while (nextName(parser) != null) {
+                skipValue(parser);
+            }
+        } else if (token == JSONToken.LBRACKET) {
+            beginArray(parser);
+            while (hasNextElement(parser)) {
+                skipValue(parser);
+            }
+        } else {
+            //字符串、数字扫描时只记录位置，不取值就不会生成对象
+            parser.getLexer().nextToken();
+        }
+    }
+
+    public static String readString(DefaultJSONParser parser) {
+        Object value = parser.parse();
+        return value == null ? null : value.toString();
+    }
+
+    //读取数值，null返回默认值
+    public static double readDouble(DefaultJSONParser parser, double defaultValue) {
+        Object value = parser.parse();
+        return value instanceof Number ? ((Number) value).doubleValue() : defaultValue;
+    }
+
+    public static long readLong(DefaultJSONParser parser, long defaultValue) {
+        Object value = parser.parse();
+        return value instanceof Number ? ((Number) value).longValue() : defaultValue;
+    }
+}
@@ -0,0 +1,113 @@
+package io.vergil.livy.sessionpool.utils;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class SqlUtils {
+    private static final Pattern TABLE_PATTERN = Pattern.compile(
+            "\\b(?:from|join|into|table|update)\\s+([`\\w.]+)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern READ_ONLY_PATTERN = Pattern.compile(
+            "^\\s*(?:select|with|show|desc|describe|explain)\\b", Pattern.CASE_INSENSITIVE);
+    private static final Pattern WITH_PATTERN = Pattern.compile("^\\s*with\\b", Pattern.CASE_INSENSITIVE);
+    private static final Pattern WRITE_PATTERN = Pattern.compile(
+            "\\b(?:insert|merge|update|delete|create|drop|alter)\\b", Pattern.CASE_INSENSITIVE);
+
+    //去掉多余空白和结尾分号，引号外的内容转小写，引号内保持原样，反斜杠转义的字符原样保留
+    public static String normalize(String sql) {
+        if (sql == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(sql.length());
+        char quote = 0;
+        boolean space = false;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (quote != 0) {
+                sb.append(c);
+                if (c == '\\' && i + 1 < sql.length()) {
+                    sb.append(sql.charAt(++i));
+                } else if (c == quote) {
+                    quote = 0;
+                }
+                continue;
+            }
+            if (Character.isWhitespace(c)) {
+                space = sb.length() > 0;
+                continue;
+            }
+            if (space) {
+                sb.append(' ');
+                space = false;
+            }
+            if (c == '\'' || c == '"' || c == '`') {
+                quote = c;
+                sb.append(c);
+            } else {
+                sb.append(Character.toLowerCase(c));
+            }
+        }
+        int end = sb.length();
+        while (end > 0 && (sb.charAt(end - 1) == ';' || sb.charAt(end - 1) == ' ')) {
+            end--;
+        }
+        sb.setLength(end);
+        return sb.toString();
+    }
+
+    //只读查询，with开头的还要看主语句，比如 with t as (...) insert into x select ... 不是只读的
+    public static boolean isReadOnly(String sql) {
+        if (sql == null || !READ_ONLY_PATTERN.matcher(sql).find()) {
+            return false;
+        }
+        return !WITH_PATTERN.matcher(sql).find() || !WRITE_PATTERN.matcher(topLevel(sql)).find();
+    }
+
+    //只保留括号外、引号外的内容，其余替换为空格
+    private static String topLevel(String sql) {
+        StringBuilder sb = new StringBuilder(sql.length());
+        char quote = 0;
+        int depth = 0;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (quote != 0) {
+                if (c == '\\') {
+                    i++;
+                } else if (c == quote) {
+                    quote = 0;
+                }
+                sb.append(' ');
+                continue;
+            }
+            if (c == '\'' || c == '"' || c == '`') {
+                quote = c;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth = Math.max(0, depth - 1);
+            } else if (depth == 0) {
+                sb.append(c);
+                continue;
+            }
+            sb.append(' ');
+        }
+        return sb.toString();
+    }
+
+    //sql中涉及的表名，小写，去掉反引号
+    public static Set<String> extractTables(String sql) {
+        Set<String> tables = new LinkedHashSet<>();
+        if (sql == null) {
+            return tables;
+        }
+        Matcher matcher = TABLE_PATTERN.matcher(sql);
+        while (matcher.find()) {
+            String table = matcher.group(1).replace("`", "").toLowerCase();
+            if (!table.isEmpty() && !table.startsWith("(")) {
+                tables.add(table);
+            }
+        }
+        return tables;
+    }
+}
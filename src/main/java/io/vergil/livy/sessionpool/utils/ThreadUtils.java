@@ -0,0 +1,19 @@
+package io.vergil.livy.sessionpool.utils;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+public class ThreadUtils {
+
+    public static ScheduledExecutorService newDaemonScheduler(String name, int threads) {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(threads,
+                new ThreadFactoryBuilder()
+                        .setNameFormat(name + "-%d")
+                        .setDaemon(true)
+                        .build());
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+}
@@ -0,0 +1,448 @@
+package io.vergil.livy.sessionpool;
+
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 进程内的livy模拟服务，实现session、statement生命周期相关的rest接口，用于测试和压测。
+ * <p>
+ * 状态按时间推算：session创建后startupDelay毫秒变为idle；同一个session的statement依次执行，
+ * 执行时间由statementRuntime生成。可以注入http 500、session启动失败、statement执行失败，
+ * 结果行数可配置。
+ */
+public class FakeLivyServer implements AutoCloseable {
+    private static final Pattern SESSION = Pattern.compile("^/sessions/(\\d+)$");
+    private static final Pattern STATEMENTS = Pattern.compile("^/sessions/(\\d+)/statements$");
+    private static final Pattern STATEMENT = Pattern.compile("^/sessions/(\\d+)/statements/(\\d+)$");
+    private static final Pattern CANCEL = Pattern.compile("^/sessions/(\\d+)/statements/(\\d+)/cancel$");
+    private static final Pattern ID = Pattern.compile("/\\d+");
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<Integer, FakeSession> sessions = new ConcurrentHashMap<>();
+    private final AtomicInteger nextSessionId = new AtomicInteger(0);
+    private final Map<String, LongAdder> requestCounts = new ConcurrentHashMap<>();
+
+    private volatile long startupDelay = 1000;
+    private volatile LongSupplier statementRuntime = fixed(200);
+    private volatile double errorRate;
+    private volatile double sessionFailureRate;
+    private volatile double statementErrorRate;
+    private volatile int resultRows = 3;
+
+    public FakeLivyServer() throws IOException {
+        this(0);
+    }
+
+    public FakeLivyServer(int port) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "fake-livy");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public FakeLivyServer setStartupDelay(long startupDelay) {
+        this.startupDelay = startupDelay;
+        return this;
+    }
+
+    public FakeLivyServer setStatementRuntime(LongSupplier statementRuntime) {
+        this.statementRuntime = statementRuntime;
+        return this;
+    }
+
+    //每个请求返回500的概率
+    public FakeLivyServer setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+        return this;
+    }
+
+    //session启动后变为dead的概率
+    public FakeLivyServer setSessionFailureRate(double sessionFailureRate) {
+        this.sessionFailureRate = sessionFailureRate;
+        return this;
+    }
+
+    //statement执行失败(output.status为error)的概率
+    public FakeLivyServer setStatementErrorRate(double statementErrorRate) {
+        this.statementErrorRate = statementErrorRate;
+        return this;
+    }
+
+    public FakeLivyServer setResultRows(int resultRows) {
+        this.resultRows = resultRows;
+        return this;
+    }
+
+    public static LongSupplier fixed(long millis) {
+        return () -> millis;
+    }
+
+    public static LongSupplier uniform(long min, long max) {
+        return () -> ThreadLocalRandom.current().nextLong(min, max + 1);
+    }
+
+    //指数分布，少数查询很慢
+    public static LongSupplier exponential(long mean) {
+        return () -> (long) (-mean * Math.log(1 - ThreadLocalRandom.current().nextDouble()));
+    }
+
+    //按 "METHOD /path/{id}" 统计的请求数
+    public Map<String, Long> getRequestCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> e : requestCounts.entrySet()) {
+            counts.put(e.getKey(), e.getValue().sum());
+        }
+        return counts;
+    }
+
+    public long getRequestCount() {
+        long total = 0;
+        for (LongAdder adder : requestCounts.values()) {
+            total += adder.sum();
+        }
+        return total;
+    }
+
+    //直接加入一个已经启动完成的session，模拟之前的进程留下的session
+    public int addSession(String name, String proxyUser, boolean dead) {
+        FakeSession session = new FakeSession(nextSessionId.getAndIncrement(), name, proxyUser, 0, dead);
+        sessions.put(session.id, session);
+        return session.id;
+    }
+
+    public int getNumLiveSessions() {
+        int num = 0;
+        for (FakeSession session : sessions.values()) {
+            if (!session.deleted) {
+                num++;
+            }
+        }
+        return num;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            URI uri = exchange.getRequestURI();
+            String path = uri.getPath().replaceAll("/+$", "");
+            String method = exchange.getRequestMethod();
+            requestCounts.computeIfAbsent(method + " " + ID.matcher(path).replaceAll("/{id}"), k -> new LongAdder()).increment();
+            if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                send(exchange, 500, "\"injected error\"");
+                return;
+            }
+            Map<String, String> query = parseQuery(uri.getRawQuery());
+            long now = System.currentTimeMillis();
+            Matcher m;
+            if ("/sessions".equals(path) && "GET".equals(method)) {
+                send(exchange, 200, listSessions(query, now));
+            } else if ("/sessions".equals(path) && "POST".equals(method)) {
+                send(exchange, 201, createSession(readBody(exchange), now));
+            } else if ((m = SESSION.matcher(path)).matches()) {
+                FakeSession session = sessions.get(Integer.parseInt(m.group(1)));
+                if (session == null || session.deleted) {
+                    send(exchange, 404, "\"session not found\"");
+                } else if ("DELETE".equals(method)) {
+                    session.deleted = true;
+                    send(exchange, 200, "{\"msg\":\"deleted\"}");
+                } else {
+                    send(exchange, 200, session.toJson(now).toJSONString());
+                }
+            } else if ((m = STATEMENTS.matcher(path)).matches()) {
+                FakeSession session = sessions.get(Integer.parseInt(m.group(1)));
+                if (session == null || session.deleted) {
+                    send(exchange, 404, "\"session not found\"");
+                } else if ("POST".equals(method)) {
+                    JSONObject body = JSONObject.parseObject(readBody(exchange));
+                    send(exchange, 201, session.submit(body.getString("code"), now).toJson(now).toJSONString());
+                } else {
+                    send(exchange, 200, session.listStatements(query, now));
+                }
+            } else if ((m = STATEMENT.matcher(path)).matches()) {
+                FakeStatement statement = statementOf(m);
+                if (statement == null) {
+                    send(exchange, 404, "\"statement not found\"");
+                } else {
+                    send(exchange, 200, statement.toJson(now).toJSONString());
+                }
+            } else if ((m = CANCEL.matcher(path)).matches() && "POST".equals(method)) {
+                FakeStatement statement = statementOf(m);
+                if (statement == null) {
+                    send(exchange, 404, "\"statement not found\"");
+                } else {
+                    statement.cancel(now);
+                    send(exchange, 200, "{\"msg\":\"canceled\"}");
+                }
+            } else {
+                send(exchange, 404, "\"not found\"");
+            }
+        } catch (Exception e) {
+            send(exchange, 500, JSONObject.toJSONString(String.valueOf(e)));
+        }
+    }
+
+    private FakeStatement statementOf(Matcher m) {
+        FakeSession session = sessions.get(Integer.parseInt(m.group(1)));
+        if (session == null || session.deleted) {
+            return null;
+        }
+        int statementId = Integer.parseInt(m.group(2));
+        synchronized (session) {
+            return statementId < session.statements.size() ? session.statements.get(statementId) : null;
+        }
+    }
+
+    private String createSession(String content, long now) {
+        JSONObject body = JSONObject.parseObject(content);
+        FakeSession session = new FakeSession(nextSessionId.getAndIncrement(), body.getString("name"),
+                body.getString("proxyUser"), now + startupDelay,
+                ThreadLocalRandom.current().nextDouble() < sessionFailureRate);
+        sessions.put(session.id, session);
+        return session.toJson(now).toJSONString();
+    }
+
+    private String listSessions(Map<String, String> query, long now) {
+        List<FakeSession> live = new ArrayList<>();
+        for (FakeSession session : new TreeMap<>(sessions).values()) {
+            if (!session.deleted) {
+                live.add(session);
+            }
+        }
+        int from = Integer.parseInt(query.getOrDefault("from", "0"));
+        int size = Integer.parseInt(query.getOrDefault("size", "100"));
+        JSONArray array = new JSONArray();
+        for (int i = from; i < Math.min(live.size(), from + size); i++) {
+            array.add(live.get(i).toJson(now));
+        }
+        JSONObject response = new JSONObject();
+        response.put("from", from);
+        response.put("total", live.size());
+        response.put("sessions", array);
+        return response.toJSONString();
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int i = pair.indexOf('=');
+            if (i > 0) {
+                query.put(pair.substring(0, i), pair.substring(i + 1));
+            }
+        }
+        return query;
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] buffer = new byte[4096];
+            StringBuilder body = new StringBuilder();
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                body.append(new String(buffer, 0, n, StandardCharsets.UTF_8));
+            }
+            return body.toString();
+        }
+    }
+
+    private static void send(HttpExchange exchange, int code, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private class FakeSession {
+        private final int id;
+        private final String name;
+        private final String proxyUser;
+        private final long readyTime;
+        private final boolean fail;
+        private final List<FakeStatement> statements = new ArrayList<>();
+        private volatile boolean deleted;
+        //最后一个statement结束的时间，statement依次执行
+        private long busyUntil;
+
+        private FakeSession(int id, String name, String proxyUser, long readyTime, boolean fail) {
+            this.id = id;
+            this.name = name;
+            this.proxyUser = proxyUser;
+            this.readyTime = readyTime;
+            this.fail = fail;
+        }
+
+        private synchronized FakeStatement submit(String code, long now) {
+            long start = Math.max(now, busyUntil);
+            FakeStatement statement = new FakeStatement(statements.size(), code, start, start + statementRuntime.getAsLong(),
+                    ThreadLocalRandom.current().nextDouble() < statementErrorRate);
+            busyUntil = statement.completed;
+            statements.add(statement);
+            return statement;
+        }
+
+        private String state(long now) {
+            if (now < readyTime) {
+                return LivyClient.SESSION_STARTING;
+            }
+            if (fail) {
+                return LivyClient.SESSION_DEAD;
+            }
+            synchronized (this) {
+                return now < busyUntil ? LivyClient.SESSION_BUSY : LivyClient.SESSION_IDLE;
+            }
+        }
+
+        private synchronized String listStatements(Map<String, String> query, long now) {
+            int from = Integer.parseInt(query.getOrDefault("from", "0"));
+            int size = Integer.parseInt(query.getOrDefault("size", "100"));
+            JSONArray array = new JSONArray();
+            for (int i = from; i < Math.min(statements.size(), from + size); i++) {
+                array.add(statements.get(i).toJson(now));
+            }
+            JSONObject response = new JSONObject();
+            response.put("total_statements", statements.size());
+            response.put("statements", array);
+            return response.toJSONString();
+        }
+
+        private JSONObject toJson(long now) {
+            JSONObject json = new JSONObject(new LinkedHashMap<>());
+            json.put("id", id);
+            json.put("name", name);
+            json.put("proxyUser", proxyUser);
+            json.put("state", state(now));
+            json.put("kind", "shared");
+            return json;
+        }
+    }
+
+    private class FakeStatement {
+        private final int id;
+        private final String code;
+        private final long started;
+        private final boolean error;
+        private volatile long completed;
+        private volatile boolean cancelled;
+
+        private FakeStatement(int id, String code, long started, long completed, boolean error) {
+            this.id = id;
+            this.code = code;
+            this.started = started;
+            this.completed = completed;
+            this.error = error;
+        }
+
+        private void cancel(long now) {
+            if (now < completed) {
+                cancelled = true;
+                completed = Math.max(now, started);
+            }
+        }
+
+        private JSONObject toJson(long now) {
+            JSONObject json = new JSONObject(new LinkedHashMap<>());
+            json.put("id", id);
+            json.put("code", code);
+            String state;
+            if (cancelled) {
+                state = LivyClient.STATEMENT_CANCELLED;
+            } else if (now < started) {
+                state = LivyClient.STATEMENT_WAITING;
+            } else if (now < completed) {
+                state = LivyClient.STATEMENT_RUNNING;
+            } else {
+                state = LivyClient.STATEMENT_AVAILABLE;
+            }
+            json.put("state", state);
+            json.put("progress", now < started ? 0 : Math.min(1.0, (double) (now - started) / Math.max(1, completed - started)));
+            json.put("started", now < started ? 0 : started);
+            json.put("completed", LivyClient.STATEMENT_AVAILABLE.equals(state) || cancelled ? completed : 0);
+            json.put("output", LivyClient.STATEMENT_AVAILABLE.equals(state) ? output() : null);
+            return json;
+        }
+
+        private JSONObject output() {
+            JSONObject output = new JSONObject(new LinkedHashMap<>());
+            if (error) {
+                output.put("status", "error");
+                output.put("execution_count", id);
+                output.put("ename", "AnalysisException");
+                output.put("evalue", "injected statement error");
+                return output;
+            }
+            output.put("status", "ok");
+            output.put("execution_count", id);
+            JSONArray fields = new JSONArray();
+            fields.add(field("id", "long"));
+            fields.add(field("value", "string"));
+            JSONObject schema = new JSONObject(new LinkedHashMap<>());
+            schema.put("type", "struct");
+            schema.put("fields", fields);
+            JSONArray rows = new JSONArray();
+            for (int i = 0; i < resultRows; i++) {
+                JSONArray row = new JSONArray();
+                row.add(i);
+                row.add("v" + i);
+                rows.add(row);
+            }
+            JSONObject result = new JSONObject(new LinkedHashMap<>());
+            result.put("schema", schema);
+            result.put("data", rows);
+            JSONObject data = new JSONObject(new LinkedHashMap<>());
+            data.put("application/json", result);
+            output.put("data", data);
+            return output;
+        }
+
+        private JSONObject field(String name, String type) {
+            JSONObject field = new JSONObject(new LinkedHashMap<>());
+            field.put("name", name);
+            field.put("type", type);
+            field.put("nullable", true);
+            return field;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package io.vergil.livy.sessionpool;
+
+import io.vergil.livy.sessionpool.metrics.HistogramSnapshot;
+import io.vergil.livy.sessionpool.metrics.LatencyHistogram;
+import io.vergil.livy.sessionpool.model.Session;
+import io.vergil.livy.sessionpool.model.Statement;
+import lombok.Data;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 压测：多个客户端线程循环 借用session -> 执行statement -> 归还，
+ * 统计吞吐、借用等待和查询耗时的分位数、对livy的请求数。
+ * <p>
+ * main方法用FakeLivyServer对比几种池子配置。
+ */
+public class LoadHarness {
+
+    @Data
+    public static class Result {
+        private String name;
+        private long queries;
+        private long errors;
+        private double throughput;
+        private HistogramSnapshot borrowWait;
+        private HistogramSnapshot latency;
+        private long livyRequests;
+        private Map<String, Long> requestCounts;
+        private long sessionsCreated;
+    }
+
+    public static Result run(String name, FakeLivyServer server, GenericObjectPoolConfig config,
+                             int clients, long durationMillis) throws Exception {
+        LivySessionFactory factory = new LivySessionFactory(server.getUrl(),
+                new SessionProfile("load", "1G", 1, "1G", 1, 1, 1, "default"));
+        LivySessionPool pool = new LivySessionPool(factory, config);
+        pool.preparePool();
+        Map<String, Long> before = server.getRequestCounts();
+        LatencyHistogram borrowWait = new LatencyHistogram("borrow.wait");
+        LatencyHistogram latency = new LatencyHistogram("query.latency");
+        AtomicLong errors = new AtomicLong(0);
+        long start = System.currentTimeMillis();
+        long end = start + durationMillis;
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            Thread thread = new Thread(() -> {
+                while (System.currentTimeMillis() < end) {
+                    long t0 = System.currentTimeMillis();
+                    Session session;
+                    try {
+                        session = pool.borrowObject();
+                    } catch (Exception e) {
+                        errors.incrementAndGet();
+                        continue;
+                    }
+                    long t1 = System.currentTimeMillis();
+                    borrowWait.record(t1 - t0);
+                    try {
+                        Statement statement = session.executeStatementSync("select * from t", "sql");
+                        if (!StatementResultCache.isSuccess(statement)) {
+                            errors.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        errors.incrementAndGet();
+                    } finally {
+                        pool.returnObject(session);
+                    }
+                    latency.record(System.currentTimeMillis() - t0);
+                }
+            }, "load-client-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        Result result = new Result();
+        result.setName(name);
+        result.setBorrowWait(borrowWait.snapshot());
+        result.setLatency(latency.snapshot());
+        result.setQueries(result.getLatency().getCount());
+        result.setErrors(errors.get());
+        result.setThroughput(result.getQueries() * 1000.0 / elapsed);
+        result.setSessionsCreated(pool.getCreatedCount());
+        Map<String, Long> counts = new TreeMap<>();
+        long total = 0;
+        for (Map.Entry<String, Long> e : server.getRequestCounts().entrySet()) {
+            long count = e.getValue() - before.getOrDefault(e.getKey(), 0L);
+            if (count > 0) {
+                counts.put(e.getKey(), count);
+                total += count;
+            }
+        }
+        result.setRequestCounts(counts);
+        result.setLivyRequests(total);
+        pool.close();
+        factory.getLivyClient().close();
+        return result;
+    }
+
+    public static void print(Result result) {
+        System.out.printf("%-24s queries=%d errors=%d throughput=%.1f/s borrowWait(p50/p99/max)=%d/%d/%dms "
+                        + "latency(p50/p99)=%d/%dms sessions=%d livyRequests=%d%n",
+                result.getName(), result.getQueries(), result.getErrors(), result.getThroughput(),
+                result.getBorrowWait().getP50(), result.getBorrowWait().getP99(), result.getBorrowWait().getMax(),
+                result.getLatency().getP50(), result.getLatency().getP99(),
+                result.getSessionsCreated(), result.getLivyRequests());
+        System.out.println("    " + result.getRequestCounts());
+    }
+
+    private static GenericObjectPoolConfig config(int maxTotal, int minIdle) {
+        GenericObjectPoolConfig config = new GenericObjectPoolConfig();
+        config.setMaxTotal(maxTotal);
+        config.setMaxIdle(maxTotal);
+        config.setMinIdle(minIdle);
+        config.setMaxWaitMillis(60_000);
+        config.setTestOnBorrow(true);
+        return config;
+    }
+
+    //参数：客户端数 每个配置的压测时长(毫秒)
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        long duration = args.length > 1 ? Long.parseLong(args[1]) : 10_000;
+        Map<String, GenericObjectPoolConfig> configs = new java.util.LinkedHashMap<>();
+        configs.put("maxTotal=4", config(4, 0));
+        configs.put("maxTotal=8", config(8, 0));
+        configs.put("maxTotal=8,minIdle=8", config(8, 8));
+        configs.put("maxTotal=16,minIdle=16", config(16, 16));
+        for (Map.Entry<String, GenericObjectPoolConfig> e : configs.entrySet()) {
+            try (FakeLivyServer server = new FakeLivyServer()) {
+                server.setStartupDelay(1000).setStatementRuntime(FakeLivyServer.exponential(200)).setResultRows(100);
+                print(run(e.getKey(), server, e.getValue(), clients, duration));
+            }
+        }
+        System.exit(0);
+    }
+}
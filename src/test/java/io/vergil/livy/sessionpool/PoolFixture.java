@@ -0,0 +1,39 @@
+package io.vergil.livy.sessionpool;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * 测试用的池子：连接FakeLivyServer，使用同一个小配置。
+ */
+public final class PoolFixture {
+    public static final SessionProfile PROFILE = new SessionProfile("work", "1G", 1, "1G", 1, 1, 1, "default");
+
+    private PoolFixture() {
+    }
+
+    public static LivySessionFactory newFactory(FakeLivyServer server) {
+        return new LivySessionFactory(server.getUrl(), PROFILE);
+    }
+
+    public static LivySessionPool newPool(FakeLivyServer server) {
+        return new LivySessionPool(newFactory(server));
+    }
+
+    public static LivySessionPool newPool(FakeLivyServer server, GenericObjectPoolConfig config) {
+        return new LivySessionPool(newFactory(server), config);
+    }
+
+    //等待条件成立，最多等timeoutMillis，返回最后一次检查的结果
+    public static boolean await(BooleanSupplier condition, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+}
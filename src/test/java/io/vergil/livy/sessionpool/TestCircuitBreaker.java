@@ -0,0 +1,110 @@
+package io.vergil.livy.sessionpool;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class TestCircuitBreaker {
+
+    @Test
+    public void openAndRecoverTest() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("test", 1000, 100);
+        for (int i = 0; i < CircuitBreaker.MINIMUM_CALLS - 1; i++) {
+            Assert.assertTrue(breaker.tryAcquire());
+            breaker.onFailure();
+        }
+        //调用数不够时不打开
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        Assert.assertTrue(breaker.tryAcquire());
+        breaker.onFailure();
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Assert.assertFalse(breaker.tryAcquire());
+        Assert.assertTrue(breaker.getRetryAfterMillis() > 0);
+
+        Thread.sleep(150);
+        //半开只放行一次试探，慢调用重新打开
+        Assert.assertTrue(breaker.tryAcquire());
+        Assert.assertFalse(breaker.tryAcquire());
+        breaker.onSuccess(2000);
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Thread.sleep(150);
+        Assert.assertTrue(breaker.tryAcquire());
+        breaker.onSuccess(10);
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        Assert.assertEquals(0, breaker.getRetryAfterMillis());
+    }
+
+    @Test
+    public void slowCallTest() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 1000, 100);
+        for (int i = 0; i < CircuitBreaker.MINIMUM_CALLS; i++) {
+            Assert.assertTrue(breaker.tryAcquire());
+            breaker.onSuccess(i < 3 ? 10 : 1000);
+        }
+        //慢调用7/10，未到阈值
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        int calls = CircuitBreaker.MINIMUM_CALLS;
+        while (breaker.getState() == CircuitBreaker.State.CLOSED && calls < CircuitBreaker.WINDOW_SIZE) {
+            Assert.assertTrue(breaker.tryAcquire());
+            breaker.onSuccess(1000);
+            calls++;
+        }
+        //12/15时打开
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Assert.assertEquals(15, calls);
+    }
+
+    @Test
+    public void livyOperationTest() throws Exception {
+        try (FakeLivyServer server = new FakeLivyServer().setErrorRate(1.0)) {
+            LivyClient client = new LivyClient(server.getUrl());
+            for (int i = 0; i < CircuitBreaker.MINIMUM_CALLS; i++) {
+                try {
+                    client.getSession("1");
+                    Assert.fail();
+                } catch (LivyOverloadedException e) {
+                    Assert.fail();
+                } catch (IOException e) {
+                    //http 500
+                }
+            }
+            long requests = server.getRequestCount();
+            try {
+                client.getSession("2");
+                Assert.fail();
+            } catch (LivyOverloadedException e) {
+                Assert.assertTrue(e.getRetryAfterMillis() > 0);
+            }
+            //打开后不再请求livy，其他操作不受影响
+            Assert.assertEquals(requests, server.getRequestCount());
+            Assert.assertTrue(client.getHealth().allows("GET /sessions"));
+            Assert.assertFalse(client.getHealth().allows("GET /sessions/{id}"));
+            client.close();
+        }
+    }
+
+    @Test
+    public void runtimeExceptionTest() throws Exception {
+        EndpointHealth health = new EndpointHealth("http://127.0.0.1:1");
+        OkHttpClient client = new OkHttpClient.Builder()
+                .addInterceptor(health)
+                .addInterceptor(chain -> {
+                    throw new IllegalStateException("broken");
+                })
+                .build();
+        Request request = new Request.Builder().url("http://127.0.0.1:1/sessions").build();
+        for (int i = 0; i < CircuitBreaker.MINIMUM_CALLS; i++) {
+            try {
+                client.newCall(request).execute();
+                Assert.fail();
+            } catch (IllegalStateException e) {
+                //拦截器之后抛出的RuntimeException
+            }
+        }
+        //RuntimeException同样记为失败
+        Assert.assertEquals(CircuitBreaker.State.OPEN, health.getBreaker("GET /sessions").getState());
+    }
+}
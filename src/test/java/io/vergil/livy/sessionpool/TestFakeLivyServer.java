@@ -0,0 +1,81 @@
+package io.vergil.livy.sessionpool;
+
+import io.vergil.livy.sessionpool.model.Session;
+import io.vergil.livy.sessionpool.model.Statement;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestFakeLivyServer {
+    private FakeLivyServer server;
+
+    @Before
+    public void startServer() throws Exception {
+        server = new FakeLivyServer().setStartupDelay(100).setStatementRuntime(FakeLivyServer.fixed(50));
+    }
+
+    @After
+    public void stopServer() {
+        server.close();
+    }
+
+    @Test
+    public void executeStatementTest() throws Exception {
+        server.setResultRows(5);
+        LivySessionPool pool = PoolFixture.newPool(server);
+        Session session = pool.borrowObject();
+        try {
+            Statement statement = session.executeStatementSync("select 1", "sql");
+            Assert.assertEquals(LivyClient.STATEMENT_AVAILABLE, statement.getState());
+            try (ResultCursor cursor = session.executeStatementCursor("select 1", "sql")) {
+                int rows = 0;
+                while (cursor.hasNext()) {
+                    cursor.next();
+                    rows++;
+                }
+                Assert.assertEquals(5, rows);
+            }
+        } finally {
+            pool.returnObject(session);
+        }
+        pool.close();
+        Assert.assertEquals(0, server.getNumLiveSessions());
+    }
+
+    @Test
+    public void recoverPastSessionsTest() throws Exception {
+        SessionProfile other = PoolFixture.PROFILE.withUser("other");
+        String namePrefix = LivyClient.sessionNamePrefix(PoolFixture.PROFILE);
+        for (int i = 0; i < 3; i++) {
+            server.addSession(namePrefix + i, "work", false);
+        }
+        server.addSession(namePrefix + "dead", "work", true);
+        server.addSession(namePrefix + "user", "other", false);
+        server.addSession(LivyClient.NAME_PREFIX + "legacy", "work", false);
+        server.addSession(LivyClient.sessionNamePrefix(other) + "0", "other", false);
+        GenericObjectPoolConfig config = new GenericObjectPoolConfig();
+        config.setMaxIdle(2);
+        LivySessionPool pool = PoolFixture.newPool(server, config);
+        //校验通过的直接进入idle，失效的、用户不一致的删除，旧格式的、其他配置的不动
+        Assert.assertEquals(2, pool.getNumIdle());
+        Assert.assertEquals(5, server.getNumLiveSessions());
+        for (int i = 0; i < 3; i++) {
+            pool.borrowObject();
+        }
+        Assert.assertEquals(0L, (long) server.getRequestCounts().getOrDefault("POST /sessions", 0L));
+        pool.close();
+    }
+
+    @Test
+    public void loadTest() throws Exception {
+        GenericObjectPoolConfig config = new GenericObjectPoolConfig();
+        config.setMaxTotal(2);
+        config.setMaxWaitMillis(10_000);
+        LoadHarness.Result result = LoadHarness.run("test", server, config, 4, 1000);
+        Assert.assertTrue(result.getQueries() > 0);
+        Assert.assertEquals(0, result.getErrors());
+        Assert.assertTrue(result.getSessionsCreated() <= 2);
+    }
+}
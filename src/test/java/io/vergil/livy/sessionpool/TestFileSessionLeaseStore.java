@@ -0,0 +1,40 @@
+package io.vergil.livy.sessionpool;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestFileSessionLeaseStore {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void acquireTest() throws Exception {
+        try (FileSessionLeaseStore store = new FileSessionLeaseStore(folder.getRoot().getPath())) {
+            SessionLease lease = store.acquire("1", "a", 60_000);
+            Assert.assertNotNull(lease);
+            Assert.assertNull(store.acquire("1", "b", 60_000));
+            Assert.assertTrue(store.renew(lease, 60_000));
+            store.release(lease);
+            Assert.assertTrue(store.getLeases().isEmpty());
+            Assert.assertNotNull(store.acquire("1", "b", 60_000));
+        }
+    }
+
+    @Test
+    public void fencingTest() throws Exception {
+        try (FileSessionLeaseStore store = new FileSessionLeaseStore(folder.getRoot().getPath())) {
+            SessionLease old = store.acquire("1", "a", 1);
+            Thread.sleep(5);
+            SessionLease current = store.acquire("1", "b", 60_000);
+            Assert.assertNotNull(current);
+            Assert.assertTrue(current.getToken() > old.getToken());
+            //旧持有者不能续约、释放
+            Assert.assertFalse(store.isCurrent(old));
+            Assert.assertFalse(store.renew(old, 60_000));
+            store.release(old);
+            Assert.assertTrue(store.isCurrent(current));
+        }
+    }
+}
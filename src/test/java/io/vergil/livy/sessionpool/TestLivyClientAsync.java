@@ -0,0 +1,85 @@
+package io.vergil.livy.sessionpool;
+
+import io.vergil.livy.sessionpool.model.Session;
+import io.vergil.livy.sessionpool.model.Statement;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.sql.SQLTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class TestLivyClientAsync {
+    private FakeLivyServer server;
+    private LivySessionPool pool;
+    private Session session;
+    private LivyClient client;
+
+    @Before
+    public void startSession() throws Exception {
+        server = new FakeLivyServer().setStartupDelay(100).setStatementRuntime(FakeLivyServer.fixed(50));
+        pool = PoolFixture.newPool(server);
+        session = pool.borrowObject();
+        client = session.getLivyClient();
+    }
+
+    @After
+    public void stopServer() {
+        pool.returnObject(session);
+        pool.close();
+        server.close();
+    }
+
+    @Test
+    public void completionTest() throws Exception {
+        CompletableFuture<Statement> future = client.executeStatementAsync(session.getId(), "select 1", "sql");
+        Statement statement = future.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(LivyClient.STATEMENT_AVAILABLE, statement.getState());
+        Assert.assertEquals("ok", statement.getOutput().getStatus());
+        //结束后轮询器里不再登记
+        Assert.assertEquals(0, client.getStatementPoller().getNumPending());
+    }
+
+    @Test
+    public void errorTest() throws Exception {
+        server.setErrorRate(1.0);
+        CompletableFuture<Statement> future = client.executeStatementAsync(session.getId(), "select 1", "sql");
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            //提交失败的原始异常，不包一层CompletionException
+            Assert.assertTrue(e.getCause() instanceof IOException);
+        }
+        server.setErrorRate(0);
+
+        //超过deadline以SQLTimeoutException失败
+        server.setStatementRuntime(FakeLivyServer.fixed(5000));
+        future = client.executeStatementAsync(session.getId(), "select 1", "sql", System.currentTimeMillis() + 300);
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof SQLTimeoutException);
+        }
+        client.awaitSettled(session.getId()).get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void cancelTest() throws Exception {
+        server.setStatementRuntime(FakeLivyServer.fixed(5000));
+        CompletableFuture<Statement> future = client.executeStatementAsync(session.getId(), "select 1", "sql");
+        Thread.sleep(200);
+        Assert.assertTrue(future.cancel(false));
+        //取消返回的future时同样取消livy上的statement，确认后session可以复用
+        client.awaitSettled(session.getId()).get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(1L, (long) server.getRequestCounts().get("POST /sessions/{id}/statements/{id}/cancel"));
+        Statement statement = client.getStatement(session.getId(), "0");
+        Assert.assertEquals(LivyClient.STATEMENT_CANCELLED, statement.getState());
+        Assert.assertEquals(0, client.getStatementPoller().getNumPending());
+    }
+}
@@ -0,0 +1,61 @@
+package io.vergil.livy.sessionpool;
+
+import io.vergil.livy.sessionpool.model.ListStatementResponse;
+import io.vergil.livy.sessionpool.model.Session;
+import io.vergil.livy.sessionpool.model.SessionState;
+import io.vergil.livy.sessionpool.model.Statement;
+import io.vergil.livy.sessionpool.model.StatementState;
+import okhttp3.MediaType;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+public class TestLivyClientDecode {
+    private static final MediaType JSON_TYPE = MediaType.get("application/json; charset=utf-8");
+
+    @Test
+    public void readStatementsTest() throws Exception {
+        String json = "{ \"total_statements\" : 3 , \"extra\" : { } , \"statements\" : [ "
+                + "{\"id\":0,\"code\":\"select '中文'\",\"state\":\"running\",\"output\":null,\"progress\":0.5,\"started\":1} , "
+                + "{ \"id\" : 1 , \"state\" : \"available\" , \"output\" : {\"status\":\"ok\",\"data\":{\"text/plain\":\"x\"}} , \"completed\" : 2 } , "
+                + "{\"id\":2,\"state\":\"available\",\"output\":{\"status\":\"ok\",\"execution_count\":2,\"data\":{\"a\":[1,true,null,{}]}}}"
+                + " ] }";
+        ListStatementResponse response = LivyClient.readStatements(
+                LivyClient.open(ResponseBody.create(JSON_TYPE, json)), new HashSet<>(Arrays.asList("0", "1")));
+        Assert.assertEquals(3, response.getTotal_statements());
+        Assert.assertEquals(3, response.getStatements().size());
+        Statement running = response.getStatements().get(0);
+        Assert.assertEquals(StatementState.RUNNING, running.getStatementState());
+        Assert.assertEquals(0.5, running.getProgress(), 0);
+        Assert.assertEquals(1, running.getStarted());
+        Statement available = response.getStatements().get(1);
+        Assert.assertEquals("1", available.getId());
+        Assert.assertEquals("ok", available.getOutput().getStatus());
+        Assert.assertEquals(2, available.getCompleted());
+        //不在withOutput中的output不读取
+        Assert.assertNull(response.getStatements().get(2).getOutput());
+        Assert.assertEquals(StatementState.AVAILABLE, response.getStatements().get(2).getStatementState());
+    }
+
+    @Test
+    public void decodeSessionTest() throws Exception {
+        String json = "{\"id\":3,\"name\":\"会话\",\"proxyUser\":\"work\",\"state\":\"idle\",\"log\":[\"a\"]}";
+        Session session = LivyClient.decode(ResponseBody.create(JSON_TYPE, json), Session.class);
+        Assert.assertEquals("3", session.getId());
+        Assert.assertEquals("会话", session.getName());
+        Assert.assertEquals(SessionState.IDLE, session.getSessionState());
+        //已知状态复用枚举里的字符串
+        Assert.assertSame(SessionState.IDLE.getValue(), session.getState());
+
+        //没有content-length时按流读取
+        Session streamed = LivyClient.decode(ResponseBody.create(JSON_TYPE, -1,
+                new Buffer().writeUtf8("{\"id\":4,\"state\":\"recovering\"}")), Session.class);
+        Assert.assertEquals("4", streamed.getId());
+        Assert.assertEquals("recovering", streamed.getState());
+        Assert.assertEquals(SessionState.UNKNOWN, streamed.getSessionState());
+    }
+}
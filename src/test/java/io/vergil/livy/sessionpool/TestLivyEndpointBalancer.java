@@ -0,0 +1,121 @@
+package io.vergil.livy.sessionpool;
+
+import io.vergil.livy.sessionpool.model.Session;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+public class TestLivyEndpointBalancer {
+    private FakeLivyServer idle;
+    private FakeLivyServer busy;
+    private LivyEndpointBalancer balancer;
+    private LivyClient idleClient;
+    private LivyClient busyClient;
+
+    @Before
+    public void startServers() throws Exception {
+        idle = new FakeLivyServer();
+        busy = new FakeLivyServer();
+        for (int i = 0; i < 3; i++) {
+            busy.addSession("busy-" + i, null, false);
+        }
+        balancer = new LivyEndpointBalancer(Arrays.asList(busy.getUrl(), idle.getUrl()));
+        busyClient = balancer.getLivyClients().get(0);
+        idleClient = balancer.getLivyClients().get(1);
+        //等状态表刷新出各自的session数
+        for (LivyClient client : balancer.getLivyClients()) {
+            client.getSessionStateWatcher().refreshNow();
+        }
+        PoolFixture.await(() -> LivyEndpointBalancer.isAvailable(idleClient)
+                && LivyEndpointBalancer.isAvailable(busyClient)
+                && busyClient.getSessionStateWatcher().getNumLiveSessions() == 3, 5000);
+    }
+
+    @After
+    public void stopServers() {
+        balancer.close();
+        idle.close();
+        busy.close();
+    }
+
+    @Test
+    public void leastLoadedTest() {
+        Assert.assertSame(idleClient, balancer.select());
+        Assert.assertEquals(Arrays.asList(idleClient, busyClient), balancer.candidates());
+    }
+
+    @Test
+    public void unhealthyTest() {
+        idle.setErrorRate(1.0);
+        failRequest(idleClient);
+        //一次失败还不算不健康
+        Assert.assertTrue(idleClient.getHealth().isHealthy());
+        failRequest(idleClient);
+        //连续失败FAILURE_THRESHOLD次，即使负载最低也排到最后
+        Assert.assertFalse(idleClient.getHealth().isHealthy());
+        Assert.assertSame(busyClient, balancer.select());
+        Assert.assertEquals(Arrays.asList(busyClient, idleClient), balancer.candidates());
+    }
+
+    @Test
+    public void cooldownRecoveryTest() throws Exception {
+        idleClient.getHealth().setCooldown(300);
+        idle.setErrorRate(1.0);
+        failRequest(idleClient);
+        failRequest(idleClient);
+        Assert.assertFalse(idleClient.getHealth().isHealthy());
+        Assert.assertSame(busyClient, balancer.select());
+
+        //冷却过后重新参与分配
+        Thread.sleep(400);
+        Assert.assertTrue(idleClient.getHealth().isHealthy());
+        Assert.assertSame(idleClient, balancer.select());
+
+        //请求成功后清零失败次数
+        idle.setErrorRate(0);
+        idleClient.listSession();
+        Assert.assertEquals(0, idleClient.getHealth().getFailures());
+    }
+
+    @Test
+    public void failoverCreateTest() throws Exception {
+        LivySessionFactory factory = new LivySessionFactory(balancer, PoolFixture.PROFILE, false);
+        idle.setErrorRate(1.0);
+        //负载最低的livy创建失败，换下一个
+        Session session = factory.create();
+        Assert.assertEquals(busy.getUrl(), session.getLivyClient().getUrl());
+        Assert.assertEquals(1L, (long) idle.getRequestCounts().get("POST /sessions"));
+        Assert.assertEquals(1L, (long) busy.getRequestCounts().get("POST /sessions"));
+
+        //不健康之后不再先尝试它
+        failRequest(idleClient);
+        Assert.assertFalse(idleClient.getHealth().isHealthy());
+        session = factory.create();
+        Assert.assertEquals(busy.getUrl(), session.getLivyClient().getUrl());
+        Assert.assertEquals(1L, (long) idle.getRequestCounts().get("POST /sessions"));
+        Assert.assertEquals(2L, (long) busy.getRequestCounts().get("POST /sessions"));
+
+        //所有livy都失败时抛出最后的错误
+        busy.setErrorRate(1.0);
+        try {
+            factory.create();
+            Assert.fail();
+        } catch (IOException e) {
+            Assert.assertEquals(2L, (long) idle.getRequestCounts().get("POST /sessions"));
+            Assert.assertEquals(3L, (long) busy.getRequestCounts().get("POST /sessions"));
+        }
+    }
+
+    private static void failRequest(LivyClient client) {
+        try {
+            client.listSession();
+            Assert.fail();
+        } catch (IOException e) {
+            //expected
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package io.vergil.livy.sessionpool;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+
+public class TestLivyKeyedSessionPool {
+
+    @Test
+    public void adoptPastSessionsTest() throws Exception {
+        try (FakeLivyServer server = new FakeLivyServer()) {
+            SessionProfile small = new SessionProfile("work", "1G", 1, "1G", 1, 1, 1, "default");
+            SessionProfile large = new SessionProfile("work", "4G", 2, "8G", 4, 1, 10, "default");
+            for (int i = 0; i < 2; i++) {
+                server.addSession(LivyClient.sessionNamePrefix(small) + i, "work", false);
+                server.addSession(LivyClient.sessionNamePrefix(large) + i, "work", false);
+            }
+            server.addSession(LivyClient.sessionNamePrefix(small) + "dead", "work", true);
+            LivyKeyedSessionPool pool = new LivyKeyedSessionPool(new LivyKeyedSessionFactory(server.getUrl()),
+                    new SessionProfileRouter(Arrays.asList(small, large)));
+            //每个配置只接管自己的session，失效的删除
+            Assert.assertEquals(2, pool.getNumIdle(small));
+            Assert.assertEquals(2, pool.getNumIdle(large));
+            Assert.assertEquals(4, server.getNumLiveSessions());
+            Assert.assertEquals(0L, (long) server.getRequestCounts().getOrDefault("POST /sessions", 0L));
+            pool.close();
+        }
+    }
+
+    @Test
+    public void closeTest() throws Exception {
+        try (FakeLivyServer server = new FakeLivyServer().setStartupDelay(100)) {
+            LivyKeyedSessionFactory factory = new LivyKeyedSessionFactory(server.getUrl());
+            LivyKeyedSessionPool pool = new LivyKeyedSessionPool(factory,
+                    new SessionProfileRouter(Arrays.asList(PoolFixture.PROFILE)));
+            pool.returnObject(pool.borrowObject(PoolFixture.PROFILE));
+            pool.close();
+            //session删除，livy的statement轮询停止
+            Assert.assertEquals(0, server.getNumLiveSessions());
+            try {
+                factory.getLivyClient().getStatementPoller().track("0", "0", "select 1", false).get();
+                Assert.fail();
+            } catch (ExecutionException e) {
+                Assert.assertEquals("statement poller closed", e.getCause().getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package io.vergil.livy.sessionpool;
+
+import io.vergil.livy.sessionpool.model.Statement;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class TestLivyQueryExecutor {
+    private FakeLivyServer server;
+
+    @Before
+    public void startServer() throws Exception {
+        server = new FakeLivyServer().setStartupDelay(100);
+    }
+
+    @After
+    public void stopServer() {
+        server.close();
+    }
+
+    @Test
+    public void cancelOnTimeoutTest() throws Exception {
+        server.setStatementRuntime(FakeLivyServer.fixed(5000));
+        LivySessionPool pool = PoolFixture.newPool(server);
+        pool.addObject();
+        LivyQueryExecutor executor = new LivyQueryExecutor(pool);
+        try {
+            executor.execute("select 1", "sql", 300, TimeUnit.MILLISECONDS);
+            Assert.fail();
+        } catch (SQLTimeoutException e) {
+            //超时后马上返回，session等取消确认后再归还
+        }
+        Assert.assertTrue(PoolFixture.await(() -> pool.getNumIdle() == 1, 5000));
+        Assert.assertEquals(1L, (long) server.getRequestCounts().get("POST /sessions/{id}/statements/{id}/cancel"));
+        Assert.assertEquals(0L, (long) server.getRequestCounts().getOrDefault("DELETE /sessions/{id}", 0L));
+        pool.close();
+    }
+
+    @Test
+    public void coalesceTest() throws Exception {
+        server.setStatementRuntime(FakeLivyServer.fixed(500));
+        LivySessionPool pool = PoolFixture.newPool(server);
+        LivyQueryExecutor executor = new LivyQueryExecutor(pool);
+        ExecutorService threads = Executors.newFixedThreadPool(3);
+        List<Future<Statement>> futures = new ArrayList<>();
+        for (String sql : new String[]{"select * from t", "SELECT *  FROM t;", "select * from t"}) {
+            futures.add(threads.submit(() -> executor.execute(sql, "sql", 10, TimeUnit.SECONDS)));
+            Thread.sleep(50);
+        }
+        for (Future<Statement> future : futures) {
+            Assert.assertEquals(LivyClient.STATEMENT_AVAILABLE, future.get().getState());
+        }
+        threads.shutdown();
+        //相同的只读查询只执行一次
+        Assert.assertEquals(1L, (long) server.getRequestCounts().get("POST /sessions/{id}/statements"));
+        Assert.assertEquals(2, executor.getCoalescedCount());
+        pool.close();
+    }
+
+    @Test
+    public void coalesceLeaderTimeoutTest() throws Exception {
+        server.setStatementRuntime(FakeLivyServer.fixed(1000));
+        LivySessionPool pool = PoolFixture.newPool(server);
+        pool.addObject();
+        LivyQueryExecutor executor = new LivyQueryExecutor(pool);
+        ExecutorService threads = Executors.newSingleThreadExecutor();
+        Future<Statement> leader = threads.submit(() -> executor.execute("select * from t", "sql", 300, TimeUnit.MILLISECONDS));
+        Thread.sleep(100);
+        //领头请求按自己的deadline超时，跟随的请求还有时间，重新执行
+        Statement statement = executor.execute("select * from t", "sql", 10, TimeUnit.SECONDS);
+        Assert.assertEquals(LivyClient.STATEMENT_AVAILABLE, statement.getState());
+        try {
+            leader.get();
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof SQLTimeoutException);
+        }
+        threads.shutdown();
+        Assert.assertEquals(1, executor.getCoalescedCount());
+        Assert.assertEquals(2L, (long) server.getRequestCounts().get("POST /sessions/{id}/statements"));
+        pool.close();
+    }
+}
@@ -0,0 +1,61 @@
+package io.vergil.livy.sessionpool;
+
+import io.vergil.livy.sessionpool.model.Session;
+import io.vergil.livy.sessionpool.trace.JsonLinesTraceSink;
+import io.vergil.livy.sessionpool.trace.QueryTrace;
+import io.vergil.livy.sessionpool.trace.RingBufferTraceSink;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+public class TestQueryTrace {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void borrowPhaseTest() throws Exception {
+        try (FakeLivyServer server = new FakeLivyServer()) {
+            LivySessionFactory factory = PoolFixture.newFactory(server);
+            RingBufferTraceSink sink = new RingBufferTraceSink(10);
+            factory.getBalancer().setTraceSink(sink);
+            LivySessionPool pool = new LivySessionPool(factory);
+            Session session = pool.borrowObject();
+            session.executeStatementSync("select 1", "sql");
+            session.executeStatementSync("select 2", "sql");
+            pool.returnObject(session);
+            //trace在完成回调里写入
+            for (int i = 0; i < 100 && sink.getTraces().size() < 2; i++) {
+                Thread.sleep(10);
+            }
+            //借用耗时只记到借用后的第一个trace上
+            List<QueryTrace> traces = sink.getTraces();
+            Assert.assertEquals(2, traces.size());
+            Assert.assertFalse(traces.get(0).getPhases().containsKey("borrow"));
+            Assert.assertTrue(traces.get(1).getPhases().containsKey("borrow"));
+            pool.close();
+        }
+    }
+
+    @Test
+    public void jsonLinesTest() throws Exception {
+        File file = folder.newFile("trace.jsonl");
+        JsonLinesTraceSink sink = new JsonLinesTraceSink(file.getPath());
+        for (int i = 0; i < 100; i++) {
+            QueryTrace trace = new QueryTrace();
+            trace.setTraceId(String.valueOf(i));
+            sink.accept(trace);
+        }
+        //close时写完队列中剩下的
+        sink.close();
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        Assert.assertEquals(100, lines.size());
+        Assert.assertTrue(lines.get(99).contains("\"traceId\":\"99\""));
+        Assert.assertEquals(0, sink.getNumDropped());
+    }
+}
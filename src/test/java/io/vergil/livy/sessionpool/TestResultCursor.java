@@ -0,0 +1,130 @@
+package io.vergil.livy.sessionpool;
+
+import io.vergil.livy.sessionpool.model.Session;
+import io.vergil.livy.sessionpool.trace.RingBufferTraceSink;
+import io.vergil.livy.sessionpool.utils.JsonStreamUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestResultCursor {
+
+    @Test
+    public void readRowsTest() throws Exception {
+        String json = "{\"id\":1,\"code\":\"select 1\",\"state\":\"available\",\"output\":{\"status\":\"ok\",\"execution_count\":1,"
+                + "\"data\":{\"text/plain\":\"x\",\"application/json\":{\"schema\":{\"type\":\"struct\",\"fields\":"
+                + "[{\"name\":\"id\",\"type\":\"integer\",\"nullable\":false},{\"name\":\"name\",\"type\":\"string\",\"nullable\":true}]},"
+                + "\"data\":[[1,\"a\"],[2,null],[3,\"c\"]]}}},\"progress\":1.0}";
+        List<List<Object>> rows = new ArrayList<>();
+        try (ResultCursor cursor = new ResultCursor(new StringReader(json), null)) {
+            Assert.assertEquals(2, cursor.getSchema().getFields().size());
+            Assert.assertEquals("name", cursor.getSchema().getFields().get(1).getName());
+            while (cursor.hasNext()) {
+                rows.add(cursor.next());
+            }
+            Assert.assertEquals(3, cursor.getRowCount());
+        }
+        Assert.assertEquals(3, rows.size());
+        Assert.assertEquals(2, ((Number) rows.get(1).get(0)).intValue());
+        Assert.assertNull(rows.get(1).get(1));
+        Assert.assertEquals("c", rows.get(2).get(1));
+    }
+
+    @Test
+    public void onCloseTest() throws Exception {
+        String json = "{\"id\":1,\"state\":\"available\",\"output\":{\"status\":\"ok\",\"data\":{\"application/json\":"
+                + "{\"schema\":{\"type\":\"struct\",\"fields\":[{\"name\":\"id\",\"type\":\"integer\"}]},\"data\":[[1],[2]]}}}}";
+        AtomicInteger closed = new AtomicInteger();
+        ResultCursor cursor = new ResultCursor(new StringReader(json), null).onClose(closed::incrementAndGet);
+        cursor.next();
+        Assert.assertEquals(0, closed.get());
+        //读完最后一行自动关闭，重复close只执行一次
+        cursor.next();
+        Assert.assertFalse(cursor.hasNext());
+        cursor.close();
+        Assert.assertEquals(1, closed.get());
+
+        //已经关闭的游标马上执行
+        String empty = "{\"id\":1,\"state\":\"available\",\"output\":{\"status\":\"ok\",\"data\":{\"text/plain\":\"1\"}}}";
+        new ResultCursor(new StringReader(empty), null).onClose(closed::incrementAndGet);
+        Assert.assertEquals(2, closed.get());
+    }
+
+    @Test
+    public void emptyOutputTest() throws Exception {
+        String json = "{\"id\":1,\"state\":\"available\",\"output\":{\"status\":\"ok\",\"data\":{\"text/plain\":\"res0: Int = 1\"}}}";
+        try (ResultCursor cursor = new ResultCursor(new StringReader(json), null)) {
+            Assert.assertNull(cursor.getSchema());
+            Assert.assertFalse(cursor.hasNext());
+        }
+    }
+
+    @Test(expected = SQLException.class)
+    public void errorOutputTest() throws Exception {
+        String json = "{\"id\":1,\"state\":\"available\",\"output\":{\"status\":\"error\",\"ename\":\"AnalysisException\","
+                + "\"evalue\":\"Table or view not found: t\",\"traceback\":[\"a\",\"b\"]}}";
+        new ResultCursor(new StringReader(json), null);
+    }
+
+    @Test
+    public void statementStreamTest() throws Exception {
+        String running = "{\"id\":1,\"code\":\"select 1\",\"state\":\"running\",\"output\":null,\"progress\":0.5}";
+        LivyClient.StreamedStatement streamed = LivyClient.readStatementStream(JsonStreamUtils.open(new StringReader(running)), () -> {
+        });
+        Assert.assertEquals(0.5, streamed.getStatement().getProgress(), 0);
+        Assert.assertNull(streamed.getCursor());
+
+        //执行成功时从同一个响应继续读取结果
+        String available = "{\"id\":1,\"state\":\"available\",\"output\":{\"status\":\"ok\",\"data\":{\"application/json\":"
+                + "{\"schema\":{\"type\":\"struct\",\"fields\":[{\"name\":\"id\",\"type\":\"integer\"}]},\"data\":[[1],[2]]}}},\"progress\":1.0}";
+        AtomicInteger closed = new AtomicInteger();
+        streamed = LivyClient.readStatementStream(JsonStreamUtils.open(new StringReader(available)), closed::incrementAndGet);
+        Assert.assertEquals(0, closed.get());
+        try (ResultCursor cursor = streamed.getCursor()) {
+            int rows = 0;
+            while (cursor.hasNext()) {
+                cursor.next();
+                rows++;
+            }
+            Assert.assertEquals(2, rows);
+        }
+        Assert.assertEquals(1, closed.get());
+
+        String error = "{\"id\":1,\"state\":\"available\",\"output\":{\"status\":\"error\",\"ename\":\"E\",\"evalue\":\"bad\"}}";
+        streamed = LivyClient.readStatementStream(JsonStreamUtils.open(new StringReader(error)), () -> {
+        });
+        Assert.assertNull(streamed.getCursor());
+        Assert.assertEquals("E : bad", streamed.getError().getMessage());
+    }
+
+    @Test
+    public void singleTransferTest() throws Exception {
+        try (FakeLivyServer server = new FakeLivyServer().setStartupDelay(100).setStatementRuntime(FakeLivyServer.fixed(300))) {
+            server.setResultRows(100);
+            LivySessionPool pool = PoolFixture.newPool(server);
+            Session session = pool.borrowObject();
+            RingBufferTraceSink sink = new RingBufferTraceSink(10);
+            session.getLivyClient().setTraceSink(sink);
+            try (ResultCursor cursor = session.executeStatementCursor("select 1", "sql")) {
+                int rows = 0;
+                while (cursor.hasNext()) {
+                    cursor.next();
+                    rows++;
+                }
+                Assert.assertEquals(100, rows);
+            }
+            //读到结束状态的那次查询就是结果流，不再请求一次结果，也不走列表查询
+            Map<String, Long> counts = server.getRequestCounts();
+            Assert.assertEquals(sink.getTraces().get(0).getPolls(), (long) counts.get("GET /sessions/{id}/statements/{id}"));
+            Assert.assertEquals(0L, (long) counts.getOrDefault("GET /sessions/{id}/statements", 0L));
+            pool.returnObject(session);
+            pool.close();
+        }
+    }
+}
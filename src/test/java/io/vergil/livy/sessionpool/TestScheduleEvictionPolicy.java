@@ -0,0 +1,57 @@
+package io.vergil.livy.sessionpool;
+
+import org.apache.commons.pool2.impl.DefaultPooledObject;
+import org.apache.commons.pool2.impl.EvictionConfig;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+public class TestScheduleEvictionPolicy {
+
+    @Test
+    public void replacementTest() throws Exception {
+        EvictionConfig config = new EvictionConfig(10, -1, 1);
+        List<DefaultPooledObject<Object>> idle = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            idle.add(new DefaultPooledObject<>(new Object()));
+        }
+        Thread.sleep(20);
+
+        //idle数量远高于minIdle时，每个过期session同样先建后拆
+        List<CompletableFuture<Void>> requests = new ArrayList<>();
+        ScheduleEvictionPolicy<Object> policy = new ScheduleEvictionPolicy<>(0, 1, () -> {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            requests.add(future);
+            return future;
+        });
+        for (DefaultPooledObject<Object> expired : idle) {
+            Assert.assertFalse(policy.evict(config, expired, idle.size()));
+        }
+        //同时只建maxEvictPerRun个替代session
+        Assert.assertEquals(1, requests.size());
+        Assert.assertEquals(1, policy.getNumReplacing());
+
+        //替代session进入idle后回收对应的过期session
+        requests.get(0).complete(null);
+        policy.beginRun();
+        Assert.assertTrue(policy.evict(config, idle.get(0), idle.size() + 1));
+        //本轮已回收maxEvictPerRun个，下一轮再处理下一个
+        Assert.assertFalse(policy.evict(config, idle.get(1), idle.size()));
+        Assert.assertEquals(1, requests.size());
+        policy.beginRun();
+        Assert.assertFalse(policy.evict(config, idle.get(1), idle.size()));
+        Assert.assertEquals(2, requests.size());
+
+        //替代session创建失败时直接回收
+        requests.get(1).completeExceptionally(new Exception("create failed"));
+        policy.beginRun();
+        Assert.assertTrue(policy.evict(config, idle.get(1), idle.size()));
+
+        //已到maxTotal无法创建替代session时直接回收
+        policy = new ScheduleEvictionPolicy<>(0, 1, () -> null);
+        Assert.assertTrue(policy.evict(config, idle.get(2), 1));
+    }
+}
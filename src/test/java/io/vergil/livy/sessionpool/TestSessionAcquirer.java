@@ -0,0 +1,52 @@
+package io.vergil.livy.sessionpool;
+
+import io.vergil.livy.sessionpool.model.Session;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class TestSessionAcquirer {
+    private FakeLivyServer server;
+
+    @Before
+    public void startServer() throws Exception {
+        server = new FakeLivyServer().setStartupDelay(300);
+    }
+
+    @After
+    public void stopServer() {
+        server.close();
+    }
+
+    @Test
+    public void acquireTest() throws Exception {
+        GenericObjectPoolConfig config = new GenericObjectPoolConfig();
+        config.setMaxTotal(2);
+        LivySessionPool pool = PoolFixture.newPool(server, config);
+        pool.addObject();
+        SessionAcquirer acquirer = new SessionAcquirer(pool);
+        //回调在handoff线程上执行，不占用分配线程
+        CompletableFuture<String> thread = acquirer.acquire(QueryPriority.INTERACTIVE, 5, TimeUnit.SECONDS)
+                .thenApply(session -> Thread.currentThread().getName());
+        Assert.assertTrue(thread.get(5, TimeUnit.SECONDS).startsWith("livy-acquirer-handoff-"));
+        //没有idle时后台创建，分配线程不阻塞，其他等待者照常超时
+        CompletableFuture<Session> created = acquirer.acquire(QueryPriority.NORMAL, 5, TimeUnit.SECONDS);
+        CompletableFuture<Session> expired = acquirer.acquire(QueryPriority.BATCH, 100, TimeUnit.MILLISECONDS);
+        try {
+            expired.get(1, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        Assert.assertNotNull(created.get(5, TimeUnit.SECONDS));
+        acquirer.close();
+        pool.close();
+    }
+}
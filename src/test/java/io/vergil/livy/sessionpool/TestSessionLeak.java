@@ -0,0 +1,34 @@
+package io.vergil.livy.sessionpool;
+
+import io.vergil.livy.sessionpool.model.Session;
+import org.apache.commons.pool2.impl.AbandonedConfig;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestSessionLeak {
+
+    @Test
+    public void reclaimLeakedSessionTest() throws Exception {
+        try (FakeLivyServer server = new FakeLivyServer().setStartupDelay(100).setStatementRuntime(FakeLivyServer.fixed(10_000))) {
+            AbandonedConfig abandonedConfig = new AbandonedConfig();
+            abandonedConfig.setRemoveAbandonedOnBorrow(true);
+            abandonedConfig.setRemoveAbandonedTimeout(1);
+            GenericObjectPoolConfig config = new GenericObjectPoolConfig();
+            config.setMaxTotal(2);
+            LivySessionPool pool = new LivySessionPool(PoolFixture.newFactory(server), config, abandonedConfig);
+            Session leaked = pool.borrowObject();
+            Assert.assertTrue(leaked.getBorrowSite().contains(TestSessionLeak.class.getName()));
+            leaked.executeStatement("select 1", "sql");
+            Thread.sleep(1500);
+            //借用时回收：取消还在执行的statement，删除session
+            Session session = pool.borrowObject();
+            Assert.assertNotEquals(leaked.getId(), session.getId());
+            Assert.assertEquals(1, pool.getNumLeaked());
+            Assert.assertEquals(1L, (long) server.getRequestCounts().get("POST /sessions/{id}/statements/{id}/cancel"));
+            Assert.assertEquals(1L, (long) server.getRequestCounts().get("DELETE /sessions/{id}"));
+            pool.returnObject(session);
+            pool.close();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package io.vergil.livy.sessionpool;
+
+import io.vergil.livy.sessionpool.model.Session;
+import io.vergil.livy.sessionpool.model.Statement;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class TestSessionMultiplexer {
+
+    @Test
+    public void multiplexTest() throws Exception {
+        try (FakeLivyServer server = new FakeLivyServer().setStartupDelay(100).setStatementRuntime(FakeLivyServer.fixed(50))) {
+            LivySessionPool pool = PoolFixture.newPool(server);
+            pool.addObject();
+            LivyQueryExecutor executor = new LivyQueryExecutor(pool);
+            executor.enableMultiplexing(4, 1);
+            ExecutorService threads = Executors.newFixedThreadPool(4);
+            List<Future<Statement>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                String sql = "select " + i;
+                futures.add(threads.submit(() -> executor.execute(sql, "sql", 10, TimeUnit.SECONDS)));
+            }
+            for (Future<Statement> future : futures) {
+                Assert.assertEquals(LivyClient.STATEMENT_AVAILABLE, future.get().getState());
+            }
+            threads.shutdown();
+            //4个轻量查询都排在同一个session上
+            Assert.assertEquals(1L, (long) server.getRequestCounts().getOrDefault("POST /sessions", 0L));
+            Assert.assertEquals(0, executor.getMultiplexer().getNumSharedSessions());
+            Assert.assertEquals(1, pool.getNumIdle());
+            pool.close();
+        }
+    }
+
+    @Test
+    public void cancelOnTimeoutTest() throws Exception {
+        try (FakeLivyServer server = new FakeLivyServer().setStartupDelay(100).setStatementRuntime(FakeLivyServer.fixed(5000))) {
+            LivySessionPool pool = PoolFixture.newPool(server);
+            pool.addObject();
+            LivyQueryExecutor executor = new LivyQueryExecutor(pool);
+            executor.enableMultiplexing(4, 1);
+            try {
+                executor.execute("select 1", "sql", 300, TimeUnit.MILLISECONDS);
+                Assert.fail();
+            } catch (SQLTimeoutException e) {
+                //超时后马上返回，共用session等取消确认后再归还
+            }
+            Assert.assertTrue(PoolFixture.await(() -> pool.getNumIdle() == 1, 5000));
+            Assert.assertEquals(1L, (long) server.getRequestCounts().get("POST /sessions/{id}/statements/{id}/cancel"));
+            Session session = pool.borrowObject();
+            Assert.assertEquals(LivyClient.STATEMENT_CANCELLED, session.getStatement("0").getState());
+            pool.returnObject(session);
+            pool.close();
+        }
+    }
+
+    @Test
+    public void isLightTest() {
+        Assert.assertTrue(SessionMultiplexer.isLight("select id, max_id from t where id = 1 limit 10", "sql"));
+        Assert.assertFalse(SessionMultiplexer.isLight("select a, count(1) from t group by a", "sql"));
+        Assert.assertFalse(SessionMultiplexer.isLight("insert into t select 1", "sql"));
+        Assert.assertFalse(SessionMultiplexer.isLight("1 + 1", "spark"));
+        //不带group by的聚合也要扫全表
+        Assert.assertFalse(SessionMultiplexer.isLight("select count(*) from t", "sql"));
+        Assert.assertFalse(SessionMultiplexer.isLight("select SUM (amount) from t where dt = '2020-01-01'", "sql"));
+        Assert.assertFalse(SessionMultiplexer.isLight("select approx_count_distinct(id) from t", "sql"));
+    }
+}
@@ -0,0 +1,28 @@
+package io.vergil.livy.sessionpool;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestSessionPrewarmer {
+
+    @Test
+    public void unboundedMaxTotalTest() throws Exception {
+        try (FakeLivyServer server = new FakeLivyServer()) {
+            GenericObjectPoolConfig config = new GenericObjectPoolConfig();
+            config.setMaxTotal(-1);
+            LivySessionPool pool = PoolFixture.newPool(server, config);
+            try {
+                new SessionPrewarmer(pool, 0);
+                Assert.fail();
+            } catch (IllegalArgumentException e) {
+                Assert.assertTrue(e.getMessage().contains("maxConcurrentCreates"));
+            }
+            SessionPrewarmer prewarmer = new SessionPrewarmer(pool, 2);
+            //maxTotal为负数时不限制，至少预热一个idle
+            Assert.assertEquals(1, prewarmer.computeShortage());
+            prewarmer.close();
+            pool.close();
+        }
+    }
+}
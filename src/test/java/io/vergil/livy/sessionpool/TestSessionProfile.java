@@ -0,0 +1,20 @@
+package io.vergil.livy.sessionpool;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestSessionProfile {
+
+    @Test
+    public void parseMemoryTest() {
+        Assert.assertEquals(512, SessionProfile.parseMemoryMb("512m"));
+        Assert.assertEquals(2048, SessionProfile.parseMemoryMb("2G"));
+        Assert.assertEquals(1536, SessionProfile.parseMemoryMb("1.5g"));
+        Assert.assertEquals(1536, SessionProfile.parseMemoryMb("1.5gb"));
+        Assert.assertEquals(512, SessionProfile.parseMemoryMb("0.5g"));
+        Assert.assertEquals(1024 * 1024, SessionProfile.parseMemoryMb("1t"));
+        Assert.assertEquals(2, SessionProfile.parseMemoryMb("2048k"));
+        Assert.assertEquals(100, SessionProfile.parseMemoryMb("100"));
+        Assert.assertEquals(0, SessionProfile.parseMemoryMb(null));
+    }
+}
@@ -0,0 +1,33 @@
+package io.vergil.livy.sessionpool;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class TestSessionStateWatcher {
+
+    @Test
+    public void waiterCleanupTest() throws Exception {
+        try (FakeLivyServer server = new FakeLivyServer()) {
+            LivyClient livyClient = new LivyClient(server.getUrl());
+            SessionStateWatcher watcher = livyClient.getSessionStateWatcher();
+            for (int i = 0; i < 10; i++) {
+                try {
+                    watcher.awaitState("missing-" + i, state -> false, 10, TimeUnit.MILLISECONDS).get();
+                    Assert.fail();
+                } catch (ExecutionException e) {
+                    Assert.assertTrue(e.getCause() instanceof TimeoutException);
+                }
+            }
+            //超时的等待者连同列表一起删除，清理在完成回调里执行
+            for (int i = 0; i < 100 && watcher.getNumWaitingSessions() > 0; i++) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(0, watcher.getNumWaitingSessions());
+            livyClient.close();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package io.vergil.livy.sessionpool;
+
+import io.vergil.livy.sessionpool.model.Session;
+import io.vergil.livy.sessionpool.utils.SqlUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+public class TestSessionWarmup {
+
+    @Test
+    public void warmupFailureTest() throws Exception {
+        try (FakeLivyServer first = new FakeLivyServer().setStartupDelay(100).setStatementErrorRate(1.0);
+             FakeLivyServer second = new FakeLivyServer().setStartupDelay(100).setStatementErrorRate(1.0)) {
+            LivySessionFactory factory = new LivySessionFactory(Arrays.asList(first.getUrl(), second.getUrl()),
+                    PoolFixture.PROFILE);
+            factory.setWarmup(new SessionWarmup().cacheTable("missing"));
+            try {
+                factory.create();
+                Assert.fail();
+            } catch (IOException e) {
+                Assert.assertTrue(e.getMessage().contains("warm up session error"));
+            }
+            //预热失败不换下一个livy重试，失败的session删除
+            long creates = first.getRequestCounts().getOrDefault("POST /sessions", 0L)
+                    + second.getRequestCounts().getOrDefault("POST /sessions", 0L);
+            Assert.assertEquals(1, creates);
+            Assert.assertEquals(0, first.getNumLiveSessions() + second.getNumLiveSessions());
+            factory.getBalancer().close();
+        }
+    }
+
+    @Test
+    public void warmupAffinityTest() throws Exception {
+        try (FakeLivyServer server = new FakeLivyServer().setStartupDelay(100).setStatementRuntime(FakeLivyServer.fixed(50))) {
+            LivySessionFactory factory = PoolFixture.newFactory(server);
+            factory.setWarmup(new SessionWarmup().setConf("spark.sql.shuffle.partitions", "10").cacheTable("dim_a"));
+            LivySessionPool pool = new LivySessionPool(factory);
+            pool.addObject();
+            factory.setWarmup(new SessionWarmup().cacheTable("`DIM_B`"));
+            pool.addObject();
+            Assert.assertEquals(3L, (long) server.getRequestCounts().get("POST /sessions/{id}/statements"));
+            //两个idle session中选择缓存过相关表的
+            for (String table : new String[]{"dim_a", "dim_b", "dim_a"}) {
+                Session session = pool.borrowObject(SqlUtils.extractTables("select * from " + table + " where id = 1"), 1000);
+                Assert.assertTrue(session.getWarmedTables().contains(table));
+                pool.returnObject(session);
+                Assert.assertEquals(2, pool.getNumIdle());
+            }
+            pool.close();
+        }
+    }
+}
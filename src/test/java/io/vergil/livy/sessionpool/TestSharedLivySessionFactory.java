@@ -0,0 +1,67 @@
+package io.vergil.livy.sessionpool;
+
+import io.vergil.livy.sessionpool.model.Session;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class TestSharedLivySessionFactory {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void leaseBeyondFirstPageTest() throws Exception {
+        try (FakeLivyServer server = new FakeLivyServer();
+             FileSessionLeaseStore store = new FileSessionLeaseStore(folder.getRoot().getPath())) {
+            for (int i = 0; i < SessionStateWatcher.PAGE_SIZE + 10; i++) {
+                server.addSession("other-" + i, "work", false);
+            }
+            //排在第一页之后的空闲共享session
+            int sharedId = server.addSession(SharedLivySessionFactory.SHARED_NAME_PREFIX + "test@1", "work", false);
+            SharedLivySessionFactory factory = new SharedLivySessionFactory(Collections.singletonList(server.getUrl()),
+                    PoolFixture.PROFILE, store, "test", 1, 1);
+            Session session = factory.create();
+            Assert.assertEquals(String.valueOf(sharedId), session.getId());
+            Assert.assertEquals(0, server.getRequestCounts().getOrDefault("POST /sessions", 0L).longValue());
+            Assert.assertEquals(1, factory.getNumLeases());
+            factory.close();
+            factory.getBalancer().close();
+        }
+    }
+
+    @Test
+    public void sameIdAcrossEndpointsTest() throws Exception {
+        try (FakeLivyServer a = new FakeLivyServer();
+             FakeLivyServer b = new FakeLivyServer();
+             FileSessionLeaseStore store = new FileSessionLeaseStore(folder.getRoot().getPath())) {
+            //两个livy上的共享session id相同
+            int idA = a.addSession(SharedLivySessionFactory.SHARED_NAME_PREFIX + "test@a", "work", false);
+            int idB = b.addSession(SharedLivySessionFactory.SHARED_NAME_PREFIX + "test@b", "work", false);
+            Assert.assertEquals(idA, idB);
+            SharedLivySessionFactory factory = new SharedLivySessionFactory(Arrays.asList(a.getUrl(), b.getUrl()),
+                    PoolFixture.PROFILE, store, "test", 2, 2);
+            Session first = factory.create();
+            Session second = factory.create();
+            //各自租用，不当作同一个session，也不新建
+            Assert.assertNotEquals(first.getLivyClient().getUrl(), second.getLivyClient().getUrl());
+            Assert.assertNotEquals(first, second);
+            //同一个livy上的同一个id相等，与状态无关
+            Session copy = new Session();
+            copy.setId(first.getId());
+            copy.setLivyClient(first.getLivyClient());
+            copy.setState("busy");
+            Assert.assertEquals(first, copy);
+            Assert.assertEquals(first.hashCode(), copy.hashCode());
+            Assert.assertEquals(2, factory.getNumLeases());
+            Assert.assertEquals(2, store.getLeases().size());
+            Assert.assertEquals(0, a.getRequestCounts().getOrDefault("POST /sessions", 0L).longValue());
+            Assert.assertEquals(0, b.getRequestCounts().getOrDefault("POST /sessions", 0L).longValue());
+            factory.close();
+            factory.getBalancer().close();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package io.vergil.livy.sessionpool;
+
+import com.alibaba.fastjson.JSONObject;
+import io.vergil.livy.sessionpool.model.BatchResult;
+import io.vergil.livy.sessionpool.model.Statement;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+public class TestStatementBatch {
+
+    @Test
+    public void parseTest() throws Exception {
+        StatementBatch batch = new StatementBatch(Arrays.asList("select id, name from t where name = '中\"文'", "select * from missing", "select 3"));
+        String code = batch.toCode();
+        Assert.assertTrue(code.contains(b64("select 3")));
+        Assert.assertTrue(code.contains("take(" + StatementBatch.DEFAULT_MAX_ROWS + ")"));
+
+        String schema = "{\"type\":\"struct\",\"fields\":[{\"name\":\"id\",\"type\":\"long\",\"nullable\":false,\"metadata\":{}},"
+                + "{\"name\":\"name\",\"type\":\"string\",\"nullable\":true,\"metadata\":{}}]}";
+        String text = "some other output\n"
+                + batch.getMarker() + "\t0\tok\t" + b64("{\"schema\":" + schema + ",\"data\":[{\"id\":1,\"name\":\"中\\\"文\"},{\"id\":2}]}") + "\n"
+                + batch.getMarker() + "\t1\terror\t" + b64("AnalysisException : Table or view not found: missing") + "\n";
+        JSONObject data = new JSONObject();
+        data.put("text/plain", text);
+        Statement.Output output = new Statement.Output();
+        output.setStatus("ok");
+        output.setData(data.toJSONString());
+        Statement statement = new Statement();
+        statement.setState(LivyClient.STATEMENT_AVAILABLE);
+        statement.setOutput(output);
+
+        List<BatchResult> results = batch.parse(statement);
+        Assert.assertEquals(3, results.size());
+        BatchResult first = results.get(0);
+        Assert.assertTrue(first.isSuccess());
+        Assert.assertEquals("name", first.getSchema().getFields().get(1).getName());
+        Assert.assertEquals(2, first.getData().size());
+        Assert.assertEquals("中\"文", first.getData().get(0).get(1));
+        //null字段按schema补齐
+        Assert.assertEquals(Arrays.asList(2, null), first.getData().get(1));
+        Assert.assertFalse(results.get(1).isSuccess());
+        Assert.assertTrue(results.get(1).getError().contains("missing"));
+        //没有输出的sql记为失败
+        Assert.assertFalse(results.get(2).isSuccess());
+        Assert.assertEquals("select 3", results.get(2).getCode());
+    }
+
+    @Test(expected = SQLException.class)
+    public void statementErrorTest() throws Exception {
+        Statement.Output output = new Statement.Output();
+        output.setStatus("error");
+        output.setEvalue("error: not found: value spark");
+        Statement statement = new Statement();
+        statement.setState(LivyClient.STATEMENT_AVAILABLE);
+        statement.setOutput(output);
+        new StatementBatch(Arrays.asList("select 1")).parse(statement);
+    }
+
+    private static String b64(String s) {
+        return Base64.getEncoder().encodeToString(s.getBytes(StandardCharsets.UTF_8));
+    }
+}
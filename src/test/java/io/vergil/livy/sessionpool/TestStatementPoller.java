@@ -0,0 +1,69 @@
+package io.vergil.livy.sessionpool;
+
+import io.vergil.livy.sessionpool.model.Statement;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class TestStatementPoller {
+
+    @Test
+    public void trackDuringTickTest() throws Exception {
+        try (FakeLivyServer server = new FakeLivyServer()) {
+            LivyClient livyClient = new LivyClient(server.getUrl());
+            StatementPoller poller = new StatementPoller(livyClient);
+            AtomicBoolean running = new AtomicBoolean(true);
+            Thread ticker = new Thread(() -> {
+                while (running.get()) {
+                    poller.tick();
+                }
+            });
+            ticker.start();
+            try {
+                //tick移除空的session时并发登记，登记的statement不能丢
+                for (int i = 0; i < 20_000; i++) {
+                    CompletableFuture<Statement> future = poller.track("0", String.valueOf(i), "select 1", false);
+                    Assert.assertTrue(poller.getNumPending() >= 1);
+                    future.cancel(false);
+                }
+            } finally {
+                running.set(false);
+                ticker.join();
+                poller.close();
+                livyClient.close();
+            }
+        }
+    }
+
+    @Test
+    public void closeTest() throws Exception {
+        try (FakeLivyServer server = new FakeLivyServer()) {
+            LivyClient livyClient = new LivyClient(server.getUrl());
+            StatementPoller poller = new StatementPoller(livyClient);
+            CompletableFuture<Statement> pending = poller.track("0", "0", "select 1", false);
+            poller.close();
+            //在途的statement马上失败，不用等到deadline
+            assertClosed(pending);
+            Assert.assertEquals(0, poller.getNumPending());
+            //关闭之后登记的直接失败
+            assertClosed(poller.track("0", "1", "select 1", false));
+            Assert.assertEquals(0, poller.getNumPending());
+            livyClient.close();
+        }
+    }
+
+    private static void assertClosed(CompletableFuture<Statement> future) throws Exception {
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+            Assert.assertEquals("statement poller closed", e.getCause().getMessage());
+        }
+    }
+}
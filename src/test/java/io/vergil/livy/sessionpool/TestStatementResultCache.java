@@ -0,0 +1,44 @@
+package io.vergil.livy.sessionpool;
+
+import io.vergil.livy.sessionpool.model.Statement;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class TestStatementResultCache {
+
+    @Test
+    public void rePutInvalidateTest() {
+        StatementResultCache cache = new StatementResultCache(10, TimeUnit.MINUTES, 1024 * 1024);
+        cache.put("select * from db.t where id = 1", "sql", statement());
+        //同一个key重新put，不能从索引里删掉
+        cache.put("select * from db.t where id = 1", "sql", statement());
+        Assert.assertNotNull(cache.get("select * from db.t where id = 1", "sql"));
+        cache.invalidateTable("db.t");
+        Assert.assertNull(cache.get("select * from db.t where id = 1", "sql"));
+        Assert.assertEquals(0, cache.getNumIndexedTables());
+    }
+
+    @Test
+    public void qualifiedNameTest() {
+        StatementResultCache cache = new StatementResultCache(10, TimeUnit.MINUTES, 1024 * 1024);
+        cache.put("select * from db.t", "sql", statement());
+        cache.put("select * from `T` join u on t.id = u.id", "sql", statement());
+        cache.invalidateTable("t");
+        Assert.assertNull(cache.get("select * from db.t", "sql"));
+        Assert.assertNull(cache.get("select * from `T` join u on t.id = u.id", "sql"));
+        //其他表的索引随条目删除，不留空集合
+        Assert.assertEquals(0, cache.getNumIndexedTables());
+    }
+
+    private static Statement statement() {
+        Statement.Output output = new Statement.Output();
+        output.setStatus("ok");
+        output.setData("{\"text/plain\":\"1\"}");
+        Statement statement = new Statement();
+        statement.setState(LivyClient.STATEMENT_AVAILABLE);
+        statement.setOutput(output);
+        return statement;
+    }
+}
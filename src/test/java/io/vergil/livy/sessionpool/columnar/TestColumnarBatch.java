@@ -0,0 +1,111 @@
+package io.vergil.livy.sessionpool.columnar;
+
+import io.vergil.livy.sessionpool.model.ResponseResult;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class TestColumnarBatch {
+
+    private static ResponseResult result() {
+        ResponseResult.Schema schema = new ResponseResult.Schema();
+        schema.setFields(Arrays.asList(field("id", "integer"), field("score", "double"), field("ok", "boolean"),
+                field("city", "string"), field("amount", "decimal(10,2)")));
+        List<List<Object>> data = new ArrayList<>();
+        data.add(Arrays.asList(1, 1.5, true, "bj", new BigDecimal("1.10")));
+        data.add(Arrays.asList(null, null, null, null, null));
+        data.add(Arrays.asList(3L, "2.5", "false", "sh", new BigDecimal("3.30")));
+        data.add(Arrays.asList(4, 4, true, "bj", null));
+        ResponseResult result = new ResponseResult();
+        result.setSchema(schema);
+        result.setData(data);
+        return result;
+    }
+
+    private static ResponseResult.Field field(String name, String type) {
+        ResponseResult.Field field = new ResponseResult.Field();
+        field.setName(name);
+        field.setType(type);
+        return field;
+    }
+
+    @Test
+    public void typeMappingTest() {
+        ColumnarBatch batch = ColumnarBatch.of(result(), false);
+        Assert.assertEquals(4, batch.getRowCount());
+        Assert.assertTrue(batch.column("id") instanceof LongColumn);
+        Assert.assertTrue(batch.column("score") instanceof DoubleColumn);
+        Assert.assertTrue(batch.column("ok") instanceof BooleanColumn);
+        Assert.assertTrue(batch.column("city") instanceof StringColumn);
+        Assert.assertTrue(batch.column("amount") instanceof ObjectColumn);
+        //字符串形式的数值、布尔值也能解析
+        Assert.assertEquals(3L, ((LongColumn) batch.column("id")).getLong(2));
+        Assert.assertEquals(2.5, ((DoubleColumn) batch.column("score")).getDouble(2), 0);
+        Assert.assertFalse(((BooleanColumn) batch.column("ok")).getBoolean(2));
+        Assert.assertEquals(new BigDecimal("3.30"), batch.column("amount").getObject(2));
+    }
+
+    @Test
+    public void nullTest() {
+        ColumnarBatch batch = ColumnarBatch.of(result(), false);
+        for (Column column : batch.getColumns()) {
+            Assert.assertTrue(column.isNull(1));
+            Assert.assertNull(column.getObject(1));
+            Assert.assertFalse(column.isNull(0));
+        }
+        Assert.assertEquals(2, batch.column("amount").getNullCount());
+        //null行按0参与求和
+        Assert.assertEquals(8L, ((LongColumn) batch.column("id")).sum());
+    }
+
+    @Test
+    public void dictionaryTest() {
+        StringColumn city = (StringColumn) ColumnarBatch.of(result(), false).column("city");
+        Assert.assertEquals(Arrays.asList("bj", "sh"), city.getDictionary());
+        Assert.assertEquals(city.getCode(0), city.getCode(3));
+        Assert.assertNotEquals(city.getCode(0), city.getCode(2));
+        Assert.assertEquals("sh", city.getString(2));
+        Assert.assertNull(city.getString(1));
+    }
+
+    @Test
+    public void offHeapParityTest() {
+        ColumnarBatch onHeap = ColumnarBatch.of(result(), false);
+        ColumnarBatch offHeap = ColumnarBatch.of(result(), true);
+        Assert.assertFalse(((LongColumn) onHeap.column("id")).isOffHeap());
+        Assert.assertTrue(((LongColumn) offHeap.column("id")).isOffHeap());
+        Assert.assertTrue(((DoubleColumn) offHeap.column("score")).isOffHeap());
+        for (int i = 0; i < onHeap.getColumns().size(); i++) {
+            for (int row = 0; row < onHeap.getRowCount(); row++) {
+                Assert.assertEquals(onHeap.column(i).getObject(row), offHeap.column(i).getObject(row));
+            }
+        }
+        Assert.assertEquals(((DoubleColumn) onHeap.column("score")).sum(), ((DoubleColumn) offHeap.column("score")).sum(), 0);
+    }
+
+    @Test
+    public void buildOnceTest() {
+        ResponseResult result = result();
+        ColumnarBatchBuilder builder = new ColumnarBatchBuilder(result.getSchema(), 1, false);
+        builder.append(result.getData().get(0));
+        ColumnarBatch batch = builder.build();
+        //build之后不能再追加，已经生成的batch不受影响
+        try {
+            builder.append(result.getData().get(2));
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertEquals(1, batch.getRowCount());
+        }
+        try {
+            builder.build();
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            //只能build一次
+        }
+        Assert.assertEquals(Arrays.asList("bj"), ((StringColumn) batch.column("city")).getDictionary());
+    }
+}
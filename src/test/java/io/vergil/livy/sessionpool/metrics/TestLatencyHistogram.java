@@ -0,0 +1,34 @@
+package io.vergil.livy.sessionpool.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestLatencyHistogram {
+
+    @Test
+    public void bucketTest() {
+        for (long value : new long[]{0, 1, 7, 8, 9, 15, 16, 100, 1000, 123456789L, Long.MAX_VALUE}) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            Assert.assertTrue(bucket < LatencyHistogram.BUCKETS);
+            Assert.assertTrue(LatencyHistogram.upperBoundOf(bucket) >= value);
+            //误差不超过12.5%
+            Assert.assertTrue(LatencyHistogram.upperBoundOf(bucket) - value <= value / 8);
+        }
+    }
+
+    @Test
+    public void percentileTest() {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        HistogramSnapshot snapshot = histogram.snapshot();
+        Assert.assertEquals(1000, snapshot.getCount());
+        Assert.assertEquals(1000, snapshot.getMax());
+        Assert.assertEquals(500.5, snapshot.getMean(), 0.001);
+        Assert.assertEquals(500, snapshot.getP50(), 500 / 8);
+        Assert.assertEquals(990, snapshot.getP99(), 990 / 8);
+        histogram.reset();
+        Assert.assertEquals(0, histogram.snapshot().getCount());
+    }
+}
@@ -0,0 +1,29 @@
+package io.vergil.livy.sessionpool.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestSqlUtils {
+
+    @Test
+    public void normalizeTest() {
+        Assert.assertEquals("select * from t where a = 'A B'", SqlUtils.normalize("  SELECT *\n FROM t WHERE a = 'A B' ;"));
+        //转义的引号不结束引号，后面的内容保持原样
+        Assert.assertEquals("select 'A\\' X'", SqlUtils.normalize("SELECT 'A\\' X'"));
+        Assert.assertNotEquals(SqlUtils.normalize("select 'A\\' X' from t"), SqlUtils.normalize("select 'A\\' x' from t"));
+        Assert.assertEquals("select 'it\\'s X' from t", SqlUtils.normalize("SELECT 'it\\'s X' FROM T"));
+    }
+
+    @Test
+    public void readOnlyTest() {
+        Assert.assertTrue(SqlUtils.isReadOnly("select * from t"));
+        Assert.assertTrue(SqlUtils.isReadOnly("with t as (select 1) select * from t"));
+        Assert.assertFalse(SqlUtils.isReadOnly("insert into t select 1"));
+        //with开头的写操作
+        Assert.assertFalse(SqlUtils.isReadOnly("WITH t AS (select * from a) INSERT INTO x SELECT * FROM t"));
+        Assert.assertFalse(SqlUtils.isReadOnly("with t as (select 1) insert overwrite table x select * from t"));
+        //关键字在括号内、引号内不算
+        Assert.assertTrue(SqlUtils.isReadOnly("with t as (select 'insert' as a) select a, `update` from t"));
+        Assert.assertTrue(SqlUtils.isReadOnly("with t as (select 'it\\'s drop') select * from t"));
+    }
+}